@@ -0,0 +1,82 @@
+/*
+    Bench.java
+    Author: Scott Forsyth
+
+    Description
+    A small measuring harness for the wine benchmarks
+*/
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Runs a benchmark body for a number of warmup and measured iterations and
+ * reports the average time and the bytes allocated per operation. The
+ * allocation figures come from the per-thread allocation counters of the
+ * HotSpot JVM, which is what the JMH GC profiler reads as well.
+ *
+ * @author Scott Forsyth
+ */
+public class Bench {
+
+    /**
+     * The code being measured. One call performs ops operations.
+     */
+    public interface Body {
+        void run() throws Exception;
+    }
+
+    private final int warmups;
+    private final int iterations;
+
+    /**
+     * Creates a harness
+     *
+     * @param warmups the number of unmeasured iterations run first
+     * @param iterations the number of measured iterations
+     */
+    public Bench(int warmups, int iterations) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Measures a benchmark body and prints one result line
+     *
+     * @param name the name of the benchmark
+     * @param ops the number of operations one call of the body performs
+     * @param body the code to measure
+     * @throws Exception if the body fails
+     */
+    public void run(String name, long ops, Body body) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            body.run();
+        }
+        long[] nanos = new long[iterations];
+        long bytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            body.run();
+            nanos[i] = System.nanoTime() - start;
+            bytes += allocatedBytes() - allocated;
+        }
+        Arrays.sort(nanos);
+        double avgOpNanos = Arrays.stream(nanos).average().orElse(0) / ops;
+        System.out.printf("%-36s %12.1f ns/op %14.0f ops/s %10.1f B/op "
+                + "(p50 %.2f ms, max %.2f ms)%n", name, avgOpNanos,
+                1e9 / avgOpNanos, (double) bytes / iterations / ops,
+                nanos[iterations / 2] / 1e6, nanos[iterations - 1] / 1e6);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
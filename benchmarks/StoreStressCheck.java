@@ -0,0 +1,272 @@
+/*
+    StoreStressCheck.java
+    Author: Scott Forsyth
+
+    Description
+    Hammers a sharded wine cellar from many threads and checks that no
+    reader ever sees a torn wine record and that scans do not hold up
+    writers
+*/
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import models.Wine;
+import storage.RecordManager;
+import storage.ShardedWineRepository;
+import storage.WineFileLoader;
+
+/**
+ * Stress check for the thread-safe ShardedWineRepository and the striped
+ * record locks under it. Every wine written is built from a single stamp,
+ * so all six fields of a record agree with each other and a record mixing
+ * two writes is easy to spot. Writer threads update random wines, which go
+ * through the write-ahead log and the writer thread of their shard, while
+ * reader threads check
+ * <ul>
+ *   <li>reads and snapshot scans of the cellar: every wine is whole, a
+ *   scan sees every wine exactly once, and a shard is updated while it is
+ *   being scanned, so scans do not block writers</li>
+ *   <li>records read straight from the shard files with
+ *   RecordManager.readSlot(), while the writers write them</li>
+ * </ul>
+ * and at the end the shard files are loaded again and compared with the
+ * cellar. Run it with the number of wines, threads and seconds, for example
+ * <pre>
+ *   java benchmarks.StoreStressCheck 10000 8 10
+ * </pre>
+ * It exits with status 1 and prints the first problem if a check fails.
+ *
+ * @author Scott Forsyth
+ */
+public class StoreStressCheck {
+
+    private static final int SHARDS = 4;
+
+    private static final AtomicLong failures = new AtomicLong();
+    private static volatile String firstFailure;
+
+    public static void main(String[] args) throws Exception {
+        int wines = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+            : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        File dir = Files.createTempDirectory("wine-stress").toFile();
+        ShardedWineRepository cellar = ShardedWineRepository.open(dir, SHARDS);
+        int[] ids = new int[wines];
+        CompletableFuture<Void> added = null;
+        for (int i = 0; i < wines; i++) {
+            Wine w = stamped(i);
+            added = cellar.add(w);
+            ids[i] = w.getWineID();
+        }
+        if (added != null) {
+            // the slot readers need every record in the files
+            added.join();
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong updates = new AtomicLong();
+        AtomicLongArray shardUpdates = new AtomicLongArray(SHARDS);
+        AtomicLong scans = new AtomicLong();
+        AtomicLong overlapped = new AtomicLong();
+        AtomicLong slotReads = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> write(cellar, ids, running, updates,
+                    shardUpdates), "stress-writer-" + t));
+        }
+        for (int t = 0; t < Math.max(1, threads / 2); t++) {
+            workers.add(new Thread(() -> scan(cellar, ids, running,
+                    shardUpdates, scans, overlapped), "stress-scanner-" + t));
+            workers.add(new Thread(() -> readSlots(cellar, running, slotReads),
+                    "stress-reader-" + t));
+        }
+        long start = System.nanoTime();
+        workers.forEach(Thread::start);
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread t : workers) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Wine[] expected = new Wine[wines];
+        for (int i = 0; i < wines; i++) {
+            expected[i] = cellar.get(ids[i]);
+        }
+        cellar.close();
+        int reloaded = 0;
+        for (int shard = 0; shard < SHARDS; shard++) {
+            for (Wine w : new WineFileLoader().load(
+                    ShardedWineRepository.shardFile(dir, shard))) {
+                reloaded++;
+                checkWhole(w, "reloaded file");
+                int global = w.getWineID() * SHARDS + shard;
+                Wine e = find(expected, global);
+                check(e != null && same(w, e, global), "wine " + global
+                        + " in the file differs from the cellar");
+            }
+        }
+        check(reloaded == wines, "reloaded " + reloaded + " wines instead of "
+                + wines);
+        check(scans.get() == 0 || overlapped.get() > 0,
+                "no shard was updated while it was scanned");
+
+        System.out.printf("%d threads, %.1f s: %,d updates (%,.0f/s), "
+                + "%,d scans (%,d shards updated while scanned), "
+                + "%,d slot reads%n", threads, elapsed, updates.get(),
+                updates.get() / elapsed, scans.get(), overlapped.get(),
+                slotReads.get());
+        if (failures.get() > 0) {
+            System.out.println(failures.get() + " failures, first: "
+                    + firstFailure);
+            System.exit(1);
+        }
+        System.out.println("no torn records");
+    }
+
+    private static void write(ShardedWineRepository cellar, int[] ids,
+            AtomicBoolean running, AtomicLong updates,
+            AtomicLongArray shardUpdates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running.get()) {
+            Wine w = stamped(random.nextInt(1, 1 << 20));
+            w.setWineID(ids[random.nextInt(ids.length)]);
+            cellar.update(w);
+            updates.incrementAndGet();
+            shardUpdates.incrementAndGet(w.getWineID() % SHARDS);
+        }
+    }
+
+    /*
+    * Reads single wines and scans the cellar. A scan pauses now and then,
+    * so if scanning a shard blocked its writers, no shard would ever be
+    * updated between its first and its last wine of a scan.
+    */
+    private static void scan(ShardedWineRepository cellar, int[] ids,
+            AtomicBoolean running, AtomicLongArray shardUpdates,
+            AtomicLong scans, AtomicLong overlapped) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running.get()) {
+            Wine one = cellar.get(ids[random.nextInt(ids.length)]);
+            check(one != null, "a wine went missing");
+            if (one != null) {
+                checkWhole(one, "read");
+            }
+            BitSet seen = new BitSet();
+            long[] count = new long[1];
+            long[] first = new long[SHARDS];
+            long[] last = new long[SHARDS];
+            Arrays.fill(first, -1);
+            cellar.scan(w -> {
+                checkWhole(w, "scan");
+                check(!seen.get(w.getWineID()), "scan saw wine "
+                        + w.getWineID() + " twice");
+                seen.set(w.getWineID());
+                int shard = w.getWineID() % SHARDS;
+                last[shard] = shardUpdates.get(shard);
+                if (first[shard] < 0) {
+                    first[shard] = last[shard];
+                }
+                if (++count[0] % 500 == 0) {
+                    LockSupport.parkNanos(200_000);
+                }
+            });
+            for (int shard = 0; shard < SHARDS; shard++) {
+                if (last[shard] > first[shard]) {
+                    overlapped.incrementAndGet();
+                }
+            }
+            check(count[0] == ids.length, "scan saw " + count[0]
+                    + " wines instead of " + ids.length);
+            scans.incrementAndGet();
+        }
+    }
+
+    private static void readSlots(ShardedWineRepository cellar,
+            AtomicBoolean running, AtomicLong reads) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            while (running.get()) {
+                RecordManager records = cellar.getShard(random.nextInt(SHARDS))
+                    .getPersistence().getRecords();
+                if (records.size() == 0) {
+                    continue;
+                }
+                Wine w = records.readSlot(random.nextInt(records.size()));
+                check(w != null, "tombstone found in a live slot");
+                if (w != null) {
+                    checkWhole(w, "slot read");
+                }
+                reads.incrementAndGet();
+            }
+        } catch (IOException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    /*
+    * Every field of the wine is derived from the stamp
+    */
+    private static Wine stamped(int stamp) {
+        return new Wine("Estate " + stamp, "Grape " + stamp, 1980 + stamp % 40,
+                stamp + 1, stamp);
+    }
+
+    private static void checkWhole(Wine w, String where) {
+        int stamp = (int) w.getPrice();
+        check(w.getEstate().equals("Estate " + stamp)
+                && w.getGrape().equals("Grape " + stamp)
+                && w.getYear() == 1980 + stamp % 40
+                && w.getQuantity() == stamp + 1,
+                "torn record in " + where + ": wine " + w.getWineID() + " "
+                + w.getEstate() + "/" + w.getGrape() + "/" + w.getYear()
+                + "/" + w.getQuantity() + "/" + w.getPrice());
+    }
+
+    private static Wine find(Wine[] wines, int wineID) {
+        for (Wine w : wines) {
+            if (w != null && w.getWineID() == wineID) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    /*
+    * Compares a wine read from a shard file, which carries its shard-local
+    * wineID, with a wine of the cellar
+    */
+    private static boolean same(Wine local, Wine w, int global) {
+        return w.getWineID() == global
+            && local.getEstate().equals(w.getEstate())
+            && local.getGrape().equals(w.getGrape())
+            && local.getYear() == w.getYear()
+            && local.getQuantity() == w.getQuantity()
+            && local.getPrice() == w.getPrice();
+    }
+
+    private static void check(boolean ok, String problem) {
+        if (!ok) {
+            fail(problem);
+        }
+    }
+
+    private static void fail(String problem) {
+        if (failures.getAndIncrement() == 0) {
+            firstFailure = problem;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+    WineBenchmarks.java
+    Author: Scott Forsyth
+
+    Description
+    Benchmarks for the hot paths of the wine application: the record
+    codec, loading and scanning the file and the add and update paths
+*/
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import models.Wine;
+import storage.FixedWidthStringCodec;
+import storage.ParallelWineLoader;
+import storage.PersistenceService;
+import storage.RecordManager;
+import storage.WineFileLoader;
+import storage.WineFormatMigrator;
+import storage.WineRecordCodec;
+import storage.WineStore;
+import storage.WineV2Reader;
+import storage.WriteAheadLog;
+
+/**
+ * Benchmark suite for the wine application. Run it with the record counts
+ * to test, for example
+ * <pre>
+ *   java benchmarks.WineBenchmarks 1000 100000 1000000 10000000
+ * </pre>
+ * Every file is generated by WineFileGenerator with a fixed seed, so runs
+ * of different versions measure the same data. Each result line shows the
+ * average time per operation, the throughput and the bytes allocated per
+ * operation on the benchmark thread.
+ *
+ * @author Scott Forsyth
+ */
+public class WineBenchmarks {
+
+    private static final long SEED = 42;
+    private static final int UPDATES = 1000;
+    private static final int APPENDS = 10000;
+
+    // written by the benchmarks so the JIT cannot drop their results
+    static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length == 0 ? new int[]{1000, 100000, 1000000}
+            : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+        File dir = Files.createTempDirectory("wine-bench").toFile();
+        Bench bench = new Bench(5, 10);
+        codecBenchmarks(bench);
+        for (int size : sizes) {
+            File f = new File(dir, "wines-" + size + ".dat");
+            WineFileGenerator.generate(f, size, SEED);
+            Bench slow = size >= 1000000 ? new Bench(1, 3) : bench;
+            fileBenchmarks(slow, f, size);
+        }
+    }
+
+    static void codecBenchmarks(Bench bench) throws Exception {
+        int n = 1 << 16;
+        Random random = new Random(SEED);
+        ByteBuffer buf = ByteBuffer.allocate(n * WineRecordCodec.RECORD_SIZE);
+        WineRecordCodec codec = new WineRecordCodec();
+        Wine[] wines = new Wine[n];
+        for (int i = 0; i < n; i++) {
+            wines[i] = WineFileGenerator.wine(random, i);
+        }
+        FixedWidthStringCodec strings =
+            new FixedWidthStringCodec(WineRecordCodec.FIELD_SIZE);
+        bench.run("string.encode", n, () -> {
+            for (int i = 0; i < n; i++) {
+                strings.encode(buf, i * WineRecordCodec.RECORD_SIZE,
+                        wines[i].getEstate());
+            }
+        });
+        bench.run("string.decode", n, () -> {
+            for (int i = 0; i < n; i++) {
+                sink = strings.decode(buf, i * WineRecordCodec.RECORD_SIZE);
+            }
+        });
+        bench.run("record.encode", n, () -> {
+            for (int i = 0; i < n; i++) {
+                codec.encode(wines[i], buf, i * WineRecordCodec.RECORD_SIZE);
+            }
+        });
+        bench.run("record.decode", n, () -> {
+            for (int i = 0; i < n; i++) {
+                sink = codec.decode(buf, i * WineRecordCodec.RECORD_SIZE);
+            }
+        });
+        bench.run("wine.construct", n, () -> {
+            for (int i = 0; i < n; i++) {
+                Wine w = wines[i];
+                sink = new Wine(w.getEstate(), w.getGrape(), w.getYear(),
+                        w.getQuantity(), w.getPrice());
+            }
+        });
+    }
+
+    static void fileBenchmarks(Bench bench, File f, int size)
+            throws Exception {
+        String suffix = "[" + size + "]";
+        bench.run("load.sequential" + suffix, size, () -> {
+            WineStore store = new WineStore();
+            new WineFileLoader().load(f, store);
+            sink = store;
+        });
+        bench.run("load.parallel" + suffix, size, () -> {
+            WineStore store = new WineStore();
+            sink = new ParallelWineLoader().load(f, store);
+        });
+
+        File v2 = new File(f.getParentFile(), f.getName() + ".wv2");
+        new WineFormatMigrator().toV2(f, v2);
+        System.out.printf("format.size%s v1 %,d bytes, v2 %,d bytes%n",
+                suffix, f.length(), v2.length());
+        bench.run("scan.v1" + suffix, size, () -> {
+            new WineFileLoader().forEach(f, w -> sink = w);
+        });
+        bench.run("scan.v2" + suffix, size, () -> {
+            new WineV2Reader().forEach(v2, w -> sink = w);
+        });
+
+        File copy = new File(f.getParentFile(), "update-" + f.getName());
+        Files.copy(f.toPath(), copy.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        RecordManager records = RecordManager.open(copy);
+        Random random = new Random(SEED);
+        bench.run("update.latency" + suffix, UPDATES, () -> {
+            for (int i = 0; i < UPDATES; i++) {
+                Wine w = WineFileGenerator.wine(random, random.nextInt(size));
+                records.update(w);
+            }
+        });
+        records.close();
+
+        PersistenceService persistence = PersistenceService.open(copy);
+        bench.run("append.throughput" + suffix, APPENDS, () -> {
+            List<CompletableFuture<Void>> writes = new ArrayList<>(APPENDS);
+            for (int i = 0; i < APPENDS; i++) {
+                writes.add(persistence.add(WineFileGenerator.wine(random, 0)));
+            }
+            for (CompletableFuture<Void> write : writes) {
+                write.join();
+            }
+        });
+        persistence.close();
+        delete(copy);
+        delete(RecordManager.indexFileFor(copy));
+        delete(WriteAheadLog.logFileFor(copy));
+        delete(f);
+    }
+
+    private static void delete(File f) throws IOException {
+        Files.deleteIfExists(f.toPath());
+    }
+}
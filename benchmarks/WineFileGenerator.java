@@ -0,0 +1,88 @@
+/*
+    WineFileGenerator.java
+    Author: Scott Forsyth
+
+    Description
+    Writes synthetic wines.dat files of any size for the benchmarks
+*/
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import models.Wine;
+import storage.WineRecordCodec;
+
+/**
+ * Generates data files in the wines.dat format. The content only depends
+ * on the number of records and the seed, so files generated by different
+ * versions of the application are identical and their results comparable.
+ *
+ * @author Scott Forsyth
+ */
+public class WineFileGenerator {
+
+    static final String[] ESTATES = {"Chateau Blanc", "Mission Hill",
+        "Inniskillin", "Jackson-Triggs", "Peller", "Quails Gate",
+        "Burrowing Owl", "Tinhorn Creek", "Cedar Creek", "Sandhill"};
+    static final String[] GRAPES = {"Merlot", "Cabernet", "Pinot Noir",
+        "Chardonnay", "Riesling", "Syrah", "Malbec", "Gamay"};
+
+    private WineFileGenerator() {
+    }
+
+    /**
+     * Builds the wine stored in record i of a generated file
+     *
+     * @param random the source of the values
+     * @param i the number of the record, used as its wineID
+     * @return a valid wine
+     */
+    static Wine wine(Random random, int i) {
+        Wine w = new Wine(ESTATES[random.nextInt(ESTATES.length)] + " "
+                + random.nextInt(100), GRAPES[random.nextInt(GRAPES.length)],
+                1980 + random.nextInt(40), 1 + random.nextInt(500),
+                5 + random.nextInt(9500) / 100.0);
+        w.setWineID(i);
+        return w;
+    }
+
+    /**
+     * Writes a file with the given number of records and wineIDs 0 to
+     * records - 1, replacing the file if it exists
+     *
+     * @param f the file to write
+     * @param records the number of records
+     * @param seed the seed of the random values
+     * @throws IOException if the file cannot be written
+     */
+    public static void generate(File f, int records, long seed)
+            throws IOException {
+        Random random = new Random(seed);
+        WineRecordCodec codec = new WineRecordCodec();
+        ByteBuffer buf = ByteBuffer.allocate(WineRecordCodec.RECORD_SIZE * 8192);
+        try (FileOutputStream fos = new FileOutputStream(f);
+                FileChannel out = fos.getChannel()) {
+            for (int i = 0; i < records; i++) {
+                if (!buf.hasRemaining()) {
+                    write(out, buf);
+                }
+                codec.encode(wine(random, i), buf, buf.position());
+                buf.position(buf.position() + WineRecordCodec.RECORD_SIZE);
+            }
+            write(out, buf);
+        }
+    }
+
+    private static void write(FileChannel out, ByteBuffer buf)
+            throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+    }
+}
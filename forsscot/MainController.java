@@ -17,10 +17,18 @@ import java.awt.Desktop;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
@@ -29,13 +37,23 @@ import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuItem;
+import javafx.stage.FileChooser;
+import javafx.stage.WindowEvent;
 import models.Wine;
+import storage.TransferReport;
+import storage.WineExporter;
+import storage.WineImporter;
+import storage.WineRepository;
 
 public class MainController implements Initializable {
 
     @FXML private Button btnSave;
     @FXML private Menu mnuFile;
     @FXML private MenuItem itemExit;
+    @FXML private MenuItem itemImport;
+    @FXML private MenuItem itemExport;
+    @FXML private MenuItem itemBackup;
+    @FXML private MenuItem itemCompact;
     @FXML private Button btnUpdate;
     @FXML private Button btnDelete;
     
@@ -94,46 +112,50 @@ public class MainController implements Initializable {
     }
 
     /**
-     * Method for writing a single wine record in the file. It uses writeWine()
-     * to do the actual writing
+     * Method for writing a single wine record in the file. The wine gets its
+     * wineID right away and the record is written in the background
      */
     private void writeRecord() throws FileNotFoundException, IOException {
-        
-        File f = new File("src/res/wines.dat");
-        
-         RandomAccessFile raf = new RandomAccessFile(f, "rw");
-         int wineID = (int)((raf.length()/RECORD_SIZE));
-         try{
-         Wine wine = this.readTextFields();
-         wine.setWineID(wineID);
-         this.writeWine(raf, wine);
-         pnlViewController.getObservableList().add(wine);
-         pnlViewController.getTableView().setItems
-        (pnlViewController.getObservableList());
-         }catch(Exception e){
-             this.showAlert("error", "Input error: "
-                     + "Please check the field values");
-         }     
+        try {
+            Wine wine = this.readTextFields();
+            reportWriteErrors(getRepository().add(wine));
+        } catch (NumberFormatException e) {
+            this.showAlert("error", "Input error: "
+                    + "Please check the field values");
+        } catch (IllegalArgumentException e) {
+            this.showAlert("error", "Input error: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Accessor for the WineRepository of the wine file. The file is opened by
+     * the table controller when it loads the wines and stays open until the
+     * application exits
+     *
+     * @return the WineRepository of wines.dat
+     * @throws IOException if the wine file could not be opened
+     */
+    private WineRepository getRepository() throws IOException {
+        WineRepository repository = pnlViewController.getRepository();
+        if (repository == null) {
+            throw new IOException("The wine file is not open");
+        }
+        return repository;
     }
-    
+
     /**
-     * This method is used by other methods to write a wine record on the file
+     * Shows an error alert if a background write fails. The alert is shown
+     * on the JavaFX Application Thread once the write has finished
+     *
+     * @param write the pending write returned by the WineRepository
      */
-    private void writeWine(RandomAccessFile raf, Wine w) throws IOException {             
-        String estate = this.prepStringField(w.getEstate(), 15);
-        String grape = this.prepStringField(w.getGrape(), 15);
-        int id = w.getWineID();
-        int year = w.getYear();
-        int quantity = w.getQuantity();
-        double price = w.getPrice();
-       raf.seek(RECORD_SIZE * w.getWineID());
-        raf.writeInt(id);
-        raf.writeChars(estate);
-        raf.writeChars(grape);
-        raf.writeInt(year);
-        raf.writeInt(quantity);
-        raf.writeDouble(price);
+    private void reportWriteErrors(CompletableFuture<Void> write) {
+        write.whenCompleteAsync((done, ex) -> {
+            if (ex != null) {
+                this.showAlert("error", "The change could not be saved: "
+                        + ex.getMessage());
+            }
+        }, Platform::runLater);
     }
 
     /**
@@ -186,26 +208,6 @@ public class MainController implements Initializable {
         return result.get();
     }
 
-    /**
-     * This method is used by writeWine() method to make sure that all strings
-     * are of the same size
-     * @param value the value of the string to be prepared
-     * @param size the number of the characters the string must have
-     * @return the string value that was passed as parameter, with added spaced
-     * at the end if the string that was passed was less than the size, or a
-     * truncated string if it was longer than that size
-     */
-    private String prepStringField(String value, int size) {
-        if (value.length() < size) {
-            int numSpaces = size - value.length();
-            for (int i = 0; i < numSpaces; i++) {
-                value += " ";
-            }
-        } else {
-            value = value.substring(0, size);
-        }
-        return value;
-    }
     /**
      * Updates a record in the list and the wines.dat file according to the
      * user input.
@@ -220,28 +222,19 @@ public class MainController implements Initializable {
         
         btnDelete.setDisable(true);
         btnUpdate.setDisable(true);
-        File f = new File("src/res/wines.dat");
-        
-    
-     
-       int wineID = Integer.parseInt
+        int wineID = Integer.parseInt
         (pnlWineController.getTxtWineID().getText());
-       Wine wine = this.readTextFields();
-       wine.setWineID(wineID);
-       RandomAccessFile raf = new RandomAccessFile(f, "rw");
-      
-        // moving the pointer in the file to the correct record based on id
-        raf.seek((RECORD_SIZE * wineID));
-        this.writeWine(raf, wine);
-        raf.close();
-        pnlViewController.getObservableList().set(wineID, wine);
-        pnlViewController.getTableView().setItems
-        (pnlViewController.getObservableList());   
+        Wine wine = this.readTextFields();
+        wine.setWineID(wineID);
+        reportWriteErrors(getRepository().update(wine));
     }
     
     /**
-     * This method will delete the last record in the file
+     * This method will delete the selected record. Its slot in the file is
+     * marked as deleted and reused by the next new wine
      * 
+     * @param event when the delete button is pressed
+     * @throws IOException if there is a problem with input and output
      */
     @FXML
     private void deleteRecord(ActionEvent event) 
@@ -250,33 +243,256 @@ public class MainController implements Initializable {
         btnDelete.setDisable(true);
         btnUpdate.setDisable(true);
         int id = Integer.parseInt(pnlWineController.getTxtWineID().getText());
-        Wine w = readTextFields();
-        w.setWineID(id);
-        File f = new File("src/res/wines.dat");
-        
-        RandomAccessFile raf = new RandomAccessFile(f, "rw");
-        raf.setLength((raf.length() - RECORD_SIZE));
-        int length = pnlViewController.getObservableList().size();
-        pnlViewController.getObservableList().remove(length - 1);
-        pnlViewController.getTableView().setItems
-        (pnlViewController.getObservableList());
+        reportWriteErrors(getRepository().delete(id));
     }
     
     
+    /**
+     * Imports the wines of a CSV file, or of another wine file, in the
+     * background. The rows are read and checked on a background thread and
+     * added to the table in batches on the FX thread, and the rows that
+     * were rejected are reported once the import has finished.
+     * 
+     * @param event the import item from the menubar is selected
+     * @throws IOException if the wine file is not open
+     */
+    @FXML
+    private void importWines(ActionEvent event) throws IOException {
+        WineRepository repository = getRepository();
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Import Wines");
+        chooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("CSV files", "*.csv"),
+                new FileChooser.ExtensionFilter("Wine files", "*.dat", "*.wv2"));
+        File source = chooser.showOpenDialog(btnSave.getScene().getWindow());
+        if (source == null) {
+            return;
+        }
+        WineImporter importer = new WineImporter(repository, Platform::runLater);
+        CompletableFuture<TransferReport> job = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                job.complete(importFile(importer, source));
+            } catch (IOException | RuntimeException ex) {
+                job.completeExceptionally(ex);
+            }
+        }, "wine-import");
+        t.setDaemon(true);
+        itemImport.setDisable(true);
+        t.start();
+        job.whenCompleteAsync((report, ex) -> {
+            itemImport.setDisable(false);
+            if (ex != null) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                this.showAlert("error", "The wines could not be imported: "
+                        + cause.getMessage());
+                return;
+            }
+            StringBuilder message = new StringBuilder("Imported "
+                    + report.getRecords() + " wines from " + source.getName());
+            if (report.getRejected() > 0) {
+                message.append(", rejected ").append(report.getRejected())
+                    .append(" rows:");
+                for (String error : report.getErrors().subList(0,
+                        Math.min(10, report.getErrors().size()))) {
+                    message.append('\n').append(error);
+                }
+            }
+            this.showAlert("information", message.toString());
+        }, Platform::runLater);
+    }
+    
+    /**
+     * Runs an import on the calling thread, as CSV for a .csv file and as a
+     * binary wine file otherwise
+     * 
+     * @param importer the importer of the open wine file
+     * @param source the file to import
+     * @return the number of imported and rejected rows
+     * @throws IOException if the file cannot be read or the wines written
+     */
+    private static TransferReport importFile(WineImporter importer,
+            File source) throws IOException {
+        if (source.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            try (Reader in = Files.newBufferedReader(source.toPath(),
+                    StandardCharsets.UTF_8)) {
+                return importer.importCsv(in);
+            }
+        }
+        return importer.importBinary(source);
+    }
+    
+    /**
+     * Exports the wines to a CSV file, or to a wine file for any other
+     * extension, in the background. The export holds the wines as they
+     * were when it was started, changes can go on while it is written.
+     * 
+     * @param event the export item from the menubar is selected
+     * @throws IOException if the wine file is not open
+     */
+    @FXML
+    private void exportWines(ActionEvent event) throws IOException {
+        WineRepository repository = getRepository();
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Export Wines");
+        chooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("CSV files", "*.csv"),
+                new FileChooser.ExtensionFilter("Wine files", "*.dat"));
+        File target = chooser.showSaveDialog(btnSave.getScene().getWindow());
+        if (target == null) {
+            return;
+        }
+        CompletableFuture<TransferReport> job = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                job.complete(exportFile(repository, target));
+            } catch (IOException | RuntimeException ex) {
+                job.completeExceptionally(ex);
+            }
+        }, "wine-export");
+        t.setDaemon(true);
+        itemExport.setDisable(true);
+        t.start();
+        job.whenCompleteAsync((report, ex) -> {
+            itemExport.setDisable(false);
+            if (ex != null) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                this.showAlert("error", "The wines could not be exported: "
+                        + cause.getMessage());
+                return;
+            }
+            this.showAlert("information", "Exported " + report.getRecords()
+                    + " wines to " + target.getName());
+        }, Platform::runLater);
+    }
+    
+    /**
+     * Runs an export on the calling thread, as CSV for a .csv file and in
+     * the wines.dat format otherwise
+     * 
+     * @param repository the open wine file
+     * @param target the file to write
+     * @return the number of exported wines
+     * @throws IOException if the wines cannot be read or the file written
+     */
+    private static TransferReport exportFile(WineRepository repository,
+            File target) throws IOException {
+        WineExporter exporter = new WineExporter();
+        if (target.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            try (Writer out = Files.newBufferedWriter(target.toPath(),
+                    StandardCharsets.UTF_8)) {
+                return exporter.exportCsv(repository, out);
+            }
+        }
+        return exporter.exportBinary(repository, target);
+    }
+    
+    /**
+     * Backs the wine file up to the backups folder next to it in the
+     * background. The backup holds the wines as they were when it was
+     * started, changes can go on while it is written.
+     * 
+     * @param event the back up item from the menubar is selected
+     * @throws IOException if the wine file is not open
+     */
+    @FXML
+    private void backUp(ActionEvent event) throws IOException {
+        File dir = new File(WineryApp.DATA_FILE.getAbsoluteFile().getParentFile(),
+                "backups");
+        dir.mkdirs();
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File target = new File(dir, "wines-" + stamp + ".wv2");
+        runMaintenance(itemBackup, getRepository().backup(target),
+                "Backed up to " + target.getPath());
+    }
+    
+    /**
+     * Rewrites the wine file without its deleted records in the background.
+     * The table stays usable and changes can go on meanwhile.
+     * 
+     * @param event the compact item from the menubar is selected
+     * @throws IOException if the wine file is not open
+     */
+    @FXML
+    private void compact(ActionEvent event) throws IOException {
+        runMaintenance(itemCompact, getRepository().compact(),
+                "Compacted the wine file");
+    }
+    
+    /**
+     * Disables a menu item while its backup or compaction runs and reports
+     * the outcome once it has finished
+     * 
+     * @param item the menu item that started the job
+     * @param job the running backup or compaction
+     * @param message the message shown when it succeeds
+     */
+    private void runMaintenance(MenuItem item,
+            CompletableFuture<TransferReport> job, String message) {
+        item.setDisable(true);
+        job.whenCompleteAsync((report, ex) -> {
+            item.setDisable(false);
+            if (ex != null) {
+                this.showAlert("error", "The wine file could not be "
+                        + "copied: " + ex.getMessage());
+            } else {
+                this.showAlert("information", message + ": "
+                        + report.getRecords() + " wines");
+            }
+        }, Platform::runLater);
+    }
+    
     /**
      * Displays a confirmation alert box, asking the user if they want to leave
      * the program. If yes is selected, the program exits.
      * 
      * @param event the exit button from the menubar is selected
+     * @throws IOException if the index of the wine file cannot be saved
      */
     @FXML
-    private void exit(ActionEvent event) {
+    private void exit(ActionEvent event) throws IOException {
+        confirmExit();
+    }
+
+    /**
+     * Handles the close box of the main window the same way as the exit
+     * menu item, so the wine files are closed and the startup image saved
+     * either way. If no is selected, the window stays open.
+     *
+     * @param event the close request of the main window
+     */
+    public void closeRequested(WindowEvent event) {
+        event.consume();
+        try {
+            confirmExit();
+        } catch (IOException ex) {
+            this.showAlert("error", "The wine file could not be closed: "
+                    + ex.getMessage());
+        }
+    }
+
+    /*
+    * Asks before exiting, then closes the change log and the wine file
+    */
+    private void confirmExit() throws IOException {
         /* 
         *  Use the showAlert() method to confirm before closing the application 
         */              
        ButtonType choice =  this.showAlert
         ("confirmation", "are you sure you want to exit?");
        if (choice.equals(ButtonType.YES)){
+           // finishes queued writes and saves the index and a startup
+           // image, so the next start maps the wines back in instead of
+           // decoding the file
+           try {
+               if (pnlViewController.getChanges() != null) {
+                   pnlViewController.getChanges().close();
+               }
+           } finally {
+               if (pnlViewController.getRepository() != null) {
+                   pnlViewController.getRepository().close();
+               }
+           }
            System.exit(0);
        }             
     }
@@ -0,0 +1,128 @@
+/*
+    SummaryController.java
+    Author: Scott Forsyth
+
+    Description
+    A controller class for FXMLSummary.fxml, the inventory summary shown
+    next to the wine TableView
+*/
+package forsscot;
+
+import java.net.URL;
+import java.util.ResourceBundle;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.fxml.FXML;
+import javafx.fxml.Initializable;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.cell.PropertyValueFactory;
+import storage.InventoryTotals;
+import storage.WineAnalytics;
+import storage.WineRepository;
+
+/**
+ * FXML Controller class for the inventory summary. The overall totals and
+ * the group table come from a WineAnalytics that follows the repository,
+ * so an edit only moves one wine in or out of the totals. The labels and
+ * the table are refreshed once per pulse, however many edits it had.
+ *
+ * @author Scott Forsyth
+ */
+public class SummaryController implements Initializable {
+
+    private static final String[] GROUP_NAMES = {"Grape", "Estate", "Year"};
+
+    @FXML private Label lblWines;
+    @FXML private Label lblBottles;
+    @FXML private Label lblValue;
+    @FXML private Label lblAvgPrice;
+    @FXML private ChoiceBox<String> cboGroupBy;
+    @FXML private TableView<InventoryTotals> tblGroups;
+    @FXML private TableColumn<InventoryTotals, String> groupCol;
+    @FXML private TableColumn<InventoryTotals, Long> winesCol;
+    @FXML private TableColumn<InventoryTotals, Long> bottlesCol;
+    @FXML private TableColumn<InventoryTotals, Double> valueCol;
+    @FXML private TableColumn<InventoryTotals, Double> avgPriceCol;
+
+    private WineAnalytics analytics;
+    private boolean refreshQueued;
+
+    /**
+     * Initializes the controller class.
+     */
+    @Override
+    public void initialize(URL url, ResourceBundle rb) {
+        groupCol.setCellValueFactory(new PropertyValueFactory<>("group"));
+        winesCol.setCellValueFactory(new PropertyValueFactory<>("wines"));
+        bottlesCol.setCellValueFactory(new PropertyValueFactory<>("bottles"));
+        valueCol.setCellValueFactory(new PropertyValueFactory<>("value"));
+        valueCol.setCellFactory(col -> moneyCell());
+        avgPriceCol.setCellValueFactory
+            (new PropertyValueFactory<>("averagePrice"));
+        avgPriceCol.setCellFactory(col -> moneyCell());
+        cboGroupBy.setItems(FXCollections.observableArrayList(GROUP_NAMES));
+        cboGroupBy.getSelectionModel().selectFirst();
+        cboGroupBy.getSelectionModel().selectedIndexProperty()
+            .addListener((obs, old, index) -> refresh());
+    }
+
+    /**
+     * Starts showing the totals of a repository
+     *
+     * @param repository the repository of the wines shown in the table
+     */
+    public void setRepository(WineRepository repository) {
+        if (analytics != null) {
+            analytics.detach();
+        }
+        analytics = WineAnalytics.attach(repository);
+        analytics.setOnChange(this::queueRefresh);
+        refresh();
+    }
+
+    /**
+     * Accessor for the analytics behind the summary
+     *
+     * @return the WineAnalytics, or null before setRepository()
+     */
+    public WineAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    private void queueRefresh() {
+        if (!refreshQueued) {
+            refreshQueued = true;
+            Platform.runLater(this::refresh);
+        }
+    }
+
+    private void refresh() {
+        refreshQueued = false;
+        if (analytics == null) {
+            return;
+        }
+        InventoryTotals totals = analytics.getTotals();
+        lblWines.setText(String.format("%,d", totals.getWines()));
+        lblBottles.setText(String.format("%,d", totals.getBottles()));
+        lblValue.setText(String.format("$%,.2f", totals.getValue()));
+        lblAvgPrice.setText(String.format("$%,.2f", totals.getAveragePrice()));
+        int index = Math.max(0, cboGroupBy.getSelectionModel().getSelectedIndex());
+        tblGroups.getItems().setAll
+            (analytics.getGroups(WineAnalytics.Dimension.values()[index]));
+    }
+
+    private static TableCell<InventoryTotals, Double> moneyCell() {
+        return new TableCell<InventoryTotals, Double>() {
+            @Override
+            protected void updateItem(Double amount, boolean empty) {
+                super.updateItem(amount, empty);
+                setText(empty || amount == null ? null
+                    : String.format("%,.2f", amount));
+            }
+        };
+    }
+}
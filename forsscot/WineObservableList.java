@@ -0,0 +1,157 @@
+/*
+    WineObservableList.java
+    Author: Scott Forsyth
+
+    Description
+    The ObservableList shown in the wine TableView. It reads its rows from a
+    WineRepository and tells the TableView about every change
+*/
+package forsscot;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+import metrics.LatencyHistogram;
+import metrics.WineEvents;
+import metrics.WineMetrics;
+import models.Wine;
+import storage.WineRepository;
+
+/**
+ * Read-only ObservableList over the rows of a WineRepository. Changes are
+ * made through the repository, which calls this list back so it can record
+ * just the rows that changed. The TableView is never handed a new list.
+ * <p>
+ * Changes are coalesced: the first change opens a change event and every
+ * change made before the FX thread gets to the next pulse is added to it,
+ * so a burst of edits reaches the TableView as one event. Bulk jobs can
+ * also hold the event open across several pulses with beginBatch() and
+ * endBatch().
+ *
+ * @author Scott Forsyth
+ */
+public class WineObservableList extends ObservableListBase<Wine>
+        implements WineRepository.Listener {
+
+    private static final LatencyHistogram REFRESHES =
+        WineMetrics.get().histogram("ui.tableRefresh");
+
+    private final WineRepository repository;
+    private final List<Wine> rows;
+    private boolean changing;
+    private int batches;
+    // changes in the open change event
+    private int pending;
+
+    /**
+     * Creates the list and registers it with the repository
+     *
+     * @param repository the repository holding the wines
+     */
+    public WineObservableList(WineRepository repository) {
+        this.repository = repository;
+        this.rows = repository.rows();
+        repository.addListener(this);
+    }
+
+    @Override
+    public Wine get(int index) {
+        return rows.get(index);
+    }
+
+    @Override
+    public int size() {
+        return repository.size();
+    }
+
+    /**
+     * Holds back change events until the matching endBatch(), so that all
+     * the changes in between reach the TableView as one event. Calls can be
+     * nested. Must be called on the FX thread.
+     */
+    public void beginBatch() {
+        batches++;
+        open();
+    }
+
+    /**
+     * Ends a batch started with beginBatch() and fires its change event
+     * once the outermost batch is ended
+     */
+    public void endBatch() {
+        if (batches == 0) {
+            throw new IllegalStateException("No batch to end");
+        }
+        batches--;
+        flush();
+    }
+
+    /**
+     * Applies the new values of many wines through
+     * WineRepository.updateAll() inside one batch, so the TableView is
+     * refreshed once at the end however many rows changed. Must be called
+     * on the FX thread.
+     *
+     * @param wines the wines with the new values and existing wineIDs
+     * @return a future that completes when every change is durable
+     * @throws IllegalArgumentException if there is no wine with one of the
+     *     wineIDs, in which case nothing is changed
+     */
+    public CompletableFuture<Void> updateAll(List<Wine> wines) {
+        beginBatch();
+        try {
+            return repository.updateAll(wines);
+        } finally {
+            endBatch();
+        }
+    }
+
+    @Override
+    public void added(int row, Wine w) {
+        open();
+        pending++;
+        nextAdd(row, row + 1);
+    }
+
+    @Override
+    public void updated(int row, Wine old, Wine w) {
+        open();
+        pending++;
+        nextSet(row, old);
+    }
+
+    @Override
+    public void removed(int row, Wine old) {
+        open();
+        pending++;
+        nextRemove(row, old);
+    }
+
+    /*
+    * Opens the change event the next changes are added to, and makes sure
+    * it is fired after the changes of the current pulse
+    */
+    private void open() {
+        if (!changing) {
+            changing = true;
+            beginChange();
+            Platform.runLater(this::flush);
+        }
+    }
+
+    private void flush() {
+        if (changing && batches == 0) {
+            changing = false;
+            // the TableView handles the event inside endChange()
+            WineEvents.TableRefresh event = new WineEvents.TableRefresh();
+            event.begin();
+            long start = System.nanoTime();
+            endChange();
+            REFRESHES.recordSince(start);
+            event.changes = pending;
+            event.commit();
+            pending = 0;
+        }
+    }
+}
@@ -8,22 +8,28 @@
  */
 package forsscot;
 
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
 import javafx.scene.control.cell.PropertyValueFactory;
+import metrics.LatencyHistogram;
+import metrics.WineMetrics;
 import models.Wine;
+import storage.SearchResult;
+import storage.WineChangePublisher;
+import storage.WineRepository;
+import storage.WineSearchIndex;
 
 public class WineTableViewController implements Initializable {
 
@@ -41,12 +47,21 @@ public class WineTableViewController implements Initializable {
     private TableColumn<Wine, Integer> qtyCol;
     @FXML
     private TableColumn<Wine, Double> priceCol;
+    @FXML
+    private SummaryController pnlSummaryController;
+    @FXML
+    private TextField txtSearch;
 
+    private WineRepository repository;
     private ObservableList<Wine> olWines;
+    private WineSearchIndex searchIndex;
+    private WineChangePublisher changes;
+    private boolean searchQueued;
 
     final int FIELD_SIZE = 15;
     final long RECORD_SIZE = 80;
 
+    /**
      * Initializes the controller class.
      */
     @Override
@@ -68,51 +83,88 @@ public class WineTableViewController implements Initializable {
     }
 
     /**
-     * Method for loading the content of the file on to the TableView
+     * Method for loading the content of the file on to the TableView. The
+     * file is opened by a WineRepository, which finishes any writes that
+     * were interrupted by a crash and then loads or pages in the wines. The
+     * TableView shows an observable list over the repository
      *
      * @throws FileNotFoundException
      * @throws IOException
      */
     private void loadWines() throws FileNotFoundException, IOException {
-        olWines = FXCollections.observableArrayList();
-        File f = new File("src/res/wines.dat");
-        RandomAccessFile raf = new RandomAccessFile(f, "r");
-        raf.seek(0);
-        long num = raf.length() / RECORD_SIZE;
-        for (int i = 0; i < num; i++) {
-            // loading the table from the values in the file
-            int id = raf.readInt();
-            String estate = readString(raf, FIELD_SIZE);
-            String grape = readString(raf, FIELD_SIZE);
-            int year = raf.readInt();
-            int quantity = raf.readInt();
-            double price = raf.readDouble();
-            String trimEstate = estate.trim();
-            String trimGrape = grape.trim();
-            Wine wine = new Wine(trimEstate, trimGrape, year, quantity, price);
-            wine.setWineID(id);
-            olWines.add(wine);
+        long start = System.nanoTime();
+        repository = WineRepository.open(WineryApp.DATA_FILE);
+        if (repository.getLoadTimings() != null) {
+            Logger.getLogger(WineTableViewController.class.getName())
+                .log(Level.INFO, "Loaded wines: {0}",
+                        repository.getLoadTimings());
         }
+        olWines = new WineObservableList(repository);
         tblWines.setItems(olWines);
+        pnlSummaryController.setRepository(repository);
+        searchIndex = WineSearchIndex.attach(repository);
+        changes = WineChangePublisher.attach(repository, WineryApp.CHANGE_LOG);
+        if (repository.needsCompaction()) {
+            // tidy up the deleted slots in the background, the table can be
+            // used and changed meanwhile
+            repository.compact().whenComplete((report, ex) -> {
+                if (ex != null) {
+                    Logger.getLogger(WineTableViewController.class.getName())
+                        .log(Level.WARNING, "Compaction failed", ex);
+                }
+            });
+        }
+        txtSearch.textProperty().addListener((obs, old, text) -> search());
+        repository.addListener(new WineRepository.Listener() {
+            @Override
+            public void added(int row, Wine w) {
+                queueSearch();
+            }
+
+            @Override
+            public void updated(int row, Wine old, Wine w) {
+                queueSearch();
+            }
+
+            @Override
+            public void removed(int row, Wine old) {
+                queueSearch();
+            }
+        });
+        long nanos = WineMetrics.get().histogram("ui.loadWines")
+            .recordSince(start);
+        Logger.getLogger(WineTableViewController.class.getName())
+            .log(Level.INFO, "Showing {0} wines after {1}", new Object[]
+                {repository.size(), LatencyHistogram.format(nanos)});
     }
 
     /**
-     * Method for reading a String of a length size using a RandomAccessFile
-     * object that is passed as a parameter. It reads the string one character
-     * at a time and concatinates them into a string that is returned back
-     *
-     * @param raf RandomAccessFile object
-     * @param size the length od the string that needs to be read
-     * @return the String that was read from the file
-     * @throws IOException throws back the IOExceptin thrown by readChar()
-     * method
+     * Filters the TableView down to the wines whose estate or grape contains
+     * the search text, or shows every wine again when the text is blank.
+     * The matches come from the search index, the wines are not scanned.
+     */
+    private void search() {
+        searchQueued = false;
+        SearchResult result = searchIndex.search(txtSearch.getText());
+        if (result == null) {
+            if (tblWines.getItems() != olWines) {
+                tblWines.setItems(olWines);
+            }
+        } else {
+            tblWines.setItems(FXCollections.observableList
+                (repository.view(result)));
+        }
+    }
+
+    /**
+     * Runs the search again after the wines changed, once per pulse, while
+     * the table shows search results
      */
-    private String readString(RandomAccessFile raf, int size) throws IOException {
-        String s = "";
-        for (int i = 0; i < size; i++) {
-            s += String.valueOf(raf.readChar());
+    private void queueSearch() {
+        if (!searchQueued && tblWines.getItems() != olWines) {
+            searchQueued = true;
+            Platform.runLater(this::search);
         }
-        return s; 
     }
 
     /**
@@ -138,6 +190,29 @@ public class WineTableViewController implements Initializable {
         return olWines;
     }
 
+    /**
+     * Accessor for getting the repository that holds the wines. Other
+     * controllers make their changes through it, and the TableView is told
+     * about each change
+     *
+     * @return the WineRepository of wines.dat, or null if the file could not
+     * be opened
+     */
+    public WineRepository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Accessor for the stream of changes made to the wines, for parts of
+     * the application that react to low stock or new prices
+     *
+     * @return the publisher of the changes, or null if the file could not
+     * be opened
+     */
+    public WineChangePublisher getChanges() {
+        return changes;
+    }
+
     /**
      * Accessor for getting the TableView from other classes (controllers)
      *
@@ -7,11 +7,16 @@
 */
 package forsscot;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import metrics.WineMetrics;
+import server.WineServer;
 
 /**
  *
@@ -19,15 +24,74 @@ import javafx.stage.Stage;
  */
 public class WineryApp extends Application{
     
-    public static void main(String[] args) {
+    /**
+     * The wine file used by the GUI and the single file server, set with
+     * -Dwine.file=path
+     */
+    public static final File DATA_FILE =
+        new File(System.getProperty("wine.file", "src/res/wines.dat"));
+
+    /**
+     * The file every change of the wines is appended to, set with
+     * -Dwine.changelog=path, or null for none
+     */
+    public static final File CHANGE_LOG = System.getProperty("wine.changelog")
+        == null ? null : new File(System.getProperty("wine.changelog"));
+
+    // seconds between two metric summaries in the log, 0 for none
+    private static final long METRICS_PERIOD =
+        Long.getLong("wine.metrics.period", 60);
+    // the directory and shard count of a sharded cellar to serve instead
+    private static final String CELLAR = System.getProperty("wine.cellar");
+    private static final int SHARDS = Integer.getInteger("wine.shards",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Launches the GUI, or with --server [port] serves the wine file over
+     * HTTP/JSON without a GUI. With -Dwine.cellar=dir the server serves a
+     * cellar sharded over wine.shards files instead. Either way the metrics
+     * are published through JMX and summarized in the log every
+     * wine.metrics.period seconds.
+     *
+     * @param args the command line arguments
+     * @throws IOException if the server cannot be started
+     */
+    public static void main(String[] args) throws IOException {
+        WineMetrics.get().registerMBean();
+        if (METRICS_PERIOD > 0) {
+            WineMetrics.get().startReporter(METRICS_PERIOD, TimeUnit.SECONDS);
+        }
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1])
+                : WineServer.DEFAULT_PORT;
+            WineServer server = CELLAR == null
+                ? WineServer.start(DATA_FILE, port)
+                : WineServer.startCellar(new File(CELLAR), SHARDS, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.stop();
+                } catch (IOException ex) {
+                    System.err.println("Could not close the wine files: " + ex);
+                }
+            }));
+            System.out.println("Serving " + (CELLAR == null ? DATA_FILE.getPath()
+                    : CELLAR + " in " + SHARDS + " shards") + " on port "
+                    + server.getPort());
+            return;
+        }
         launch(args);        
     }
 
     @Override
     public void start(Stage stage) throws Exception {
-        Parent root = FXMLLoader.load(getClass().getResource("FXMLMain.fxml"));
+        FXMLLoader loader = new FXMLLoader(getClass()
+                .getResource("FXMLMain.fxml"));
+        Parent root = loader.load();
+        MainController main = loader.getController();
         stage.setTitle("Winery Application");
         stage.setScene(new Scene(root));
+        // the close box shuts down like File > Exit
+        stage.setOnCloseRequest(main::closeRequested);
         stage.show();
     }
 }
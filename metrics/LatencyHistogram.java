@@ -0,0 +1,219 @@
+/*
+    LatencyHistogram.java
+    Author: Scott Forsyth
+
+    Description
+    A fixed-size histogram of durations with about 3% precision, cheap
+    enough to record every operation of the wine hot paths
+*/
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of nanosecond durations laid out like an HdrHistogram: every
+ * power of two is split into SUB_BUCKETS linear buckets, so a value is
+ * kept with a relative error of at most 1 / SUB_BUCKETS whether it is a
+ * microsecond or a minute, in a fixed array of 1888 counters. Recording is
+ * lock-free and allocation-free and can be done from any thread.
+ * Percentiles report the highest value of their bucket, so they are never
+ * below the true value, but never above the maximum either.
+ *
+ * @author Scott Forsyth
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // values below 2 * SUB_BUCKETS have a bucket each, then 32 per power
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one duration
+     *
+     * @param nanos the duration in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Records the time since a start taken with System.nanoTime()
+     *
+     * @param startNanos the start of the operation
+     * @return the duration that was recorded
+     */
+    public long recordSince(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        record(nanos);
+        return nanos;
+    }
+
+    /**
+     * Accessor for the number of durations recorded
+     * @return the count
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * Accessor for the longest duration recorded
+     * @return the maximum in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Accessor for the mean duration
+     * @return the mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the duration that a percentage of the recorded durations do
+     * not exceed
+     *
+     * @param percentile from 0 to 100, for example 99.9
+     * @return the duration in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        // the top bucket may reach past the largest value recorded
+        return Math.min(valueAt(snapshot, n, percentile), getMax());
+    }
+
+    /**
+     * Returns a copy that does not change with this histogram
+     * @return a copy of the counts
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.addAll(this, 1);
+        copy.max.set(max.get());
+        return copy;
+    }
+
+    /**
+     * Returns the durations recorded since an earlier copy was taken, used
+     * to report one interval at a time. The maximum of the result is the
+     * highest bucket recorded in the interval.
+     *
+     * @param earlier a copy of this histogram taken before
+     * @return a new histogram holding the difference
+     */
+    public LatencyHistogram since(LatencyHistogram earlier) {
+        LatencyHistogram delta = new LatencyHistogram();
+        delta.addAll(this, 1);
+        delta.addAll(earlier, -1);
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (delta.counts.get(i) > 0) {
+                delta.max.set(Math.min(highestValueOf(i), max.get()));
+                break;
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Forgets every recorded duration
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%s p50=%s p99=%s p99.9=%s max=%s",
+                getCount(), format(getMean()), format(getValueAtPercentile(50)),
+                format(getValueAtPercentile(99)),
+                format(getValueAtPercentile(99.9)), format(getMax()));
+    }
+
+    /**
+     * Formats a duration in the most readable unit
+     *
+     * @param nanos the duration in nanoseconds
+     * @return the duration in us, ms or s
+     */
+    public static String format(double nanos) {
+        if (nanos < 1e6) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else if (nanos < 1e9) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+
+    private void addAll(LatencyHistogram other, int sign) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, sign * c);
+            }
+        }
+        total.add(sign * other.total.sum());
+        sum.add(sign * other.sum.sum());
+    }
+
+    private static long valueAt(long[] snapshot, long n, double percentile) {
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(snapshot.length - 1);
+    }
+
+    static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift);
+        return (shift + 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
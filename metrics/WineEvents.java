@@ -0,0 +1,109 @@
+/*
+    WineEvents.java
+    Author: Scott Forsyth
+
+    Description
+    Java Flight Recorder events of the wine application
+*/
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Custom JFR events, one per slow operation rather than per record so a
+ * recording stays small. They cost nothing unless a recording enables
+ * them, for example with
+ * <pre>
+ *   java -XX:StartFlightRecording=filename=wine.jfr,settings=profile ...
+ * </pre>
+ * and can then be found under the Wine category in JDK Mission Control.
+ *
+ * @author Scott Forsyth
+ */
+public class WineEvents {
+
+    private WineEvents() {
+    }
+
+    /**
+     * A data file was opened and its wines loaded or paged in
+     */
+    @Name("forsscot.FileOpen")
+    @Label("Wine File Open")
+    @Category("Wine")
+    public static class FileOpen extends Event {
+
+        @Label("Path")
+        public String path;
+
+        @Label("Records")
+        @Description("Live wines in the file")
+        public long records;
+
+        @Label("Paged")
+        public boolean paged;
+    }
+
+    /**
+     * The writer committed one batch of changes
+     */
+    @Name("forsscot.Commit")
+    @Label("Wine Commit")
+    @Category("Wine")
+    public static class Commit extends Event {
+
+        @Label("Changes")
+        public int changes;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * A page of rows was read from the data file
+     */
+    @Name("forsscot.PageRead")
+    @Label("Wine Page Read")
+    @Category("Wine")
+    public static class PageRead extends Event {
+
+        @Label("Page")
+        public int page;
+
+        @Label("Records")
+        public int records;
+    }
+
+    /**
+     * The table was told about a batch of row changes
+     */
+    @Name("forsscot.TableRefresh")
+    @Label("Wine Table Refresh")
+    @Category("Wine")
+    public static class TableRefresh extends Event {
+
+        @Label("Changes")
+        public int changes;
+    }
+
+    /**
+     * A backup or compaction copied the data file
+     */
+    @Name("forsscot.Maintenance")
+    @Label("Wine Backup Or Compaction")
+    @Category("Wine")
+    public static class Maintenance extends Event {
+
+        @Label("Kind")
+        public String kind;
+
+        @Label("Records")
+        public long records;
+    }
+}
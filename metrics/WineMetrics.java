@@ -0,0 +1,221 @@
+/*
+    WineMetrics.java
+    Author: Scott Forsyth
+
+    Description
+    Counters and latency histograms of the persistence and UI hot paths,
+    exported through JMX and a periodic log summary
+*/
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of one JVM. Code that is measured looks its counters and
+ * histograms up once, by name, and keeps them in static fields, so the hot
+ * paths only pay for a LongAdder increment or a histogram record. Names are
+ * dotted, with the area first: records.*, commit.*, file.*, repository.*
+ * and ui.*.
+ * <p>
+ * The metrics are read through JMX once registerMBean() was called, and
+ * startReporter() logs what changed in every period, so a regression on a
+ * real machine shows up in the log without attaching anything.
+ *
+ * @author Scott Forsyth
+ */
+public class WineMetrics implements WineMetricsMXBean {
+
+    public static final String OBJECT_NAME = "forsscot:type=WineMetrics";
+
+    private static final WineMetrics INSTANCE = new WineMetrics();
+    private static final Logger LOG =
+        Logger.getLogger(WineMetrics.class.getName());
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms =
+        new ConcurrentHashMap<>();
+    private ScheduledExecutorService reporter;
+
+    private WineMetrics() {
+    }
+
+    /**
+     * Accessor for the metrics of this JVM
+     * @return the single WineMetrics instance
+     */
+    public static WineMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a counter, creating it the first time its name is used
+     *
+     * @param name the name of the counter
+     * @return the counter
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Returns a latency histogram, creating it the first time its name is
+     * used
+     *
+     * @param name the name of the histogram
+     * @return the histogram, in nanoseconds
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. Calling it more
+     * than once has no effect.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException ex) {
+            // registered before
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Metrics are not available through JMX", ex);
+        }
+    }
+
+    /**
+     * Logs the metrics that changed once every period, on a daemon thread.
+     * A running reporter is replaced.
+     *
+     * @param period the time between two summaries
+     * @param unit the unit of the period
+     */
+    public synchronized void startReporter(long period, TimeUnit unit) {
+        stopReporter();
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wine-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        Interval interval = new Interval();
+        reporter.scheduleAtFixedRate(() -> {
+            String summary = interval.next();
+            if (!summary.isEmpty()) {
+                LOG.info("Wine metrics for the last " + period + " "
+                        + unit.toString().toLowerCase() + ":" + summary);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops logging the metrics
+     */
+    public synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, c) -> values.put(name, c.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyCounts() {
+        Map<String, Long> values = new TreeMap<>();
+        histograms.forEach((name, h) -> values.put(name, h.getCount()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Micros() {
+        return micros(h -> h.getValueAtPercentile(50));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Micros() {
+        return micros(h -> h.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMicros() {
+        return micros(LatencyHistogram::getMax);
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        getCounters().forEach((name, value) ->
+                sb.append(name).append(" = ").append(value).append('\n'));
+        new TreeMap<>(histograms).forEach((name, h) ->
+                sb.append(name).append(": ").append(h).append('\n'));
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        counters.values().forEach(LongAdder::reset);
+        histograms.values().forEach(LatencyHistogram::reset);
+    }
+
+    private Map<String, Double> micros(ToDoubleFunction<LatencyHistogram> f) {
+        Map<String, Double> values = new TreeMap<>();
+        histograms.forEach((name, h) ->
+                values.put(name, f.applyAsDouble(h) / 1e3));
+        return values;
+    }
+
+    /**
+     * The values of the metrics at the end of the last reported period
+     */
+    private class Interval {
+
+        private final Map<String, Long> counts = new TreeMap<>();
+        private final Map<String, LatencyHistogram> copies = new TreeMap<>();
+
+        /**
+         * Describes what changed since the last call
+         * @return one line per changed metric, or "" if none changed
+         */
+        String next() {
+            StringBuilder sb = new StringBuilder();
+            getCounters().forEach((name, value) -> {
+                long before = counts.getOrDefault(name, 0L);
+                // after a reset the whole value is new
+                long delta = value < before ? value : value - before;
+                counts.put(name, value);
+                if (delta != 0) {
+                    sb.append("\n  ").append(name).append(" +").append(delta);
+                }
+            });
+            new TreeMap<>(histograms).forEach((name, h) -> {
+                LatencyHistogram now = h.copy();
+                LatencyHistogram before = copies.put(name, now);
+                LatencyHistogram delta = before == null
+                    || now.getCount() < before.getCount() ? now
+                    : now.since(before);
+                if (delta.getCount() > 0) {
+                    sb.append("\n  ").append(name).append(": ").append(delta);
+                }
+            });
+            return sb.toString();
+        }
+    }
+}
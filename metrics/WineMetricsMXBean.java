@@ -0,0 +1,60 @@
+/*
+    WineMetricsMXBean.java
+    Author: Scott Forsyth
+
+    Description
+    The JMX view of the wine application metrics
+*/
+package metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of WineMetrics, shown in JConsole or VisualVM under
+ * forsscot:type=WineMetrics. Durations are in microseconds.
+ *
+ * @author Scott Forsyth
+ */
+public interface WineMetricsMXBean {
+
+    /**
+     * Accessor for the counters
+     * @return every counter by name
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Accessor for the number of timed operations
+     * @return the count of every latency histogram by name
+     */
+    Map<String, Long> getLatencyCounts();
+
+    /**
+     * Accessor for the median latencies
+     * @return the 50th percentile of every latency histogram by name
+     */
+    Map<String, Double> getLatencyP50Micros();
+
+    /**
+     * Accessor for the tail latencies
+     * @return the 99th percentile of every latency histogram by name
+     */
+    Map<String, Double> getLatencyP99Micros();
+
+    /**
+     * Accessor for the worst latencies
+     * @return the maximum of every latency histogram by name
+     */
+    Map<String, Double> getLatencyMaxMicros();
+
+    /**
+     * Accessor for a readable summary of every metric
+     * @return one line per metric
+     */
+    String getSummary();
+
+    /**
+     * Sets every counter and histogram back to zero
+     */
+    void reset();
+}
@@ -8,8 +8,6 @@
 
 package models;
 
-import java.time.LocalDate;
-
 public class Wine {
     
     private int wineID, year, quantity;
@@ -39,6 +37,30 @@ public class Wine {
         setPrice(price);
     }
 
+    /**
+     * Builds a wine from values that were validated before they were
+     * stored, such as records read back from the wine file or another Wine,
+     * without checking them again
+     * @param wineID the unique wineID of the wine
+     * @param estate the estate where the grape was produced
+     * @param grape the grape variety
+     * @param year the year it was produced
+     * @param quantity the number of bottles
+     * @param price the price per bottle
+     * @return the wine with exactly these values
+     */
+    public static Wine trusted(int wineID, String estate, String grape,
+            int year, int quantity, double price) {
+        Wine wine = new Wine();
+        wine.wineID = wineID;
+        wine.estate = estate;
+        wine.grape = grape;
+        wine.year = year;
+        wine.quantity = quantity;
+        wine.price = price;
+        return wine;
+    }
+
     /**
      * Accessor for getting the wineID
      * @return the unique wineID for a wine
@@ -107,7 +129,7 @@ public class Wine {
      * the present year are rejected
      */
     public void setYear(int year) throws IllegalArgumentException{
-        if (year < 1980 || year > LocalDate.now().getYear()) {
+        if (year < WineValidator.MIN_YEAR || year > WineValidator.maxYear()) {
             throw new IllegalArgumentException("Unacceptable year");
         } else {
             this.year = year;
@@ -147,8 +169,13 @@ public class Wine {
     /**
      * Mutator for setting the price of the bottle
      * @param price the price of one bottle
+     * @throws IllegalArgumentException NaN and infinite prices are rejected
      */
-    public void setPrice(double price) {
+    public void setPrice(double price) throws IllegalArgumentException{
+        String problem = WineValidator.checkPrice(price);
+        if (problem != null) {
+            throw new IllegalArgumentException(problem);
+        }
         this.price = price;
     }
 }
@@ -0,0 +1,196 @@
+/*
+    WineValidator.java
+    Author: Scott Forsyth
+
+    Description
+    The rules a wine must follow, checked without exceptions so that bulk
+    imports can report every bad row cheaply
+*/
+package models;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Validation of wine values. The setters of Wine throw on the first bad
+ * value, which is right for a single form, but an import of millions of
+ * rows would pay for an exception on every bad row. check() returns the
+ * problem as a message instead, and an instance collects the problems of
+ * many rows: it counts every row it checks and every row it rejects, and
+ * keeps the numbers of the first maxRows rejected rows and the messages of
+ * the first maxErrors, so a file full of bad rows cannot use up memory.
+ * <p>
+ * The newest acceptable year is the current year, which is looked up once
+ * and cached until the next New Year instead of on every wine.
+ *
+ * @author Scott Forsyth
+ */
+public class WineValidator {
+
+    public static final int MIN_YEAR = 1980;
+
+    private static volatile YearBound bound = new YearBound();
+
+    private final int maxErrors;
+    private final int maxRows;
+    private final List<String> errors = new ArrayList<>();
+    private long[] rejectedRows = new long[16];
+    private int keptRows;
+    private long checked;
+    private long rejected;
+
+    /**
+     * Creates a validator for a bulk run
+     *
+     * @param maxErrors how many error messages are kept
+     * @param maxRows how many numbers of rejected rows are kept, the rows
+     *     are counted either way
+     */
+    public WineValidator(int maxErrors, int maxRows) {
+        this.maxErrors = maxErrors;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Returns the newest acceptable year
+     * @return the current year
+     */
+    public static int maxYear() {
+        YearBound b = bound;
+        if (System.currentTimeMillis() >= b.until) {
+            b = new YearBound();
+            bound = b;
+        }
+        return b.year;
+    }
+
+    /**
+     * Checks the year, quantity and price of a wine against the rules the
+     * setters of Wine enforce
+     *
+     * @param year the year it was produced
+     * @param quantity the number of bottles
+     * @param price the price per bottle
+     * @return null if the values are acceptable, otherwise what is wrong
+     */
+    public static String check(int year, int quantity, double price) {
+        if (year < MIN_YEAR || year > maxYear()) {
+            return "Unacceptable year";
+        }
+        if (quantity <= 0) {
+            return "Quantity must be positive number";
+        }
+        return checkPrice(price);
+    }
+
+    /**
+     * Checks a price. "NaN" and "Infinity" parse as doubles, but are not
+     * prices.
+     *
+     * @param price the price per bottle
+     * @return null if the price is acceptable, otherwise what is wrong
+     */
+    public static String checkPrice(double price) {
+        return Double.isFinite(price) ? null : "Price must be a finite number";
+    }
+
+    /**
+     * Checks the values of one row of a bulk run and records the row if
+     * they are not acceptable
+     *
+     * @param row the number of the row, reported with its problem
+     * @param year the year it was produced
+     * @param quantity the number of bottles
+     * @param price the price per bottle
+     * @return true if the values are acceptable
+     */
+    public boolean accept(long row, int year, int quantity, double price) {
+        checked++;
+        String problem = check(year, quantity, price);
+        if (problem == null) {
+            return true;
+        }
+        record(row, problem);
+        return false;
+    }
+
+    /**
+     * Records a row that was found to be bad by other means, for example
+     * one whose fields could not be parsed. It counts as a checked row.
+     *
+     * @param row the number of the row
+     * @param problem what is wrong with it
+     */
+    public void reject(long row, String problem) {
+        checked++;
+        record(row, problem);
+    }
+
+    private void record(long row, String problem) {
+        rejected++;
+        if (keptRows < maxRows) {
+            if (keptRows == rejectedRows.length) {
+                rejectedRows = Arrays.copyOf(rejectedRows,
+                        Math.min(keptRows * 2, maxRows));
+            }
+            rejectedRows[keptRows++] = row;
+        }
+        if (errors.size() < maxErrors) {
+            errors.add("Line " + row + ": " + problem);
+        }
+    }
+
+    /**
+     * Accessor for the number of rows checked, whether they were accepted
+     * or rejected
+     * @return the number of checked rows
+     */
+    public long getChecked() {
+        return checked;
+    }
+
+    /**
+     * Accessor for the number of rejected rows
+     * @return the number of rows that were not acceptable
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Accessor for the numbers of the first rejected rows
+     * @return up to maxRows row numbers, in the order they were rejected
+     */
+    public long[] getRejectedRows() {
+        return Arrays.copyOf(rejectedRows, keptRows);
+    }
+
+    /**
+     * Accessor for the messages of the first rejected rows
+     * @return up to maxErrors messages
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * The current year and the moment it ends
+     */
+    private static class YearBound {
+
+        final int year;
+        final long until;
+
+        YearBound() {
+            ZoneId zone = ZoneId.systemDefault();
+            LocalDate today = LocalDate.now(zone);
+            this.year = today.getYear();
+            this.until = LocalDate.of(year + 1, 1, 1).atStartOfDay(zone)
+                .toInstant().toEpochMilli();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+    WineJson.java
+    Author: Scott Forsyth
+
+    Description
+    Converts wines to and from the JSON used by the wine server
+*/
+package server;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import models.Wine;
+import storage.TransferReport;
+
+/**
+ * Just enough JSON for the wine server. A wine is a flat object
+ * <pre>
+ *   {"wineID":3,"estate":"Peller","grape":"Merlot","year":2016,
+ *    "quantity":12,"price":24.5}
+ * </pre>
+ * and the parser only accepts flat objects of strings and numbers. JSON has
+ * no NaN or Infinity, so a price that is not finite, which old data files
+ * can hold, is written as null and is never accepted.
+ *
+ * @author Scott Forsyth
+ */
+public class WineJson {
+
+    private WineJson() {
+    }
+
+    /**
+     * Writes a wine as a JSON object
+     *
+     * @param w the wine to write
+     * @param out the builder that receives the JSON
+     */
+    public static void append(Wine w, StringBuilder out) {
+        out.append("{\"wineID\":").append(w.getWineID())
+            .append(",\"estate\":");
+        appendString(w.getEstate(), out);
+        out.append(",\"grape\":");
+        appendString(w.getGrape(), out);
+        out.append(",\"year\":").append(w.getYear())
+            .append(",\"quantity\":").append(w.getQuantity())
+            .append(",\"price\":");
+        if (Double.isFinite(w.getPrice())) {
+            out.append(w.getPrice());
+        } else {
+            out.append("null");
+        }
+        out.append('}');
+    }
+
+    /**
+     * Writes a list of wines as a JSON array
+     *
+     * @param wines the wines to write
+     * @return the JSON text
+     */
+    public static String toJson(List<Wine> wines) {
+        StringBuilder out = new StringBuilder(wines.size() * 96 + 2);
+        out.append('[');
+        for (int i = 0; i < wines.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            append(wines.get(i), out);
+        }
+        return out.append(']').toString();
+    }
+
+    /**
+     * Writes one wine as JSON
+     *
+     * @param w the wine to write
+     * @return the JSON text
+     */
+    public static String toJson(Wine w) {
+        StringBuilder out = new StringBuilder(96);
+        append(w, out);
+        return out.toString();
+    }
+
+    /**
+     * Writes the outcome of an import as a JSON object
+     * <pre>
+     *   {"imported":998,"rejected":2,"errors":["Line 7: Unacceptable year",...]}
+     * </pre>
+     *
+     * @param report the report of the import
+     * @return the JSON text, with the first error messages only
+     */
+    public static String toJson(TransferReport report) {
+        StringBuilder out = new StringBuilder(128);
+        out.append("{\"imported\":").append(report.getRecords())
+            .append(",\"rejected\":").append(report.getRejected())
+            .append(",\"errors\":[");
+        List<String> errors = report.getErrors();
+        for (int i = 0; i < errors.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            appendString(errors.get(i), out);
+        }
+        return out.append("]}").toString();
+    }
+
+    /**
+     * Builds a wine from a JSON object. The values go through the validating
+     * Wine constructor; a wineID in the object is ignored.
+     *
+     * @param json the JSON text
+     * @return the new wine, without a wineID
+     * @throws IllegalArgumentException if the JSON or a value is not valid
+     */
+    public static Wine fromJson(String json) {
+        Map<String, String> fields = parseObject(json);
+        return new Wine(require(fields, "estate"), require(fields, "grape"),
+                Integer.parseInt(require(fields, "year")),
+                Integer.parseInt(require(fields, "quantity")),
+                Double.parseDouble(require(fields, "price")));
+    }
+
+    /**
+     * Writes a message as a JSON error object
+     *
+     * @param message the error message
+     * @return the JSON text
+     */
+    public static String error(String message) {
+        StringBuilder out = new StringBuilder("{\"error\":");
+        appendString(message == null ? "" : message, out);
+        return out.append('}').toString();
+    }
+
+    private static String require(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing field " + name);
+        }
+        return value;
+    }
+
+    private static void appendString(String s, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < ' ') {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /*
+    * Parses {"name": value, ...} where every value is a string or a number.
+    * Numbers are returned as their text.
+    */
+    static Map<String, String> parseObject(String json) {
+        Map<String, String> fields = new HashMap<>();
+        int[] pos = {skip(json, 0)};
+        expect(json, pos, '{');
+        if (peek(json, pos) == '}') {
+            return fields;
+        }
+        while (true) {
+            String name = readString(json, pos);
+            expect(json, pos, ':');
+            String value = peek(json, pos) == '"' ? readString(json, pos)
+                : readNumber(json, pos);
+            fields.put(name, value);
+            char c = peek(json, pos);
+            pos[0]++;
+            if (c == '}') {
+                return fields;
+            } else if (c != ',') {
+                throw new IllegalArgumentException("Bad JSON at " + pos[0]);
+            }
+        }
+    }
+
+    private static String readString(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder s = new StringBuilder();
+        int i = pos[0];
+        while (i < json.length() && json.charAt(i) != '"') {
+            char c = json.charAt(i++);
+            if (c == '\\') {
+                if (i >= json.length()) {
+                    break;
+                }
+                char e = json.charAt(i++);
+                if (e == 'u') {
+                    c = readHex(json, i);
+                    i += 4;
+                } else {
+                    c = unescape(e, i - 2);
+                }
+            }
+            s.append(c);
+        }
+        if (i >= json.length()) {
+            throw new IllegalArgumentException("Unterminated string");
+        }
+        pos[0] = i + 1;
+        return s.toString();
+    }
+
+    /*
+    * Maps the character after a backslash to the character it stands for
+    */
+    private static char unescape(char e, int at) {
+        switch (e) {
+            case '"':
+            case '\\':
+            case '/':
+                return e;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                throw new IllegalArgumentException("Bad escape \\" + e
+                        + " at " + at);
+        }
+    }
+
+    /*
+    * Reads the four hex digits of a unicode escape starting at i
+    */
+    private static char readHex(String json, int i) {
+        if (i + 4 > json.length()) {
+            throw new IllegalArgumentException("Truncated \\u escape at "
+                    + (i - 2));
+        }
+        int c = 0;
+        for (int k = i; k < i + 4; k++) {
+            char h = json.charAt(k);
+            int digit = h < 128 ? Character.digit(h, 16) : -1;
+            if (digit < 0) {
+                throw new IllegalArgumentException("Bad \\u escape at "
+                        + (i - 2));
+            }
+            c = c * 16 + digit;
+        }
+        return (char) c;
+    }
+
+    private static String readNumber(String json, int[] pos) {
+        int start = skip(json, pos[0]);
+        int i = start;
+        while (i < json.length() && "+-.eE0123456789".indexOf(json.charAt(i)) >= 0) {
+            i++;
+        }
+        if (i == start) {
+            throw new IllegalArgumentException("Bad JSON at " + start);
+        }
+        pos[0] = i;
+        return json.substring(start, i);
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+        if (peek(json, pos) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static char peek(String json, int[] pos) {
+        pos[0] = skip(json, pos[0]);
+        return pos[0] < json.length() ? json.charAt(pos[0]) : 0;
+    }
+
+    private static int skip(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
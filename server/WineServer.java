@@ -0,0 +1,408 @@
+/*
+    WineServer.java
+    Author: Scott Forsyth
+
+    Description
+    Serves the wines of one data file or sharded cellar over HTTP/JSON, so
+    that many clients can use the same wines at once
+*/
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import metrics.LatencyHistogram;
+import metrics.WineMetrics;
+import models.Wine;
+import storage.ShardedWineRepository;
+import storage.TransferReport;
+import storage.WineCatalog;
+import storage.WineExporter;
+import storage.WineImporter;
+import storage.WineQuery;
+import storage.WineRepository;
+
+/**
+ * Headless server mode of the application. It owns the only WineRepository
+ * of the data file, so the file is never written by two processes, and
+ * exposes it over the JDK HttpServer:
+ * <pre>
+ *   GET    /wines?grape=&amp;estate=&amp;minYear=&amp;maxYear=&amp;minPrice=&amp;maxPrice=&amp;offset=&amp;limit=
+ *   GET    /wines/{id}
+ *   POST   /wines            body: a wine object, answers with its wineID
+ *   PUT    /wines/{id}       body: a wine object
+ *   DELETE /wines/{id}
+ *   POST   /wines/import     body: CSV rows, answers with the number of
+ *                            imported and rejected rows
+ *   GET    /wines/export     answers with every wine as CSV rows
+ * </pre>
+ * Requests are handled by a pool of worker threads. Reads run at the same
+ * time under the read lock of the repository, and every change is handed
+ * to a single writer thread that applies it under the write lock. The
+ * worker then waits for the change to be durable (the group commit of the
+ * PersistenceService) before it answers. An import streams its rows and
+ * hands them to the writer thread in batches, so reads go on between them.
+ * An export streams the wines from a snapshot of the file and takes
+ * neither the lock nor the writer thread.
+ * <p>
+ * A sharded cellar is safe to use from several threads and locks each
+ * shard on its own, so the workers call it directly, without the lock and
+ * the writer thread, and changes to different shards are written at the
+ * same time.
+ *
+ * @author Scott Forsyth
+ */
+public class WineServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_LIMIT = 1000;
+
+    private static final LatencyHistogram REQUESTS =
+        WineMetrics.get().histogram("server.request");
+
+    private final WineCatalog repository;
+    private final boolean concurrent;
+    private final HttpServer http;
+    private final ExecutorService workers;
+    private final ExecutorService writer;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private WineServer(WineCatalog repository, boolean concurrent, int port)
+            throws IOException {
+        this.repository = repository;
+        this.concurrent = concurrent;
+        this.http = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.workers = Executors.newFixedThreadPool
+            (Runtime.getRuntime().availableProcessors() * 8);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "wine-server-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        http.createContext("/wines", this::handle);
+        http.setExecutor(workers);
+    }
+
+    /**
+     * Opens the data file and starts serving it
+     *
+     * @param dataFile the wines.dat file
+     * @param port the TCP port to listen on
+     * @return the running server
+     * @throws IOException if the file cannot be opened or the port bound
+     */
+    public static WineServer start(File dataFile, int port) throws IOException {
+        return start(WineRepository.open(dataFile), false, port);
+    }
+
+    /**
+     * Opens a sharded cellar, creating it if needed, and starts serving it
+     *
+     * @param dir the directory of the cellar
+     * @param shards the number of data files of the cellar
+     * @param port the TCP port to listen on
+     * @return the running server
+     * @throws IOException if the cellar cannot be opened or the port bound
+     */
+    public static WineServer startCellar(File dir, int shards, int port)
+            throws IOException {
+        return start(ShardedWineRepository.open(dir, shards), true, port);
+    }
+
+    private static WineServer start(WineCatalog repository,
+            boolean concurrent, int port) throws IOException {
+        WineServer server;
+        try {
+            server = new WineServer(repository, concurrent, port);
+        } catch (IOException ex) {
+            repository.close();
+            throw ex;
+        }
+        server.http.start();
+        return server;
+    }
+
+    /**
+     * Accessor for the port the server listens on
+     * @return the bound port
+     */
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, finishes the pending writes and closes the
+     * data files
+     *
+     * @throws IOException if the file cannot be closed cleanly
+     */
+    public void stop() throws IOException {
+        http.stop(1);
+        workers.shutdown();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        repository.close();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String path = ex.getRequestURI().getPath();
+            String rest = path.length() > "/wines".length()
+                ? path.substring("/wines/".length()) : "";
+            String method = ex.getRequestMethod();
+            if (rest.isEmpty() && method.equals("GET")) {
+                send(ex, 200, list(query(ex.getRequestURI().getRawQuery())));
+            } else if (rest.equals("import") && method.equals("POST")) {
+                send(ex, 200, WineJson.toJson(importCsv(ex)));
+            } else if (rest.equals("export") && method.equals("GET")) {
+                exportCsv(ex);
+            } else if (rest.isEmpty() && method.equals("POST")) {
+                Wine w = WineJson.fromJson(body(ex));
+                write(() -> repository.add(w));
+                send(ex, 201, WineJson.toJson(w));
+            } else if (!rest.isEmpty()) {
+                int id = Integer.parseInt(rest);
+                if (method.equals("GET")) {
+                    Wine w = read(() -> repository.get(id));
+                    if (w == null) {
+                        send(ex, 404, WineJson.error("No wine with ID " + id));
+                    } else {
+                        send(ex, 200, WineJson.toJson(w));
+                    }
+                } else if (method.equals("PUT")) {
+                    Wine w = WineJson.fromJson(body(ex));
+                    w.setWineID(id);
+                    write(() -> repository.update(w));
+                    send(ex, 200, WineJson.toJson(w));
+                } else if (method.equals("DELETE")) {
+                    write(() -> repository.delete(id));
+                    send(ex, 204, null);
+                } else {
+                    send(ex, 405, WineJson.error("Method not allowed"));
+                }
+            } else {
+                send(ex, 405, WineJson.error("Method not allowed"));
+            }
+        } catch (IllegalArgumentException e) {
+            send(ex, 400, WineJson.error(e.getMessage()));
+        } catch (IOException | RuntimeException e) {
+            send(ex, 500, WineJson.error(e.toString()));
+        } finally {
+            REQUESTS.recordSince(start);
+        }
+    }
+
+    private String list(Map<String, String> params) {
+        int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+        int limit = Integer.parseInt(params.getOrDefault("limit",
+                String.valueOf(DEFAULT_LIMIT)));
+        WineQuery q = new WineQuery();
+        boolean filtered = false;
+        if (params.containsKey("estate")) {
+            q.estate(params.get("estate"));
+            filtered = true;
+        }
+        if (params.containsKey("grape")) {
+            q.grape(params.get("grape"));
+            filtered = true;
+        }
+        if (params.containsKey("minYear") || params.containsKey("maxYear")) {
+            q.yearBetween(Integer.parseInt(params.getOrDefault("minYear",
+                    String.valueOf(Integer.MIN_VALUE))),
+                    Integer.parseInt(params.getOrDefault("maxYear",
+                    String.valueOf(Integer.MAX_VALUE))));
+            filtered = true;
+        }
+        if (params.containsKey("minPrice")) {
+            q.priceFrom(Double.parseDouble(params.get("minPrice")));
+            filtered = true;
+        }
+        if (params.containsKey("maxPrice")) {
+            q.priceUnder(Double.parseDouble(params.get("maxPrice")));
+            filtered = true;
+        }
+        boolean useIndex = filtered;
+        List<Wine> page = read(() -> {
+            List<Wine> all = useIndex ? repository.find(q) : repository.rows();
+            int from = Math.min(Math.max(0, offset), all.size());
+            int to = (int) Math.min(all.size(), (long) from + Math.max(0, limit));
+            return new ArrayList<>(all.subList(from, to));
+        });
+        return WineJson.toJson(page);
+    }
+
+    private <T> T read(Callable<T> action) {
+        if (concurrent) {
+            return call(action);
+        }
+        lock.readLock().lock();
+        try {
+            return call(action);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static <T> T call(Callable<T> action) {
+        try {
+            return action.call();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /*
+    * Hands a change to the writer thread, waits for it to be applied and
+    * then for it to be durable
+    */
+    private void write(Callable<CompletableFuture<Void>> change)
+            throws IOException {
+        if (concurrent) {
+            try {
+                call(change).join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+            return;
+        }
+        Future<CompletableFuture<Void>> applied = writer.submit(() -> {
+            lock.writeLock().lock();
+            try {
+                return change.call();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+        try {
+            applied.get().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing", e);
+        } catch (ExecutionException | CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /*
+    * Imports the CSV rows of the request body. Each batch is added like
+    * any other change: on the writer thread under the write lock, or
+    * directly for a sharded cellar.
+    */
+    private TransferReport importCsv(HttpExchange ex) throws IOException {
+        WineImporter importer = concurrent ? new WineImporter(repository)
+            : new WineImporter(repository, batch -> writer.execute(() -> {
+                lock.writeLock().lock();
+                try {
+                    batch.run();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }));
+        try (Reader in = new InputStreamReader(ex.getRequestBody(),
+                StandardCharsets.UTF_8)) {
+            return importer.importCsv(in);
+        }
+    }
+
+    /*
+    * Streams every wine as CSV in a chunked response, read from a snapshot
+    * while changes go on
+    */
+    private void exportCsv(HttpExchange ex) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+        ex.sendResponseHeaders(200, 0);
+        try (Writer out = new OutputStreamWriter(ex.getResponseBody(),
+                StandardCharsets.UTF_8)) {
+            new WineExporter().exportCsv(repository, out);
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(decode(pair.substring(0, eq)),
+                        decode(pair.substring(eq + 1)));
+            }
+        }
+        return params;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String body(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void send(HttpExchange ex, int status, String json)
+            throws IOException {
+        if (json == null) {
+            ex.sendResponseHeaders(status, -1);
+            ex.close();
+            return;
+        }
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+    BandwidthLimiter.java
+    Author: Scott Forsyth
+
+    Description
+    Keeps background copies of the wine file below a set number of bytes
+    per second
+*/
+package storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket for background I/O. Every chunk copied first takes its size
+ * out of the bucket, which refills at bytesPerSecond and holds at most one
+ * second worth of bytes, so a copy never runs faster than the limit for
+ * longer than a moment and the disk stays free for the interactive writes.
+ *
+ * @author Scott Forsyth
+ */
+public class BandwidthLimiter {
+
+    // no limit at all
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private final long bytesPerSecond;
+    private double available;
+    private long last = System.nanoTime();
+
+    /**
+     * Creates a limiter with a full bucket
+     *
+     * @param bytesPerSecond the largest sustained rate, or UNLIMITED
+     * @throws IllegalArgumentException if the rate is not positive
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bandwidth must be positive: "
+                    + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+    }
+
+    /**
+     * Accessor for the rate of the limiter
+     * @return the largest sustained rate in bytes per second
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Waits until the bytes may be read or written
+     *
+     * @param bytes the size of the next chunk
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond == UNLIMITED) {
+            return;
+        }
+        long now = System.nanoTime();
+        available = Math.min(bytesPerSecond, available
+                + (now - last) * (double) bytesPerSecond / 1e9);
+        last = now;
+        available -= bytes;
+        if (available < 0) {
+            // sleep off the debt, the bucket refills while we wait
+            long nanos = (long) (-available * 1e9 / bytesPerSecond);
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+    ChangeFilter.java
+    Author: Scott Forsyth
+
+    Description
+    Describes which wine changes a subscriber of a WineChangePublisher wants
+    to receive
+*/
+package storage;
+
+import models.Wine;
+
+/**
+ * A filter on wine changes. Every condition is optional and the conditions
+ * that are set must all match, so a filter with no conditions passes every
+ * change. For example "Merlot that just dropped under 12 bottles" is
+ * <pre>
+ *   new ChangeFilter().grape("Merlot").quantityBelow(12)
+ * </pre>
+ * Estate and grape are matched against the wine after the change, or the
+ * deleted wine for a deletion.
+ *
+ * @author Scott Forsyth
+ */
+public class ChangeFilter {
+
+    private String estate;
+    private String grape;
+    private int lowStock = -1;
+    private boolean priceChanges;
+
+    /**
+     * Only pass changes of wines from this estate
+     * @param estate the exact estate name
+     * @return this filter
+     */
+    public ChangeFilter estate(String estate) {
+        this.estate = estate;
+        return this;
+    }
+
+    /**
+     * Only pass changes of wines of this grape variety
+     * @param grape the exact grape name
+     * @return this filter
+     */
+    public ChangeFilter grape(String grape) {
+        this.grape = grape;
+        return this;
+    }
+
+    /**
+     * Only pass changes that bring a wine under a number of bottles: a wine
+     * added with fewer bottles, or a wine whose quantity falls from the
+     * threshold or more to under it. Deletions never pass.
+     *
+     * @param threshold the number of bottles a wine should have at least
+     * @return this filter
+     */
+    public ChangeFilter quantityBelow(int threshold) {
+        this.lowStock = threshold;
+        return this;
+    }
+
+    /**
+     * Only pass updates that change the price of a wine
+     * @return this filter
+     */
+    public ChangeFilter priceChanges() {
+        this.priceChanges = true;
+        return this;
+    }
+
+    /**
+     * Checks whether a change passes the filter
+     *
+     * @param change the change to check
+     * @return true if every condition that is set matches
+     */
+    public boolean matches(WineChange change) {
+        Wine w = change.current();
+        Wine old = change.previous();
+        if (estate != null && !estate.equals(w.getEstate())) {
+            return false;
+        }
+        if (grape != null && !grape.equals(w.getGrape())) {
+            return false;
+        }
+        if (lowStock >= 0) {
+            if (change.getKind() == WineChange.Kind.DELETED
+                    || w.getQuantity() >= lowStock
+                    || (old != null && old.getQuantity() < lowStock)) {
+                return false;
+            }
+        }
+        if (priceChanges) {
+            return change.getKind() == WineChange.Kind.UPDATED
+                && old.getPrice() != w.getPrice();
+        }
+        return true;
+    }
+}
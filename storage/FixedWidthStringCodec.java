@@ -0,0 +1,89 @@
+/*
+    FixedWidthStringCodec.java
+    Author: Scott Forsyth
+
+    Description
+    Reads and writes the fixed width, space padded UTF-16 String fields of
+    a wine record directly against a ByteBuffer
+*/
+package storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec for one fixed width String slot. A slot holds exactly size UTF-16
+ * chars (2 bytes each); shorter values are padded with spaces and longer
+ * values are truncated. The codec keeps a single scratch array, so decoding
+ * only allocates the resulting String and encoding allocates nothing. An
+ * instance is therefore not safe to share between threads.
+ *
+ * @author Scott Forsyth
+ */
+public class FixedWidthStringCodec {
+
+    private final int size;
+    private final char[] chars;
+
+    /**
+     * Creates a codec for slots of the given number of characters
+     *
+     * @param size the number of characters in the slot
+     */
+    public FixedWidthStringCodec(int size) {
+        this.size = size;
+        this.chars = new char[size];
+    }
+
+    /**
+     * Accessor for the width of the slot in bytes
+     *
+     * @return the number of bytes one slot occupies
+     */
+    public int byteSize() {
+        return size * 2;
+    }
+
+    /**
+     * Writes the value into the slot that starts at pos, padding it with
+     * spaces or truncating it to exactly size characters. The position of
+     * the buffer is not changed.
+     *
+     * @param buf the buffer to write into
+     * @param pos the absolute position of the first byte of the slot
+     * @param value the String to write, null is written as an empty slot
+     */
+    public void encode(ByteBuffer buf, int pos, String value) {
+        int len = value == null ? 0 : Math.min(value.length(), size);
+        for (int i = 0; i < len; i++) {
+            buf.putChar(pos + i * 2, value.charAt(i));
+        }
+        for (int i = len; i < size; i++) {
+            buf.putChar(pos + i * 2, ' ');
+        }
+    }
+
+    /**
+     * Reads the slot that starts at pos and returns its value without the
+     * padding. The trimming is done on the scratch array, so the returned
+     * String is the only object created. The position of the buffer is not
+     * changed.
+     *
+     * @param buf the buffer to read from
+     * @param pos the absolute position of the first byte of the slot
+     * @return the trimmed value stored in the slot
+     */
+    public String decode(ByteBuffer buf, int pos) {
+        for (int i = 0; i < size; i++) {
+            chars[i] = buf.getChar(pos + i * 2);
+        }
+        int start = 0;
+        int end = size;
+        while (start < end && chars[start] <= ' ') {
+            start++;
+        }
+        while (end > start && chars[end - 1] <= ' ') {
+            end--;
+        }
+        return start == end ? "" : new String(chars, start, end - start);
+    }
+}
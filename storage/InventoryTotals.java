@@ -0,0 +1,150 @@
+/*
+    InventoryTotals.java
+    Author: Scott Forsyth
+
+    Description
+    Running totals of the wines in one group: bottles, stock value and
+    averages
+*/
+package storage;
+
+/**
+ * Totals of a group of wines, for example all the Merlots or every wine of
+ * one vintage. Wines are added and taken out one at a time, so the totals
+ * can be kept up to date on every edit without scanning the wines again.
+ *
+ * @author Scott Forsyth
+ */
+public class InventoryTotals {
+
+    private final String group;
+    private long wines;
+    private long bottles;
+    private double value;
+    private double priceSum;
+
+    /**
+     * Creates empty totals
+     *
+     * @param group the name of the group, shown next to the totals
+     */
+    public InventoryTotals(String group) {
+        this.group = group;
+    }
+
+    /*
+    * Creates totals from the sums of a scan
+    */
+    InventoryTotals(String group, long wines, long bottles, double value,
+            double priceSum) {
+        this.group = group;
+        this.wines = wines;
+        this.bottles = bottles;
+        this.value = value;
+        this.priceSum = priceSum;
+    }
+
+    /**
+     * Adds a wine to the totals
+     *
+     * @param quantity the number of bottles of the wine
+     * @param price the price of one bottle
+     */
+    public void add(int quantity, double price) {
+        wines++;
+        bottles += quantity;
+        value += quantity * price;
+        priceSum += price;
+    }
+
+    /**
+     * Takes a wine that was added before out of the totals
+     *
+     * @param quantity the number of bottles the wine had when it was added
+     * @param price the price the wine had when it was added
+     */
+    public void remove(int quantity, double price) {
+        wines--;
+        bottles -= quantity;
+        value -= quantity * price;
+        priceSum -= price;
+        if (wines == 0) {
+            // do not leave rounding errors behind in an empty group
+            value = 0;
+            priceSum = 0;
+        }
+    }
+
+    /*
+    * Adds all the wines of other totals, used to build the overall totals
+    * out of the group totals of a scan
+    */
+    void addAll(InventoryTotals other) {
+        wines += other.wines;
+        bottles += other.bottles;
+        value += other.value;
+        priceSum += other.priceSum;
+    }
+
+    /**
+     * Accessor for the name of the group
+     * @return the group name
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Accessor for the number of wines
+     * @return the number of wines in the group
+     */
+    public long getWines() {
+        return wines;
+    }
+
+    /**
+     * Accessor for the number of bottles
+     * @return the total quantity of the wines in the group
+     */
+    public long getBottles() {
+        return bottles;
+    }
+
+    /**
+     * Accessor for the stock value
+     * @return the sum of quantity * price over the group
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Accessor for the average price of a wine in the group
+     * @return the mean price, or 0 for an empty group
+     */
+    public double getAveragePrice() {
+        return wines == 0 ? 0 : priceSum / wines;
+    }
+
+    /**
+     * Accessor for the average number of bottles of a wine in the group
+     * @return the mean quantity, or 0 for an empty group
+     */
+    public double getAverageQuantity() {
+        return wines == 0 ? 0 : (double) bottles / wines;
+    }
+
+    /**
+     * Returns a copy that does not change with these totals
+     * @return a copy of the totals
+     */
+    public InventoryTotals copy() {
+        return new InventoryTotals(group, wines, bottles, value, priceSum);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d wines, %d bottles, value %.2f", group,
+                wines, bottles, value);
+    }
+}
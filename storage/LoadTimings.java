@@ -0,0 +1,89 @@
+/*
+    LoadTimings.java
+    Author: Scott Forsyth
+
+    Description
+    How long each phase of a parallel load took
+*/
+package storage;
+
+/**
+ * Timings of a ParallelWineLoader run, split into the phases of the load:
+ * planning the segments, decoding them in parallel, and merging the
+ * decoded segments into the store in wineID order.
+ *
+ * @author Scott Forsyth
+ */
+public class LoadTimings {
+
+    private final long records;
+    private final int segments;
+    private final long planNanos;
+    private final long decodeNanos;
+    private final long mergeNanos;
+
+    LoadTimings(long records, int segments, long planNanos, long decodeNanos,
+            long mergeNanos) {
+        this.records = records;
+        this.segments = segments;
+        this.planNanos = planNanos;
+        this.decodeNanos = decodeNanos;
+        this.mergeNanos = mergeNanos;
+    }
+
+    /**
+     * Accessor for the number of live records that were loaded
+     * @return the number of loaded records
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Accessor for the number of segments the file was split into
+     * @return the number of segments
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Accessor for the time spent opening the file and planning segments
+     * @return the planning time in nanoseconds
+     */
+    public long getPlanNanos() {
+        return planNanos;
+    }
+
+    /**
+     * Accessor for the time spent decoding the segments in parallel
+     * @return the decoding time in nanoseconds
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * Accessor for the time spent merging segments in wineID order
+     * @return the merging time in nanoseconds
+     */
+    public long getMergeNanos() {
+        return mergeNanos;
+    }
+
+    /**
+     * Accessor for the time the whole load took
+     * @return the total time in nanoseconds
+     */
+    public long getTotalNanos() {
+        return planNanos + decodeNanos + mergeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records in %d segments: plan %.1f ms, "
+                + "decode %.1f ms, merge %.1f ms, total %.1f ms",
+                records, segments, planNanos / 1e6, decodeNanos / 1e6,
+                mergeNanos / 1e6, getTotalNanos() / 1e6);
+    }
+}
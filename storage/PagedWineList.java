@@ -0,0 +1,395 @@
+/*
+    PagedWineList.java
+    Author: Scott Forsyth
+
+    Description
+    A List of wines that reads its rows from wines.dat only when they are
+    needed, keeping a bounded cache of recently used pages
+*/
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.LatencyHistogram;
+import metrics.WineEvents;
+import metrics.WineMetrics;
+import models.Wine;
+
+/**
+ * Virtualized data source for the wine table. The list only knows which
+ * slot of the file holds each row; the records themselves are read a page
+ * of PAGE_SIZE rows at a time when a row is first asked for, which for a
+ * TableView means when it scrolls into view. Pages are kept in an LRU
+ * cache of at most maxPages pages, and after a page is read the next page
+ * is prefetched on a background thread so scrolling down does not wait for
+ * the disk.
+ * <p>
+ * Rows are in file order. Changes made through the list are kept in memory
+ * by slot so they are visible right away even if the background writer has
+ * not written them to the file yet, and are forgotten with written() once
+ * they are, so only the changes still waiting for the writer take memory.
+ *
+ * @author Scott Forsyth
+ */
+public class PagedWineList extends AbstractList<Wine> {
+
+    public static final int PAGE_SIZE = 512;
+    public static final int DEFAULT_MAX_PAGES = 256;
+
+    private static final LatencyHistogram PAGE_READS =
+        WineMetrics.get().histogram("records.pageRead");
+    private static final LongAdder READS =
+        WineMetrics.get().counter("records.read");
+
+    private final File dataFile;
+    private final RecordManager records;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final int maxPages;
+    private final Map<Integer, Wine[]> pages;
+    private final Map<Integer, Wine> changed = new HashMap<>();
+    private final ExecutorService prefetcher;
+    private int[] slots;
+    private int size;
+    // the slots of rows 0 to sortedRows - 1 are in ascending order
+    private int sortedRows;
+    // the row of every slot from sortedRows on, built when first needed
+    // and dropped whenever rows move
+    private Map<Integer, Integer> tailRows;
+    // changes whenever rows move, so pages read for old rows are dropped
+    private int generation;
+
+    /**
+     * Creates a paged list over the live records of a data file
+     *
+     * @param dataFile the wines.dat file
+     * @param records the record manager of the file, used to find the
+     * live slots and the slots of added wines
+     * @param maxPages the largest number of pages kept in memory
+     * @throws IOException if the file cannot be opened
+     */
+    public PagedWineList(File dataFile, RecordManager records, int maxPages)
+            throws IOException {
+        this.dataFile = dataFile;
+        this.records = records;
+        this.raf = new RandomAccessFile(dataFile, "r");
+        this.channel = raf.getChannel();
+        this.maxPages = maxPages;
+        this.pages = new LinkedHashMap<Integer, Wine[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Wine[]> e) {
+                return size() > PagedWineList.this.maxPages;
+            }
+        };
+        this.slots = records.liveSlots();
+        this.size = slots.length;
+        this.sortedRows = size;
+        this.prefetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "wine-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public Wine get(int index) {
+        checkRow(index);
+        int pageNo = index / PAGE_SIZE;
+        while (true) {
+            Wine[] page;
+            synchronized (this) {
+                Wine w = changed.get(slots[index]);
+                if (w != null) {
+                    return w;
+                }
+                page = pages.get(pageNo);
+            }
+            if (page == null) {
+                page = loadPage(pageNo);
+                prefetch(pageNo + 1);
+            }
+            Wine w = page[index % PAGE_SIZE];
+            if (w != null) {
+                return w;
+            }
+            // the row was changed when the page was read, and has been
+            // written and forgotten since, so its record is in the file
+            synchronized (this) {
+                pages.remove(pageNo, page);
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized Wine set(int index, Wine w) {
+        Wine old = get(index);
+        changed.put(slots[index], w);
+        return old;
+    }
+
+    /**
+     * Adds a wine that the record manager has already given a slot
+     */
+    @Override
+    public synchronized void add(int index, Wine w) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Row: " + index);
+        }
+        int slot = records.requireSlot(w.getWineID());
+        if (size == slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(16, size + (size >> 1)));
+        }
+        if (index == size && sortedRows == size
+                && (size == 0 || slots[size - 1] < slot)) {
+            sortedRows++;
+        } else {
+            sortedRows = Math.min(sortedRows, index);
+        }
+        System.arraycopy(slots, index, slots, index + 1, size - index);
+        slots[index] = slot;
+        size++;
+        changed.put(slot, w);
+        if (index < size - 1) {
+            tailRows = null;
+            pages.clear();
+            generation++;
+        } else if (tailRows != null && index >= sortedRows) {
+            tailRows.put(slot, index);
+        }
+        modCount++;
+    }
+
+    @Override
+    public synchronized Wine remove(int index) {
+        Wine old = get(index);
+        int slot = slots[index];
+        System.arraycopy(slots, index + 1, slots, index, size - index - 1);
+        size--;
+        if (index < sortedRows) {
+            sortedRows--;
+        }
+        tailRows = null;
+        changed.remove(slot);
+        pages.clear();
+        generation++;
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Forgets a changed wine once its record is durable in the file, unless
+     * the wine has been changed again since. The page that shows it is
+     * dropped so that it is read again with the new record, and pages
+     * being read right now are not kept, since they may hold the old one.
+     *
+     * @param w the wine whose write has completed
+     */
+    public synchronized void written(Wine w) {
+        int slot = records.slotOf(w.getWineID());
+        if (slot >= 0 && changed.remove(slot, w)) {
+            int row = indexOfId(w.getWineID());
+            if (row >= 0) {
+                pages.remove(row / PAGE_SIZE);
+            }
+            generation++;
+        }
+    }
+
+    /**
+     * Accessor for the number of changed wines kept in memory
+     *
+     * @return the wines not yet known to be written to the file
+     */
+    public synchronized int getPendingChanges() {
+        return changed.size();
+    }
+
+    /**
+     * Finds the row that shows a wine. The rows read from the file are in
+     * slot order and are binary searched; rows added out of slot order, in
+     * reused slots, are looked up in a map from slot to row that is built
+     * again only after rows move.
+     *
+     * @param wineID the wineID to look for
+     * @return the row of the wine, or -1 if it is not in the list
+     */
+    public synchronized int indexOfId(int wineID) {
+        int slot = records.slotOf(wineID);
+        if (slot < 0) {
+            return -1;
+        }
+        int row = Arrays.binarySearch(slots, 0, sortedRows, slot);
+        if (row >= 0) {
+            return row;
+        }
+        if (tailRows == null) {
+            tailRows = new HashMap<>();
+            for (row = sortedRows; row < size; row++) {
+                tailRows.put(slots[row], row);
+            }
+        }
+        Integer tail = tailRows.get(slot);
+        return tail == null ? -1 : tail;
+    }
+
+    /*
+    * Follows a compaction of the file. The swap moves the records to new
+    * slots and returns the new slot of every old one; it runs with the list
+    * locked so no row is looked up between the record manager moving and
+    * the list following it. Every change is in the new file by then, so
+    * the rows changed in memory are simply moved along.
+    */
+    synchronized void moveSlots(Callable<int[]> swap) throws Exception {
+        int[] moved = swap.call();
+        Map<Integer, Wine> kept = new HashMap<>(changed);
+        changed.clear();
+        for (Map.Entry<Integer, Wine> e : kept.entrySet()) {
+            if (e.getKey() < moved.length && moved[e.getKey()] >= 0) {
+                changed.put(moved[e.getKey()], e.getValue());
+            }
+        }
+        sortedRows = 0;
+        tailRows = null;
+        for (int row = 0; row < size; row++) {
+            slots[row] = moved[slots[row]];
+            if (sortedRows == row && (row == 0
+                    || slots[row - 1] < slots[row])) {
+                sortedRows++;
+            }
+        }
+        FileChannel old = channel;
+        raf = new RandomAccessFile(dataFile, "r");
+        channel = raf.getChannel();
+        old.close();
+        pages.clear();
+        generation++;
+    }
+
+    /**
+     * Stops the prefetch thread and closes the file
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        prefetcher.shutdownNow();
+        channel.close();
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size()) {
+            throw new IndexOutOfBoundsException("Row: " + row);
+        }
+    }
+
+    private void prefetch(int pageNo) {
+        if ((long) pageNo * PAGE_SIZE < size()) {
+            prefetcher.execute(() -> {
+                boolean cached;
+                synchronized (this) {
+                    cached = pages.containsKey(pageNo);
+                }
+                if (!cached) {
+                    loadPage(pageNo);
+                }
+            });
+        }
+    }
+
+    /*
+    * Reads the records of one page. Rows whose slots follow each other are
+    * read with a single positional read, which is the whole page unless
+    * slots were reused. Rows changed in memory are skipped since get()
+    * never reads them from the page, and their records may not be in the
+    * file yet.
+    */
+    private Wine[] loadPage(int pageNo) {
+        int[] pageSlots;
+        boolean[] skip;
+        int gen;
+        FileChannel ch;
+        synchronized (this) {
+            int first = pageNo * PAGE_SIZE;
+            pageSlots = Arrays.copyOfRange(slots, first,
+                    Math.min(size, first + PAGE_SIZE));
+            skip = new boolean[pageSlots.length];
+            for (int i = 0; i < pageSlots.length; i++) {
+                skip[i] = changed.containsKey(pageSlots[i]);
+            }
+            gen = generation;
+            ch = channel;
+        }
+        WineEvents.PageRead event = new WineEvents.PageRead();
+        event.begin();
+        long began = System.nanoTime();
+        Wine[] page = new Wine[pageSlots.length];
+        WineRecordCodec codec = new WineRecordCodec();
+        ByteBuffer buf = ByteBuffer.allocate
+            (PAGE_SIZE * WineRecordCodec.RECORD_SIZE);
+        try {
+            int start = 0;
+            while (start < pageSlots.length) {
+                if (skip[start]) {
+                    start++;
+                    continue;
+                }
+                int end = start + 1;
+                while (end < pageSlots.length && !skip[end]
+                        && pageSlots[end] == pageSlots[end - 1] + 1) {
+                    end++;
+                }
+                buf.clear().limit((end - start) * WineRecordCodec.RECORD_SIZE);
+                long pos = (long) pageSlots[start] * WineRecordCodec.RECORD_SIZE;
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, pos + buf.position()) < 0) {
+                        throw new IOException("Unexpected end of wine file");
+                    }
+                }
+                for (int i = start; i < end; i++) {
+                    page[i] = codec.decode(buf,
+                            (i - start) * WineRecordCodec.RECORD_SIZE);
+                }
+                start = end;
+            }
+            PAGE_READS.recordSince(began);
+            READS.add(pageSlots.length);
+            event.page = pageNo;
+            event.records = pageSlots.length;
+            event.commit();
+        } catch (ClosedChannelException ex) {
+            synchronized (this) {
+                if (gen != generation) {
+                    // the file was compacted while the page was read
+                    return loadPage(pageNo);
+                }
+            }
+            throw new UncheckedIOException(ex);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        synchronized (this) {
+            if (gen == generation) {
+                pages.put(pageNo, page);
+            }
+        }
+        return page;
+    }
+}
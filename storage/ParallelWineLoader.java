@@ -0,0 +1,181 @@
+/*
+    ParallelWineLoader.java
+    Author: Scott Forsyth
+
+    Description
+    Loads wines.dat by decoding independent segments of the file on all
+    cores at once
+*/
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel version of WineFileLoader. Since every record has the same size
+ * the file splits into segments of whole records that can be decoded
+ * independently. Each segment is mapped and decoded by its own fork/join
+ * task into a private WineStore, and the segments are then merged into the
+ * target store ordered by wineID, so the result does not depend on which
+ * slots were reused. The merge looks up every distinct string of a segment
+ * once and then copies the rows with plain array lookups, so it costs
+ * little next to the decoding.
+ *
+ * @author Scott Forsyth
+ */
+public class ParallelWineLoader {
+
+    // smallest number of records worth giving to a task of its own
+    static final int MIN_SEGMENT = 1 << 16;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a loader that uses the common fork/join pool
+     */
+    public ParallelWineLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a loader that runs its tasks in the given pool
+     *
+     * @param pool the pool that decodes the segments
+     */
+    public ParallelWineLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Loads every live record of the file into the store, in wineID order
+     *
+     * @param f the data file
+     * @param store the store that receives the rows
+     * @return how long each phase of the load took
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public LoadTimings load(File f, WineStore store) throws IOException {
+        long start = System.nanoTime();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+                FileChannel channel = raf.getChannel()) {
+            long num = channel.size() / WineRecordCodec.RECORD_SIZE;
+            int count = (int) Math.max(1, Math.min(num / MIN_SEGMENT,
+                    pool.getParallelism() * 4L));
+            List<Segment> segments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                segments.add(new Segment(channel, num * i / count,
+                        num * (i + 1) / count));
+            }
+            long planned = System.nanoTime();
+
+            try {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        ForkJoinTask.invokeAll(segments);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            long decoded = System.nanoTime();
+
+            long records = merge(segments, store);
+            long merged = System.nanoTime();
+            return new LoadTimings(records, count, planned - start,
+                    decoded - planned, merged - decoded);
+        }
+    }
+
+    /*
+    * Appends the rows of all segments to the store in wineID order. Every
+    * row is placed by its wineID in a table of (segment, row) references,
+    * which sorts them in a single pass. The string codes of each segment
+    * are translated into codes of the store once, up front.
+    */
+    private static long merge(List<Segment> segments, WineStore store) {
+        int maxId = -1;
+        long records = 0;
+        for (Segment s : segments) {
+            for (int row = 0; row < s.rows.size(); row++) {
+                maxId = Math.max(maxId, s.rows.getWineID(row));
+            }
+            records += s.rows.size();
+        }
+        long[] refs = new long[maxId + 1];
+        Arrays.fill(refs, -1);
+        for (int seg = 0; seg < segments.size(); seg++) {
+            WineStore rows = segments.get(seg).rows;
+            for (int row = 0; row < rows.size(); row++) {
+                refs[rows.getWineID(row)] = ((long) seg << 32) | row;
+            }
+        }
+        WineStore[] sources = new WineStore[segments.size()];
+        int[][] codes = new int[segments.size()][];
+        for (int seg = 0; seg < sources.length; seg++) {
+            sources[seg] = segments.get(seg).rows;
+            codes[seg] = store.codesFrom(sources[seg]);
+        }
+        store.ensureCapacity(store.size() + (int) records);
+        for (long ref : refs) {
+            if (ref >= 0) {
+                int seg = (int) (ref >>> 32);
+                store.addFrom(sources[seg], (int) ref, codes[seg]);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Decodes the records from slot first (inclusive) to slot last
+     * (exclusive) into a private store
+     */
+    private static class Segment extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final FileChannel channel;
+        final long first;
+        final long last;
+        final WineStore rows = new WineStore();
+
+        Segment(FileChannel channel, long first, long last) {
+            this.channel = channel;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            WineRecordCodec codec = new WineRecordCodec();
+            rows.ensureCapacity((int) (last - first));
+            long end = last * WineRecordCodec.RECORD_SIZE;
+            try {
+                for (long start = first * WineRecordCodec.RECORD_SIZE;
+                        start < end; start += WineFileLoader.WINDOW_SIZE) {
+                    long size = Math.min(WineFileLoader.WINDOW_SIZE, end - start);
+                    MappedByteBuffer buf = channel.map
+                        (FileChannel.MapMode.READ_ONLY, start, size);
+                    for (int pos = 0; pos < size;
+                            pos += WineRecordCodec.RECORD_SIZE) {
+                        if (buf.getInt(pos) != RecordManager.TOMBSTONE) {
+                            rows.add(codec.decode(buf, pos));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
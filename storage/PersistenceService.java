@@ -0,0 +1,978 @@
+/*
+    PersistenceService.java
+    Author: Scott Forsyth
+
+    Description
+    Writes wine changes to wines.dat on a background thread so that the
+    caller never waits for the disk
+*/
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import metrics.LatencyHistogram;
+import metrics.WineEvents;
+import metrics.WineMetrics;
+import models.Wine;
+
+/**
+ * Background persistence for the wine file. The RecordManager bookkeeping
+ * (new wineIDs, slots, the free list) is done right away on the calling
+ * thread because it only touches memory. The actual writes are queued and
+ * run in order by a single writer thread that shares the one long-lived
+ * FileChannel of the RecordManager.
+ * <p>
+ * The writer uses group commit: it collects the queued changes into a
+ * batch, appends the batch to the WriteAheadLog and makes it durable with a
+ * single fsync, and only then writes the records into wines.dat. After a
+ * write the writer waits up to commitDelay milliseconds for more changes
+ * to join the batch, so a larger delay gives fewer fsyncs and a smaller
+ * one gives lower latency. The log is emptied at a checkpoint, once the
+ * data file itself has been synced.
+ * <p>
+ * Every change returns a CompletableFuture that completes once the change
+ * is durable, so a GUI can report failures without blocking, for example
+ * with whenCompleteAsync(handler, Platform::runLater). A change is durable
+ * once its batch is in the log, and only a failure to log it fails the
+ * future. If a logged batch then cannot be written into wines.dat, the
+ * replay at the next open writes it, and the service stops: the log is
+ * kept, later changes, scans, backups and compactions fail, and the file
+ * has to be opened again.
+ * <p>
+ * backup() and compact() copy the live records of the file on a background
+ * maintenance thread, at a limited number of bytes per second, from a
+ * SlotSnapshot taken by the writer. Writes go on while they copy. A
+ * compaction then catches up with the slots written in the meantime and
+ * swaps its copy in on the writer thread, which only holds up new changes
+ * for that last step.
+ * <p>
+ * scan() reads every wine from a SlotSnapshot of its own in the same way,
+ * so any number of readers can go through the whole file while the writer
+ * goes on: the writer saves the old record of a slot before it overwrites
+ * it, and never waits for a reader longer than the read of one chunk.
+ * Only the swap of a compaction waits for the scans that are running.
+ *
+ * @author Scott Forsyth
+ */
+public class PersistenceService {
+
+    public static final long DEFAULT_COMMIT_DELAY = 2;
+    public static final int DEFAULT_MAX_BATCH = 512;
+
+    // log size that triggers a checkpoint of the data file
+    private static final long CHECKPOINT_SIZE = 4L << 20;
+
+    private static final LatencyHistogram FSYNC =
+        WineMetrics.get().histogram("commit.fsync");
+    private static final LatencyHistogram DURABLE =
+        WineMetrics.get().histogram("commit.durable");
+    private static final LatencyHistogram SWAP =
+        WineMetrics.get().histogram("maintenance.swap");
+    private static final LongAdder BATCHES =
+        WineMetrics.get().counter("commit.batches");
+    private static final LongAdder CHANGES =
+        WineMetrics.get().counter("commit.changes");
+    private static final LongAdder DATA_FAILURES =
+        WineMetrics.get().counter("commit.dataFileFailures");
+
+    private final RecordManager records;
+    private final WriteAheadLog log;
+    private final long commitDelay;
+    private final int maxBatch;
+    // queued by close() behind the last change
+    private static final Change STOP = new Change(-1, null);
+
+    private final BlockingQueue<Change> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private final Object closeLock = new Object();
+    private boolean closed;
+    private boolean maintaining;
+    // set by the writer when a logged batch could not be written into the
+    // data file; the log is never emptied after that
+    private volatile Exception dataFailure;
+    private CompletableFuture<Void> lastWrite =
+        CompletableFuture.completedFuture(null);
+    // the snapshots of running scans, backups and compactions, added by
+    // the writer
+    private final List<SlotSnapshot> snapshots = new CopyOnWriteArrayList<>();
+    // held by scans, and exclusively while a compaction swaps the file
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock(true);
+
+    /**
+     * Creates a service that writes through the given record manager and log
+     *
+     * @param records the record manager of the data file
+     * @param log the write-ahead log of the data file
+     * @param commitDelay the longest time in milliseconds the writer waits
+     * for more changes before committing a batch
+     * @param maxBatch the largest number of changes committed with one fsync
+     */
+    public PersistenceService(RecordManager records, WriteAheadLog log,
+            long commitDelay, int maxBatch) {
+        this.records = records;
+        this.log = log;
+        this.commitDelay = commitDelay;
+        this.maxBatch = maxBatch;
+        this.writer = new Thread(this::drain, "wine-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // queued writes still reach the file when the JVM exits normally
+        this.shutdownHook = new Thread(this::closeQuietly, "wine-writer-close");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Opens a data file with the default group commit settings
+     *
+     * @param dataFile the wines.dat file
+     * @return a service writing to the file
+     * @throws IOException if the file, its log or its index cannot be read
+     */
+    public static PersistenceService open(File dataFile) throws IOException {
+        return open(dataFile, DEFAULT_COMMIT_DELAY, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Opens a data file, replaying its log first if the last run crashed
+     *
+     * @param dataFile the wines.dat file
+     * @param commitDelay the longest time in milliseconds the writer waits
+     * for more changes before committing a batch
+     * @param maxBatch the largest number of changes committed with one fsync
+     * @return a service writing to the file
+     * @throws IOException if the file, its log or its index cannot be read
+     */
+    public static PersistenceService open(File dataFile, long commitDelay,
+            int maxBatch) throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(dataFile);
+        return new PersistenceService(RecordManager.open(dataFile), log,
+                commitDelay, maxBatch);
+    }
+
+    /**
+     * Accessor for the record manager used by this service
+     *
+     * @return the RecordManager of the data file
+     */
+    public RecordManager getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the future of the last write queued. Writes complete in the
+     * order they were queued, so when it completes every earlier write has
+     * completed too.
+     *
+     * @return the future of the last add, update or delete queued
+     */
+    public synchronized CompletableFuture<Void> lastWrite() {
+        return lastWrite;
+    }
+
+    /**
+     * Gives the wine its wineID at once and queues the write of its record
+     *
+     * @param w the wine to add, its wineID is set by this method
+     * @return a future that completes when the record is durable
+     */
+    public synchronized CompletableFuture<Void> add(Wine w) {
+        return submit(records.allocate(w), w);
+    }
+
+    /**
+     * Queues the write of the new values of an existing wine
+     *
+     * @param w the wine with the new values and an existing wineID
+     * @return a future that completes when the record is durable
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    public synchronized CompletableFuture<Void> update(Wine w) {
+        return submit(records.requireSlot(w.getWineID()), w);
+    }
+
+    /**
+     * Frees the slot of a wine at once and queues the write of its tombstone
+     *
+     * @param wineID the wineID of the wine to delete
+     * @return a future that completes when the tombstone is durable
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    public synchronized CompletableFuture<Void> delete(int wineID) {
+        return submit(records.release(wineID), null);
+    }
+
+    /**
+     * Gives many new wines their wineIDs at once and queues their records
+     * as one atomic change, logged as a group like updateAll(). The wines
+     * get consecutive slots at the end of the file, even if there are free
+     * slots, so their records go to the file in a few large writes. Bulk
+     * imports add their batches this way.
+     *
+     * @param wines the wines to add, their wineIDs are set by this method
+     * @return a future that completes when every record is durable
+     */
+    public synchronized CompletableFuture<Void> addAll(List<Wine> wines) {
+        if (closed) {
+            throw new IllegalStateException("The wine file is closed");
+        }
+        if (wines.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        int[] slots = new int[wines.size()];
+        Wine[] added = wines.toArray(new Wine[0]);
+        for (int i = 0; i < added.length; i++) {
+            slots[i] = records.allocateAtEnd(added[i]);
+        }
+        return queueWrite(new Change(slots, added));
+    }
+
+    /**
+     * Queues the new values of many existing wines as one atomic change.
+     * The records are logged as a group that a crash replays entirely or
+     * not at all, and are written in slot order, with the records of
+     * consecutive slots going to the file in one write. If the same wine
+     * is given more than once its last values win.
+     *
+     * @param wines the wines with the new values and existing wineIDs
+     * @return a future that completes when every record is durable
+     * @throws IllegalArgumentException if one of the wineIDs does not exist,
+     *     in which case nothing is queued
+     */
+    public synchronized CompletableFuture<Void> updateAll(List<Wine> wines) {
+        long[] order = new long[wines.size()];
+        for (int i = 0; i < order.length; i++) {
+            int slot = records.requireSlot(wines.get(i).getWineID());
+            // sorts by slot, and by position for the same slot
+            order[i] = (long) slot << 32 | i;
+        }
+        Arrays.sort(order);
+        int n = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (i + 1 == order.length
+                    || order[i + 1] >>> 32 != order[i] >>> 32) {
+                order[n++] = order[i];
+            }
+        }
+        int[] slots = new int[n];
+        Wine[] sorted = new Wine[n];
+        for (int i = 0; i < n; i++) {
+            slots[i] = (int) (order[i] >>> 32);
+            sorted[i] = wines.get((int) order[i]);
+        }
+        if (closed) {
+            throw new IllegalStateException("The wine file is closed");
+        }
+        return queueWrite(new Change(slots, sorted));
+    }
+
+    /**
+     * Writes a consistent copy of every live wine, as it was when the backup
+     * started, to a version 2 file. The copy is written next to the target
+     * and renamed once it is complete, so the target never holds half a
+     * backup.
+     *
+     * @param target the backup file to create or overwrite
+     * @param bytesPerSecond the most the data file is read per second, or
+     *     BandwidthLimiter.UNLIMITED
+     * @return a future with the number of wines backed up
+     * @throws IllegalStateException if the file is closed or a backup or
+     *     compaction is already running
+     */
+    public CompletableFuture<TransferReport> backup(File target,
+            long bytesPerSecond) {
+        BandwidthLimiter limiter = new BandwidthLimiter(bytesPerSecond);
+        return maintain("backup", taken -> {
+            TransferReport report = new TransferReport();
+            File part = new File(target.getPath() + ".part");
+            WineRecordCodec codec = new WineRecordCodec();
+            WineV2Writer out = new WineV2Writer(part);
+            boolean complete = false;
+            try {
+                copySnapshot(taken, limiter, (slot, buf, offset) -> {
+                    out.write(codec.decode(buf, offset));
+                    report.recordDone();
+                });
+                // close() forces the copy to disk, so the rename can only
+                // ever expose a complete backup
+                out.close();
+                complete = true;
+            } finally {
+                dropSnapshot(taken);
+                if (!complete) {
+                    try {
+                        out.close();
+                    } finally {
+                        part.delete();
+                    }
+                }
+            }
+            Files.move(part.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            report.finish();
+            return report;
+        });
+    }
+
+    /**
+     * Compacts the data file: copies its live records without the
+     * tombstones into a new file while writes go on, then swaps the new file
+     * in with an atomic rename. The slots of the wines change, wineIDs do
+     * not.
+     *
+     * @param bytesPerSecond the most the data file is read per second, or
+     *     BandwidthLimiter.UNLIMITED
+     * @return a future with the number of wines in the compacted file
+     * @throws IllegalStateException if the file is closed or a backup or
+     *     compaction is already running
+     */
+    public CompletableFuture<TransferReport> compact(long bytesPerSecond) {
+        return compact(bytesPerSecond, null);
+    }
+
+    /*
+    * Compacts the file and moves the rows of a paged list to their new
+    * slots as part of the swap
+    */
+    CompletableFuture<TransferReport> compact(long bytesPerSecond,
+            PagedWineList paged) {
+        BandwidthLimiter limiter = new BandwidthLimiter(bytesPerSecond);
+        return maintain("compact", taken -> {
+            TransferReport report = new TransferReport();
+            File dataFile = records.getDataFile();
+            Compaction c = new Compaction(new File(dataFile.getPath()
+                    + ".compact"), records.getNextId());
+            try {
+                SlotSnapshot snap = copySnapshot(taken, limiter,
+                        (slot, buf, offset) -> {
+                    c.copy(slot, buf, offset);
+                    report.recordDone();
+                });
+                // the swap replaces the file the scans are reading
+                fileLock.writeLock().lock();
+                try {
+                    await(onWriter(() -> {
+                        swap(c, snap, paged);
+                        return null;
+                    }));
+                } finally {
+                    fileLock.writeLock().unlock();
+                }
+            } finally {
+                dropSnapshot(taken);
+                c.close();
+                c.getFile().delete();
+            }
+            report.finish();
+            return report;
+        });
+    }
+
+    /**
+     * Waits for the queued writes, then syncs the data file, saves the index,
+     * empties the log and closes the files. Calling it more than once has no
+     * effect.
+     *
+     * @throws IOException if the files cannot be closed cleanly
+     */
+    public void close() throws IOException {
+        // not the lock of the service, which the writer takes for a swap
+        synchronized (closeLock) {
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        records.close();
+        if (dataFailure == null) {
+            log.reset();
+        }
+        log.close();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            // already shutting down, the hook is the caller
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            // nothing left to report to at JVM shutdown
+        }
+    }
+
+    /*
+    * Runs a backup or compaction on its own maintenance thread, one at a
+    * time. The snapshot is queued before this returns, so it holds every
+    * change made before the call and none made after it.
+    */
+    private synchronized CompletableFuture<TransferReport> maintain(String kind,
+            Maintenance job) {
+        if (closed) {
+            throw new IllegalStateException("The wine file is closed");
+        }
+        if (maintaining) {
+            throw new IllegalStateException
+                ("A backup or compaction is already running");
+        }
+        if (dataFailure != null) {
+            throw new IllegalStateException(dataFileFailed());
+        }
+        maintaining = true;
+        CompletableFuture<SlotSnapshot> taken =
+            onWriter(this::takeSnapshot);
+        CompletableFuture<TransferReport> done = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            WineEvents.Maintenance event = new WineEvents.Maintenance();
+            event.begin();
+            TransferReport result = null;
+            Exception failure = null;
+            try {
+                result = job.run(taken);
+                WineMetrics.get().histogram("maintenance." + kind)
+                    .record(result.getElapsedNanos());
+                event.kind = kind;
+                event.records = result.getRecords();
+                event.commit();
+            } catch (Exception ex) {
+                failure = ex;
+            }
+            synchronized (this) {
+                maintaining = false;
+            }
+            if (failure == null) {
+                done.complete(result);
+            } else {
+                done.completeExceptionally(failure);
+            }
+        }, "wine-maintenance");
+        t.setDaemon(true);
+        t.start();
+        return done;
+    }
+
+    /**
+     * Passes every live wine to a consumer as it was when the scan started.
+     * The wines are read from the data file through a snapshot, without
+     * any lock the writer needs, so changes go on while the scan runs and
+     * it sees every change made before the call and none made after it.
+     *
+     * @param action receives each wine, in slot order
+     * @throws IOException if the file cannot be read
+     * @throws IllegalStateException if the file is closed
+     */
+    public void scan(Consumer<Wine> action) throws IOException {
+        if (dataFailure != null) {
+            throw dataFileFailed();
+        }
+        WineRecordCodec codec = new WineRecordCodec();
+        fileLock.readLock().lock();
+        try {
+            CompletableFuture<SlotSnapshot> taken =
+                onWriter(this::takeSnapshot);
+            try {
+                copySnapshot(taken,
+                        new BandwidthLimiter(BandwidthLimiter.UNLIMITED),
+                        (slot, buf, offset) ->
+                        action.accept(codec.decode(buf, offset)));
+            } finally {
+                dropSnapshot(taken);
+            }
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning", ex);
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /*
+    * Takes a snapshot on the writer thread; from now on the writer saves
+    * the old records for it
+    */
+    private SlotSnapshot takeSnapshot() throws IOException {
+        SlotSnapshot snap = new SlotSnapshot(records);
+        snapshots.add(snap);
+        return snap;
+    }
+
+    /*
+    * Stops saving old records for a snapshot, whether or not the writer
+    * has taken it yet
+    */
+    private void dropSnapshot(CompletableFuture<SlotSnapshot> taken) {
+        taken.thenAccept(snapshots::remove);
+    }
+
+    /*
+    * Waits for the snapshot to be taken and copies it out. The snapshot
+    * stays set until the caller drops it.
+    */
+    private SlotSnapshot copySnapshot(CompletableFuture<SlotSnapshot> taken,
+            BandwidthLimiter limiter, SlotSnapshot.RecordSink sink)
+            throws Exception {
+        SlotSnapshot snap = await(taken);
+        snap.copy(limiter, sink);
+        return snap;
+    }
+
+    /*
+    * Last step of a compaction, on the writer thread. New changes wait on
+    * the lock of the service while the changes already queued, which use
+    * the old slots, are written, the copy catches up with every slot
+    * written since the snapshot, and the copy replaces the data file. The
+    * log is emptied before the rename because its entries are for the old
+    * slots: up to the rename the old file is complete on its own, and after
+    * it the copy is.
+    */
+    private void swap(Compaction c, SlotSnapshot snap, PagedWineList paged)
+            throws Exception {
+        long start = System.nanoTime();
+        if (dataFailure != null) {
+            throw dataFileFailed();
+        }
+        synchronized (this) {
+            List<Change> queued = new ArrayList<>();
+            queue.drainTo(queued);
+            boolean stop = queued.remove(STOP);
+            commit(queued);
+            c.catchUp(records, snap.getWritten());
+            c.close();
+            records.force();
+            log.reset();
+            File compacted = c.getFile();
+            if (paged != null) {
+                paged.moveSlots(() -> records.replaceFile(compacted,
+                        c.getNewSlotOfId()));
+            } else {
+                records.replaceFile(compacted, c.getNewSlotOfId());
+            }
+            snapshots.remove(snap);
+            if (stop) {
+                queue.add(STOP);
+            }
+        }
+        SWAP.recordSince(start);
+    }
+
+    /*
+    * Queues an action for the writer thread, behind the changes queued so
+    * far
+    */
+    private synchronized <T> CompletableFuture<T> onWriter(Callable<T> action) {
+        CompletableFuture<T> done = new CompletableFuture<>();
+        Change task = new Change(() -> {
+            try {
+                done.complete(action.call());
+            } catch (Exception | Error ex) {
+                done.completeExceptionally(ex);
+            }
+        });
+        if (closed) {
+            throw new IllegalStateException("The wine file is closed");
+        }
+        queue.add(task);
+        return done;
+    }
+
+    private static <T> T await(CompletableFuture<T> done) throws Exception {
+        try {
+            return done.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception
+                ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    private synchronized CompletableFuture<Void> submit(int slot, Wine w) {
+        if (closed) {
+            throw new IllegalStateException("The wine file is closed");
+        }
+        return queueWrite(new Change(slot, w));
+    }
+
+    /*
+    * True once a logged batch could not be written into the data file, so
+    * the file lacks changes that only the log holds
+    */
+    boolean isDataFileBehind() {
+        return dataFailure != null;
+    }
+
+    /*
+    * The failure reported for every change after the data file could not
+    * be written
+    */
+    private IOException dataFileFailed() {
+        return new IOException("The data file could not be written; the "
+                + "log keeps the changes made so far for the next open",
+                dataFailure);
+    }
+
+    private synchronized CompletableFuture<Void> queueWrite(Change change) {
+        queue.add(change);
+        lastWrite = change.done;
+        return change.done;
+    }
+
+    /*
+    * Body of the writer thread. Commits one batch at a time until it finds
+    * the STOP marker queued by close().
+    */
+    private void drain() {
+        List<Change> batch = new ArrayList<>(maxBatch);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                stop = collect(batch);
+            } catch (InterruptedException ex) {
+                // the writer is only stopped through the STOP marker
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    /*
+    * Fills the batch with the next change and whatever else arrives within
+    * the commit delay. Returns true when the STOP marker was reached.
+    */
+    private boolean collect(List<Change> batch) throws InterruptedException {
+        Change next = queue.take();
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(commitDelay);
+        while (next != STOP) {
+            batch.add(next);
+            // a task ends the batch, it may change what later changes mean
+            if (batch.size() == maxBatch || next.task != null) {
+                return false;
+            }
+            long wait = deadline - System.nanoTime();
+            next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS)
+                : queue.poll();
+            if (next == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    * Writes a batch, running the actions queued for the writer thread in
+    * their place in the queue
+    */
+    private void commit(List<Change> batch) {
+        int from = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Change c = batch.get(i);
+            if (c.task != null) {
+                write(batch.subList(from, i));
+                c.task.run();
+                from = i + 1;
+            }
+        }
+        write(batch.subList(from, batch.size()));
+    }
+
+    private void write(List<Change> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (dataFailure != null) {
+            IOException ex = dataFileFailed();
+            for (Change c : batch) {
+                c.done.completeExceptionally(ex);
+            }
+            return;
+        }
+        WineEvents.Commit event = new WineEvents.Commit();
+        event.begin();
+        int count = 0;
+        try {
+            for (Change c : batch) {
+                if (c.slots != null) {
+                    log.appendGroup(c.slots.length);
+                    for (int i = 0; i < c.slots.length; i++) {
+                        log.appendPut(c.slots[i], c.wines[i]);
+                    }
+                    count += c.slots.length;
+                    continue;
+                }
+                count++;
+                if (c.wine == null) {
+                    log.appendDelete(c.slot);
+                } else {
+                    log.appendPut(c.slot, c.wine);
+                }
+            }
+            long start = System.nanoTime();
+            log.commit();
+            FSYNC.recordSince(start);
+        } catch (IOException | RuntimeException ex) {
+            for (Change c : batch) {
+                c.done.completeExceptionally(ex);
+            }
+            return;
+        }
+        // the batch is durable now: replay applies it even if writing it
+        // into the data file fails
+        try {
+            for (Change c : batch) {
+                for (SlotSnapshot snap : snapshots) {
+                    if (c.slots == null) {
+                        snap.beforeWrite(c.slot);
+                        continue;
+                    }
+                    for (int slot : c.slots) {
+                        snap.beforeWrite(slot);
+                    }
+                }
+                if (c.slots != null) {
+                    records.writeSorted(c.slots, c.wines);
+                    continue;
+                }
+                if (c.wine == null) {
+                    records.writeTombstone(c.slot);
+                } else {
+                    records.writeSlot(c.slot, c.wine);
+                }
+            }
+            if (log.size() >= CHECKPOINT_SIZE) {
+                records.force();
+                log.reset();
+            }
+        } catch (IOException | RuntimeException ex) {
+            dataFailure = ex;
+            DATA_FAILURES.increment();
+        }
+        long now = System.nanoTime();
+        for (Change c : batch) {
+            DURABLE.record(now - c.queued);
+            c.done.complete(null);
+        }
+        BATCHES.increment();
+        CHANGES.add(count);
+        event.changes = count;
+        event.bytes = (long) count * WineRecordCodec.RECORD_SIZE;
+        event.commit();
+    }
+
+    /**
+     * A backup or compaction, given the snapshot it copies once the writer
+     * has taken it
+     */
+    private interface Maintenance {
+        TransferReport run(CompletableFuture<SlotSnapshot> taken)
+            throws Exception;
+    }
+
+    /**
+     * One queued record write, or a tombstone when wine is null, or an
+     * action to run on the writer thread when task is set, or the atomic
+     * write of many records in slot order when slots is set
+     */
+    private static class Change {
+
+        final int slot;
+        final Wine wine;
+        final Runnable task;
+        final int[] slots;
+        final Wine[] wines;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final long queued = System.nanoTime();
+
+        Change(int slot, Wine wine) {
+            this.slot = slot;
+            this.wine = wine;
+            this.task = null;
+            this.slots = null;
+            this.wines = null;
+        }
+
+        Change(Runnable task) {
+            this.slot = -1;
+            this.wine = null;
+            this.task = task;
+            this.slots = null;
+            this.wines = null;
+        }
+
+        Change(int[] slots, Wine[] wines) {
+            this.slot = -1;
+            this.wine = null;
+            this.task = null;
+            this.slots = slots;
+            this.wines = wines;
+        }
+    }
+
+    /**
+     * The compacted copy being built: the live records in slot order, then
+     * whatever changed while they were copied
+     */
+    private static class Compaction {
+
+        private static final int NO_SLOT = -1;
+
+        private final File file;
+        private final FileChannel out;
+        private final ByteBuffer batch = ByteBuffer.allocate
+            (SlotSnapshot.CHUNK_SLOTS * WineRecordCodec.RECORD_SIZE);
+        // the wineID of every old slot in the snapshot
+        private int[] idOfSlot = new int[1024];
+        private int[] newSlotOfId;
+        private int slotCount;
+        private int batchFirst;
+
+        Compaction(File file, int nextId) throws IOException {
+            this.file = file;
+            this.out = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.newSlotOfId = new int[Math.max(nextId, 16)];
+            Arrays.fill(idOfSlot, RecordManager.TOMBSTONE);
+            Arrays.fill(newSlotOfId, NO_SLOT);
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        int[] getNewSlotOfId() {
+            return newSlotOfId;
+        }
+
+        /**
+         * Appends a live record of the snapshot
+         */
+        void copy(int slot, ByteBuffer buf, int offset) throws IOException {
+            int wineID = buf.getInt(offset);
+            if (slot >= idOfSlot.length) {
+                int oldLength = idOfSlot.length;
+                idOfSlot = Arrays.copyOf(idOfSlot, Math.max(slot + 1,
+                        oldLength * 2));
+                Arrays.fill(idOfSlot, oldLength, idOfSlot.length,
+                        RecordManager.TOMBSTONE);
+            }
+            idOfSlot[slot] = wineID;
+            if (!batch.hasRemaining()) {
+                flush();
+            }
+            ByteBuffer record = buf.duplicate();
+            record.limit(offset + WineRecordCodec.RECORD_SIZE)
+                .position(offset);
+            batch.put(record);
+            setNewSlot(wineID, slotCount++);
+        }
+
+        void flush() throws IOException {
+            batch.flip();
+            long pos = (long) batchFirst * WineRecordCodec.RECORD_SIZE;
+            while (batch.hasRemaining()) {
+                pos += out.write(batch, pos);
+            }
+            batch.clear();
+            batchFirst = slotCount;
+        }
+
+        /**
+         * Brings the copy up to date with the slots written since the
+         * snapshot. A slot whose wine changed is rewritten in the copy, a
+         * wine that left its slot is deleted from the copy, and a wine
+         * added since the snapshot is appended.
+         */
+        void catchUp(RecordManager records, BitSet written)
+                throws IOException {
+            flush();
+            ByteBuffer record = ByteBuffer.allocate
+                (WineRecordCodec.RECORD_SIZE);
+            ByteBuffer tombstone = ByteBuffer.allocate(4);
+            for (int slot = written.nextSetBit(0); slot >= 0;
+                    slot = written.nextSetBit(slot + 1)) {
+                record.clear();
+                records.readSlots(slot, record);
+                int wineID = record.getInt(0);
+                int was = slot < idOfSlot.length ? idOfSlot[slot]
+                    : RecordManager.TOMBSTONE;
+                if (was != RecordManager.TOMBSTONE && was != wineID) {
+                    tombstone.clear();
+                    tombstone.putInt(0, RecordManager.TOMBSTONE);
+                    writeAt(newSlotOfId[was], tombstone);
+                    newSlotOfId[was] = NO_SLOT;
+                }
+                if (wineID != RecordManager.TOMBSTONE) {
+                    int target = wineID < newSlotOfId.length
+                        ? newSlotOfId[wineID] : NO_SLOT;
+                    if (target == NO_SLOT) {
+                        target = slotCount++;
+                        setNewSlot(wineID, target);
+                    }
+                    record.clear();
+                    writeAt(target, record);
+                }
+            }
+            out.force(true);
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        private void setNewSlot(int wineID, int slot) {
+            if (wineID >= newSlotOfId.length) {
+                int oldLength = newSlotOfId.length;
+                newSlotOfId = Arrays.copyOf(newSlotOfId, Math.max(wineID + 1,
+                        oldLength + (oldLength >> 1)));
+                Arrays.fill(newSlotOfId, oldLength, newSlotOfId.length,
+                        NO_SLOT);
+            }
+            newSlotOfId[wineID] = slot;
+        }
+
+        private void writeAt(int slot, ByteBuffer buf) throws IOException {
+            long pos = (long) slot * WineRecordCodec.RECORD_SIZE;
+            while (buf.hasRemaining()) {
+                pos += out.write(buf, pos);
+            }
+        }
+    }
+}
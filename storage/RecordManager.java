@@ -0,0 +1,678 @@
+/*
+    RecordManager.java
+    Author: Scott Forsyth
+
+    Description
+    Keeps track of where every wine record lives in wines.dat, so that any
+    record can be found, deleted and its slot reused without rewriting the
+    file
+*/
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.WineMetrics;
+import models.Wine;
+
+/**
+ * Record manager for the wine data file. WineIDs are no longer tied to the
+ * position of a record: an in-memory index maps every wineID to the slot
+ * that holds it, and deleted slots are marked with a tombstone and kept in
+ * a free list so the next new wine can reuse them.
+ * <p>
+ * The index is saved in a small sidecar file (wines.idx next to wines.dat)
+ * when the manager is closed. On open the sidecar is used if it still
+ * matches the data file, otherwise the index is rebuilt by scanning the
+ * wineID of every slot.
+ * <p>
+ * Reads and writes of whole records take the lock of the slot's stripe, so
+ * a record is never seen half written while records in different stripes
+ * are written in parallel.
+ * <p>
+ * A compacted copy of the file can be swapped in with replaceFile(); the
+ * index then moves to the slots of the copy.
+ *
+ * @author Scott Forsyth
+ */
+public class RecordManager {
+
+    /* wineID written in the first field of a deleted slot */
+    public static final int TOMBSTONE = -1;
+
+    private static final int INDEX_MAGIC = 0x57494458; // "WIDX"
+    private static final int INDEX_VERSION = 1;
+    private static final int NO_SLOT = -1;
+    private static final int STRIPES = 64; // a power of two
+    // most records put into one write by writeSorted()
+    private static final int RUN_SLOTS = 1024;
+
+    private static final LongAdder READS =
+        WineMetrics.get().counter("records.read");
+    private static final LongAdder WRITES =
+        WineMetrics.get().counter("records.written");
+    private static final LongAdder REBUILDS =
+        WineMetrics.get().counter("file.indexRebuilds");
+
+    private final File dataFile;
+    private final File indexFile;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final Object[] stripes = new Object[STRIPES];
+    private final ThreadLocal<RecordBuffer> buffers =
+        ThreadLocal.withInitial(RecordBuffer::new);
+
+    private int[] slotOfId = new int[1024];
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private int slotCount;
+    private int nextId;
+
+    private RecordManager(File dataFile) throws IOException {
+        this.dataFile = dataFile;
+        this.indexFile = indexFileFor(dataFile);
+        this.raf = new RandomAccessFile(dataFile, "rw");
+        this.channel = raf.getChannel();
+        Arrays.fill(slotOfId, NO_SLOT);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Opens the data file and builds its index, from the sidecar file when
+     * it is up to date or by scanning the data file when it is not
+     *
+     * @param dataFile the wines.dat file, created if it does not exist
+     * @return a record manager for the file
+     * @throws IOException if the data file cannot be opened or read
+     */
+    public static RecordManager open(File dataFile) throws IOException {
+        RecordManager rm = new RecordManager(dataFile);
+        try {
+            if (!rm.readIndex()) {
+                REBUILDS.increment();
+                rm.resetIndex();
+                rm.rebuildIndex();
+            }
+        } catch (IOException ex) {
+            rm.channel.close();
+            throw ex;
+        }
+        return rm;
+    }
+
+    /**
+     * Returns the sidecar index file used for a data file
+     *
+     * @param dataFile the wines.dat file
+     * @return the matching wines.idx file
+     */
+    public static File indexFileFor(File dataFile) {
+        String name = dataFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        return new File(dataFile.getAbsoluteFile().getParentFile(),
+                base + ".idx");
+    }
+
+    /**
+     * Gives the wine a new wineID and writes it to a free slot, or to the
+     * end of the file when there is no free slot
+     *
+     * @param w the wine to add, its wineID is set by this method
+     * @return the wineID given to the wine
+     * @throws IOException if the record cannot be written
+     */
+    public int add(Wine w) throws IOException {
+        writeSlot(allocate(w), w);
+        return w.getWineID();
+    }
+
+    /**
+     * Overwrites the record of an existing wine
+     *
+     * @param w the wine with the new values and an existing wineID
+     * @throws IOException if the record cannot be written
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    public void update(Wine w) throws IOException {
+        writeSlot(requireSlot(w.getWineID()), w);
+    }
+
+    /**
+     * Deletes a wine by writing a tombstone over its wineID and adding its
+     * slot to the free list. The rest of the file is not touched.
+     *
+     * @param wineID the wineID of the wine to delete
+     * @throws IOException if the tombstone cannot be written
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    public void delete(int wineID) throws IOException {
+        writeTombstone(release(wineID));
+    }
+
+    /**
+     * Gives the wine a new wineID and reserves a slot for it, without
+     * writing anything. The record must then be written with writeSlot().
+     *
+     * @param w the wine to add, its wineID is set by this method
+     * @return the slot reserved for the wine
+     */
+    public synchronized int allocate(Wine w) {
+        int id = nextId;
+        w.setWineID(id);
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : slotCount++;
+        nextId++;
+        index(id, slot);
+        return slot;
+    }
+
+    /**
+     * Gives the wine a new wineID and reserves the slot at the end of the
+     * file for it, even if there are free slots. Consecutive calls therefore
+     * get consecutive slots, which bulk writers use to write many records
+     * with one writeSlots() call.
+     *
+     * @param w the wine to add, its wineID is set by this method
+     * @return the slot reserved for the wine
+     */
+    public synchronized int allocateAtEnd(Wine w) {
+        int id = nextId;
+        w.setWineID(id);
+        int slot = slotCount++;
+        nextId++;
+        index(id, slot);
+        return slot;
+    }
+
+    /**
+     * Removes a wine from the index and puts its slot on the free list,
+     * without writing anything. The tombstone must then be written with
+     * writeTombstone().
+     *
+     * @param wineID the wineID of the wine to delete
+     * @return the slot that held the wine
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    public synchronized int release(int wineID) {
+        int slot = requireSlot(wineID);
+        slotOfId[wineID] = NO_SLOT;
+        pushFree(slot);
+        return slot;
+    }
+
+    /**
+     * Returns the slot of a wine that must exist
+     *
+     * @param wineID the wineID to look for
+     * @return the slot of the wine
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    public synchronized int requireSlot(int wineID) {
+        int slot = slotOf(wineID);
+        if (slot == NO_SLOT) {
+            throw new IllegalArgumentException("No wine with ID " + wineID);
+        }
+        return slot;
+    }
+
+    /**
+     * Writes a whole record into a slot. The record is encoded in a buffer
+     * of the calling thread and only the slot's stripe is locked while it
+     * is written, so a slow write does not hold up allocate(), release() or
+     * writes to other stripes.
+     *
+     * @param slot the slot to write
+     * @param w the wine to store in the slot
+     * @throws IOException if the record cannot be written
+     */
+    public void writeSlot(int slot, Wine w) throws IOException {
+        RecordBuffer rb = buffers.get();
+        rb.codec.encode(w, rb.buf, 0);
+        rb.buf.clear();
+        long pos = (long) slot * WineRecordCodec.RECORD_SIZE;
+        synchronized (stripeOf(slot)) {
+            while (rb.buf.hasRemaining()) {
+                pos += channel.write(rb.buf, pos);
+            }
+        }
+        WRITES.increment();
+    }
+
+    /**
+     * Reads the whole record of a slot. It is never torn by a concurrent
+     * writeSlot() or writeTombstone() of the same slot.
+     *
+     * @param slot the slot to read
+     * @return the wine in the slot, or null if the slot holds a tombstone
+     * @throws IOException if the record cannot be read
+     */
+    public Wine readSlot(int slot) throws IOException {
+        RecordBuffer rb = buffers.get();
+        rb.buf.clear();
+        long pos = (long) slot * WineRecordCodec.RECORD_SIZE;
+        synchronized (stripeOf(slot)) {
+            while (rb.buf.hasRemaining()) {
+                int n = channel.read(rb.buf, pos);
+                if (n < 0) {
+                    throw new EOFException("No record in slot " + slot);
+                }
+                pos += n;
+            }
+        }
+        READS.increment();
+        return rb.buf.getInt(0) == TOMBSTONE ? null
+            : rb.codec.decode(rb.buf, 0);
+    }
+
+    /**
+     * Reads a run of whole records, still encoded, from consecutive slots.
+     * No stripe is locked, so the caller must make sure that the slots are
+     * not written at the same time, or that it does not use the records
+     * that were.
+     *
+     * @param firstSlot the slot of the first record
+     * @param buf receives the records, from its position to its limit
+     * @throws IOException if the records cannot be read
+     */
+    public void readSlots(int firstSlot, ByteBuffer buf) throws IOException {
+        READS.add(buf.remaining() / WineRecordCodec.RECORD_SIZE);
+        long pos = (long) firstSlot * WineRecordCodec.RECORD_SIZE;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) {
+                throw new EOFException("No record in slot " + firstSlot);
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * Writes a run of whole records, already encoded, into consecutive slots.
+     * No stripe is locked, so the slots must not be visible to readers yet,
+     * as is the case for slots just reserved with allocateAtEnd().
+     *
+     * @param firstSlot the slot of the first record in the buffer
+     * @param buf the encoded records, from its position to its limit
+     * @throws IOException if the records cannot be written
+     */
+    public void writeSlots(int firstSlot, ByteBuffer buf) throws IOException {
+        WRITES.add(buf.remaining() / WineRecordCodec.RECORD_SIZE);
+        long pos = (long) firstSlot * WineRecordCodec.RECORD_SIZE;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    /**
+     * Writes many whole records given in slot order. The records of
+     * consecutive slots are encoded into one buffer and written with a
+     * single call, holding the locks of all stripes so no record of the run
+     * is seen half written. A slot on its own only locks its stripe.
+     *
+     * @param slots the slots to write, in ascending order
+     * @param wines the wine to store in each slot
+     * @throws IOException if the records cannot be written
+     */
+    public void writeSorted(int[] slots, Wine[] wines) throws IOException {
+        RecordBuffer rb = buffers.get();
+        ByteBuffer run = ByteBuffer.allocate(WineRecordCodec.RECORD_SIZE
+                * Math.min(slots.length, RUN_SLOTS));
+        int i = 0;
+        while (i < slots.length) {
+            int first = slots[i];
+            run.clear();
+            do {
+                rb.codec.encode(wines[i], run, run.position());
+                run.position(run.position() + WineRecordCodec.RECORD_SIZE);
+                i++;
+            } while (i < slots.length && slots[i] == slots[i - 1] + 1
+                    && run.hasRemaining());
+            run.flip();
+            long pos = (long) first * WineRecordCodec.RECORD_SIZE;
+            if (run.remaining() == WineRecordCodec.RECORD_SIZE) {
+                synchronized (stripeOf(first)) {
+                    writeFully(run, pos);
+                }
+            } else {
+                lockStripes(0, () -> writeFully(run, pos));
+            }
+        }
+        WRITES.add(slots.length);
+    }
+
+    /**
+     * Marks a slot as deleted by writing a tombstone over its wineID
+     *
+     * @param slot the slot to mark
+     * @throws IOException if the tombstone cannot be written
+     */
+    public void writeTombstone(int slot) throws IOException {
+        ByteBuffer tombstone = ByteBuffer.allocate(4).putInt(0, TOMBSTONE);
+        synchronized (stripeOf(slot)) {
+            channel.write(tombstone, (long) slot * WineRecordCodec.RECORD_SIZE);
+        }
+        WRITES.increment();
+    }
+
+    /**
+     * Checks whether a wine with the wineID is stored in the file
+     *
+     * @param wineID the wineID to look for
+     * @return true if the wine exists
+     */
+    public synchronized boolean contains(int wineID) {
+        return slotOf(wineID) != NO_SLOT;
+    }
+
+    /**
+     * Returns the slot of a wine. The record starts at slot * RECORD_SIZE.
+     *
+     * @param wineID the wineID to look for
+     * @return the slot of the wine, or -1 if there is no such wine
+     */
+    public synchronized int slotOf(int wineID) {
+        return wineID >= 0 && wineID < slotOfId.length
+            ? slotOfId[wineID] : NO_SLOT;
+    }
+
+    /**
+     * Returns the slots that hold a live wine, in file order
+     *
+     * @return the occupied slots in ascending order
+     */
+    public synchronized int[] liveSlots() {
+        BitSet used = new BitSet(slotCount);
+        for (int slot : slotOfId) {
+            if (slot != NO_SLOT) {
+                used.set(slot);
+            }
+        }
+        int[] slots = new int[used.cardinality()];
+        int i = 0;
+        for (int slot = used.nextSetBit(0); slot >= 0;
+                slot = used.nextSetBit(slot + 1)) {
+            slots[i++] = slot;
+        }
+        return slots;
+    }
+
+    /**
+     * Accessor for the number of live wines
+     *
+     * @return the number of wines that are not deleted
+     */
+    public synchronized int size() {
+        return slotCount - freeCount;
+    }
+
+    /*
+    * Returns the number of records written to the file so far, which lags
+    * behind the slots handed out while writes are queued
+    */
+    int fileSlots() throws IOException {
+        return (int) (channel.size() / WineRecordCodec.RECORD_SIZE);
+    }
+
+    /**
+     * Accessor for the number of deleted slots waiting to be reused
+     *
+     * @return the number of tombstones in the file
+     */
+    public synchronized int getFreeSlots() {
+        return freeCount;
+    }
+
+    /**
+     * Accessor for the data file
+     *
+     * @return the wines.dat file
+     */
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * Accessor for the wineID the next added wine will get
+     *
+     * @return the next wineID
+     */
+    public synchronized int getNextId() {
+        return nextId;
+    }
+
+    /**
+     * Makes every record written so far durable on disk
+     *
+     * @throws IOException if the data file cannot be synced
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Saves the index to the sidecar file and closes the data file
+     *
+     * @throws IOException if the index cannot be saved
+     */
+    public synchronized void close() throws IOException {
+        try {
+            channel.force(true);
+            writeIndex();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Replaces the data file with a compacted copy of it, in one atomic
+     * rename, and rebuilds the index from the copy. Every record of the
+     * data file must already be written and synced, and the copy must hold
+     * every live wine. wineIDs are never given out twice, even those of
+     * wines whose tombstones were left out of the copy.
+     *
+     * @param compacted the copy, which is moved over the data file
+     * @param newSlotOfId the slot of every wineID in the copy, or -1
+     * @return the slot in the copy of every old slot, or -1 for slots of
+     *     deleted wines
+     * @throws IOException if the copy cannot be moved or opened
+     */
+    public synchronized int[] replaceFile(File compacted, int[] newSlotOfId)
+            throws IOException {
+        int[] moved = new int[slotCount];
+        Arrays.fill(moved, NO_SLOT);
+        int ids = Math.min(slotOfId.length, newSlotOfId.length);
+        for (int id = 0; id < ids; id++) {
+            if (slotOfId[id] != NO_SLOT) {
+                moved[slotOfId[id]] = newSlotOfId[id];
+            }
+        }
+        lockStripes(0, () -> {
+            channel.close();
+            Files.move(compacted.toPath(), dataFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            raf = new RandomAccessFile(dataFile, "rw");
+            channel = raf.getChannel();
+        });
+        // the sidecar describes the old file
+        indexFile.delete();
+        int keepNextId = nextId;
+        resetIndex();
+        rebuildIndex();
+        nextId = Math.max(nextId, keepNextId);
+        return moved;
+    }
+
+    /*
+    * Makes the rename of the data file durable. Not every platform can open
+    * a directory, and there the rename is left to the file system.
+    */
+    private void syncDirectory() {
+        File dir = dataFile.getAbsoluteFile().getParentFile();
+        try (FileChannel ch = FileChannel.open(dir.toPath(),
+                StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ex) {
+            // best effort only
+        }
+    }
+
+    /*
+    * Runs the body holding the locks of all stripes, taken in order
+    */
+    private void lockStripes(int i, StripedAction body) throws IOException {
+        if (i == STRIPES) {
+            body.run();
+            return;
+        }
+        synchronized (stripes[i]) {
+            lockStripes(i + 1, body);
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    private Object stripeOf(int slot) {
+        return stripes[slot & (STRIPES - 1)];
+    }
+
+    private void index(int wineID, int slot) {
+        if (wineID >= slotOfId.length) {
+            int oldLength = slotOfId.length;
+            slotOfId = Arrays.copyOf(slotOfId,
+                    Math.max(wineID + 1, oldLength + (oldLength >> 1)));
+            Arrays.fill(slotOfId, oldLength, slotOfId.length, NO_SLOT);
+        }
+        slotOfId[wineID] = slot;
+    }
+
+    private void pushFree(int slot) {
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /*
+    * Adds the slot to the index, or to the free list when it holds a
+    * tombstone. Used while rebuilding the index from either source.
+    */
+    private void restoreSlot(int slot, int wineID) {
+        if (wineID == TOMBSTONE) {
+            pushFree(slot);
+        } else {
+            index(wineID, slot);
+            nextId = Math.max(nextId, wineID + 1);
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        slotCount = (int) (channel.size() / WineRecordCodec.RECORD_SIZE);
+        long end = (long) slotCount * WineRecordCodec.RECORD_SIZE;
+        int slot = 0;
+        for (long start = 0; start < end; start += WineFileLoader.WINDOW_SIZE) {
+            long size = Math.min(WineFileLoader.WINDOW_SIZE, end - start);
+            MappedByteBuffer buf = channel.map
+                (FileChannel.MapMode.READ_ONLY, start, size);
+            for (int pos = 0; pos < size; pos += WineRecordCodec.RECORD_SIZE) {
+                restoreSlot(slot++, buf.getInt(pos));
+            }
+        }
+    }
+
+    /*
+    * Sidecar layout: magic, version, length and last modified time of the
+    * data file it describes, nextId, slot count, then the wineID held by
+    * every slot (TOMBSTONE for free slots).
+    */
+    private boolean readIndex() throws IOException {
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream
+                (new FileInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || in.readLong() != channel.size()
+                    || in.readLong() != dataFile.lastModified()) {
+                return false;
+            }
+            int savedNextId = in.readInt();
+            slotCount = in.readInt();
+            for (int slot = 0; slot < slotCount; slot++) {
+                restoreSlot(slot, in.readInt());
+            }
+            nextId = Math.max(nextId, savedNextId);
+            return true;
+        } catch (EOFException ex) {
+            // a truncated sidecar is treated like a stale one
+            return false;
+        }
+    }
+
+    private void resetIndex() {
+        Arrays.fill(slotOfId, NO_SLOT);
+        freeCount = 0;
+        slotCount = 0;
+        nextId = 0;
+    }
+
+    private void writeIndex() throws IOException {
+        int[] idOfSlot = new int[slotCount];
+        Arrays.fill(idOfSlot, TOMBSTONE);
+        for (int id = 0; id < slotOfId.length; id++) {
+            if (slotOfId[id] != NO_SLOT) {
+                idOfSlot[slotOfId[id]] = id;
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream
+                (new FileOutputStream(indexFile), 1 << 16))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(channel.size());
+            out.writeLong(dataFile.lastModified());
+            out.writeInt(nextId);
+            out.writeInt(slotCount);
+            for (int id : idOfSlot) {
+                out.writeInt(id);
+            }
+        }
+    }
+
+    /**
+     * Work done while every stripe is locked
+     */
+    private interface StripedAction {
+        void run() throws IOException;
+    }
+
+    /*
+    * Encoding buffer and codec of one thread, the codec is not thread-safe
+    */
+    private static class RecordBuffer {
+        final WineRecordCodec codec = new WineRecordCodec();
+        final ByteBuffer buf = ByteBuffer.allocate(WineRecordCodec.RECORD_SIZE);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+    SearchResult.java
+    Author: Scott Forsyth
+
+    Description
+    The wineIDs found by a WineSearchIndex search
+*/
+package storage;
+
+/**
+ * The wineIDs that matched a search, kept as a bit set with a running count
+ * of the bits set before every block of BLOCK_WORDS words. size() is then
+ * O(1) and the n-th wineID is found with a binary search over the blocks,
+ * so a search matching millions of wines is shown without ever copying its
+ * wineIDs out.
+ *
+ * @author Scott Forsyth
+ */
+public class SearchResult {
+
+    private static final int BLOCK_WORDS = 8;
+
+    private final long[] words;
+    private final int[] before;
+    private final int size;
+
+    /*
+    * Takes over the words of a bit set filled by a search
+    */
+    SearchResult(long[] words) {
+        this.words = words;
+        this.before = new int[(words.length + BLOCK_WORDS - 1) / BLOCK_WORDS + 1];
+        int count = 0;
+        for (int w = 0; w < words.length; w++) {
+            if (w % BLOCK_WORDS == 0) {
+                before[w / BLOCK_WORDS] = count;
+            }
+            count += Long.bitCount(words[w]);
+        }
+        before[before.length - 1] = count;
+        this.size = count;
+    }
+
+    /**
+     * Accessor for the number of matching wines
+     * @return the number of wineIDs in the result
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a wineID of the result, which are in ascending order
+     *
+     * @param index the position in the result, from 0 to size() - 1
+     * @return the wineID at that position
+     */
+    public int wineIdAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        // last block whose running count is not above the index
+        int low = 0;
+        int high = before.length - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (before[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int rest = index - before[low];
+        int w = low * BLOCK_WORDS;
+        while (Long.bitCount(words[w]) <= rest) {
+            rest -= Long.bitCount(words[w]);
+            w++;
+        }
+        long word = words[w];
+        for (int i = 0; i < rest; i++) {
+            word &= word - 1;
+        }
+        return w * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Checks whether a wine matched the search
+     *
+     * @param wineID the wineID to look for
+     * @return true if the wineID is in the result
+     */
+    public boolean contains(int wineID) {
+        int w = wineID >>> 6;
+        return wineID >= 0 && w < words.length
+            && (words[w] & (1L << wineID)) != 0;
+    }
+
+    /**
+     * Copies the wineIDs out
+     * @return the wineIDs in ascending order
+     */
+    public int[] toArray() {
+        int[] ids = new int[size];
+        int n = 0;
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            while (word != 0) {
+                ids[n++] = w * 64 + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,613 @@
+/*
+    ShardedWineRepository.java
+    Author: Scott Forsyth
+
+    Description
+    A wine cellar spread over several data files, each with its own
+    repository, writer thread and I/O, queried in parallel
+*/
+package storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import models.Wine;
+
+/**
+ * Sharded storage for many cellars. The wines are partitioned over N data
+ * files, wines-0.dat to wines-(N-1).dat in one directory, by a hash of
+ * their estate: a new wine goes to the shard of its estate and stays there,
+ * even if its estate is changed later. Every shard is a WineRepository
+ * with its own PersistenceService, so shards on different disks write in
+ * parallel, and each shard has its own lock, so changes to different
+ * shards do not wait for each other. Unlike a WineRepository this class
+ * can be used from several threads.
+ * <p>
+ * wineIDs are unique over the whole cellar without any coordination: the
+ * shard's own wineID is multiplied by N and the shard number added, so
+ * wineID % N is the shard of a wine. Wines handed out carry these global
+ * wineIDs and are copies, changing them has no effect.
+ * <p>
+ * Opening, find() and close() fan out to all shards on a thread pool and
+ * merge the results. The number of shards is written to cellar.properties
+ * when the cellar is created and cannot be changed afterwards, because it
+ * is part of every wineID.
+ *
+ * @author Scott Forsyth
+ */
+public class ShardedWineRepository implements WineCatalog {
+
+    public static final String MANIFEST = "cellar.properties";
+
+    private final File dir;
+    private final WineRepository[] shards;
+    private final ExecutorService pool;
+
+    private ShardedWineRepository(File dir, WineRepository[] shards,
+            ExecutorService pool) {
+        this.dir = dir;
+        this.shards = shards;
+        this.pool = pool;
+    }
+
+    /**
+     * Opens an existing cellar with the number of shards it was created with
+     *
+     * @param dir the directory of the cellar
+     * @return a repository over all the shards
+     * @throws IOException if the cellar does not exist or a shard cannot be
+     *     opened
+     */
+    public static ShardedWineRepository open(File dir) throws IOException {
+        int count = readShardCount(dir);
+        if (count == 0) {
+            throw new IOException("No wine cellar in " + dir);
+        }
+        return open(dir, count);
+    }
+
+    /**
+     * Opens a cellar, creating it with the given number of shards if the
+     * directory holds none yet. All shards are opened in parallel.
+     *
+     * @param dir the directory of the cellar
+     * @param shardCount the number of data files
+     * @return a repository over all the shards
+     * @throws IOException if a shard cannot be opened, or the cellar exists
+     *     with another number of shards
+     * @throws IllegalArgumentException if shardCount is not positive
+     */
+    public static ShardedWineRepository open(File dir, int shardCount)
+            throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("A cellar needs at least one "
+                    + "shard: " + shardCount);
+        }
+        int existing = readShardCount(dir);
+        if (existing == 0) {
+            writeShardCount(dir, shardCount);
+        } else if (existing != shardCount) {
+            throw new IOException("The cellar in " + dir + " has " + existing
+                    + " shards, not " + shardCount);
+        }
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(shardCount, r -> {
+            Thread t = new Thread(r, "wine-shard-" + threads.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        WineRepository[] shards = new WineRepository[shardCount];
+        List<Future<WineRepository>> opening = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            File f = shardFile(dir, i);
+            opening.add(pool.submit(() -> WineRepository.open(f)));
+        }
+        IOException failure = null;
+        for (int i = 0; i < shardCount; i++) {
+            try {
+                shards[i] = await(opening.get(i));
+            } catch (IOException ex) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        if (failure != null) {
+            for (WineRepository shard : shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            pool.shutdown();
+            throw failure;
+        }
+        return new ShardedWineRepository(dir, shards, pool);
+    }
+
+    /**
+     * Returns the data file of one shard
+     *
+     * @param dir the directory of the cellar
+     * @param shard the shard number
+     * @return the data file of the shard
+     */
+    public static File shardFile(File dir, int shard) {
+        return new File(dir, "wines-" + shard + ".dat");
+    }
+
+    /**
+     * Accessor for the directory of the cellar
+     * @return the directory that holds the shards
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Accessor for the number of shards
+     * @return the number of data files
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Accessor for one shard. Its wines carry shard-local wineIDs, and it
+     * must only be used while holding its lock, i.e. synchronized on it.
+     *
+     * @param shard the shard number
+     * @return the repository of the shard
+     */
+    public WineRepository getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * Returns the shard a new wine of an estate is added to
+     *
+     * @param estate the estate of the wine
+     * @return the shard number
+     */
+    public int shardOf(String estate) {
+        return Math.floorMod(estate.hashCode(), shards.length);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (WineRepository shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns a read-only view of all the wines, shard after shard. Sizes
+     * are read on every call, so the view follows changes but an index is
+     * only stable while nothing changes.
+     *
+     * @return a live view of the wines
+     */
+    @Override
+    public List<Wine> rows() {
+        return new AbstractList<Wine>() {
+            @Override
+            public Wine get(int index) {
+                if (index < 0) {
+                    throw new IndexOutOfBoundsException("Row: " + index);
+                }
+                int rest = index;
+                for (int i = 0; i < shards.length; i++) {
+                    synchronized (shards[i]) {
+                        if (rest < shards[i].size()) {
+                            return toGlobal(shards[i].rows().get(rest), i);
+                        }
+                        rest -= shards[i].size();
+                    }
+                }
+                throw new IndexOutOfBoundsException("Row: " + index);
+            }
+
+            @Override
+            public int size() {
+                return ShardedWineRepository.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Wine get(int wineID) {
+        if (wineID < 0) {
+            return null;
+        }
+        int i = wineID % shards.length;
+        synchronized (shards[i]) {
+            Wine w = shards[i].get(wineID / shards.length);
+            return w == null ? null : toGlobal(w, i);
+        }
+    }
+
+    /**
+     * Finds the matching wines in every shard in parallel and merges them
+     *
+     * @param q the conditions to match
+     * @return the matching wines in wineID order
+     */
+    @Override
+    public List<Wine> find(WineQuery q) {
+        List<Wine> all = new ArrayList<>();
+        for (List<Wine> part : fanOut(i -> {
+            List<Wine> found = shards[i].find(q);
+            List<Wine> global = new ArrayList<>(found.size());
+            for (Wine w : found) {
+                global.add(toGlobal(w, i));
+            }
+            return global;
+        })) {
+            all.addAll(part);
+        }
+        all.sort(Comparator.comparingInt(Wine::getWineID));
+        return all;
+    }
+
+    /**
+     * Passes every wine to a consumer, shard after shard. Each shard is
+     * read from a snapshot of its data file, without its lock, so changes
+     * to the shard go on while it is scanned; the scan sees the shard as it
+     * was when it got to it.
+     *
+     * @param action receives each wine
+     * @throws UncheckedIOException if a data file cannot be read
+     */
+    public void scan(Consumer<Wine> action) {
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            try {
+                shards[i].getPersistence().scan(w -> {
+                    w.setWineID(globalId(w.getWineID(), shard));
+                    action.accept(w);
+                });
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Passes every wine to a consumer, shard after shard, each shard as it
+     * was when the scan got to it
+     *
+     * @param action receives each wine
+     * @throws IOException if a data file cannot be read
+     */
+    @Override
+    public void scanSnapshot(Consumer<Wine> action) throws IOException {
+        try {
+            scan(action);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Adds a new wine to the shard of its estate
+     *
+     * @param w the wine to add, its global wineID is set by this method
+     * @return a future that completes when the wine is durable
+     */
+    @Override
+    public CompletableFuture<Void> add(Wine w) {
+        int i = shardOf(w.getEstate());
+        Wine local = copy(w, 0);
+        CompletableFuture<Void> write;
+        synchronized (shards[i]) {
+            requireIds(i, 1);
+            write = shards[i].add(local);
+        }
+        w.setWineID(globalId(local.getWineID(), i));
+        return write;
+    }
+
+    /**
+     * Adds many new wines, each to the shard of its estate. The locks of
+     * the shards involved are held from the check of their wineIDs until
+     * every part is applied, and every shard adds its part as one batch;
+     * the shards then make their parts durable in parallel.
+     *
+     * @param wines the wines to add, their global wineIDs are set by this
+     *     method
+     * @return a future that completes when every wine is durable
+     */
+    @Override
+    public CompletableFuture<Void> addAll(List<Wine> wines) {
+        List<List<Wine>> parts = new ArrayList<>(shards.length);
+        List<List<Wine>> locals = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+            locals.add(new ArrayList<>());
+        }
+        for (Wine w : wines) {
+            int i = shardOf(w.getEstate());
+            parts.get(i).add(w);
+            locals.get(i).add(copy(w, 0));
+        }
+        int[] involved = involved(locals);
+        List<CompletableFuture<Void>> writes = withLocks(involved, 0, () -> {
+            for (int i : involved) {
+                requireIds(i, locals.get(i).size());
+            }
+            List<CompletableFuture<Void>> queued = new ArrayList<>();
+            for (int i : involved) {
+                queued.add(shards[i].addAll(locals.get(i)));
+            }
+            return queued;
+        });
+        for (int i = 0; i < shards.length; i++) {
+            for (int j = 0; j < parts.get(i).size(); j++) {
+                parts.get(i).get(j).setWineID(
+                        globalId(locals.get(i).get(j).getWineID(), i));
+            }
+        }
+        return CompletableFuture.allOf(
+                writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public CompletableFuture<Void> update(Wine w) {
+        int i = requireShard(w.getWineID());
+        synchronized (shards[i]) {
+            return shards[i].update(copy(w, w.getWineID() / shards.length));
+        }
+    }
+
+    /**
+     * Replaces the values of many existing wines of one shard. A batch is
+     * only atomic within a shard: the shards commit to their own logs, so
+     * a batch spread over several shards could survive a crash in some of
+     * them and not in others, and such a batch is refused. Callers split a
+     * larger batch by shard, the shard of a wine being wineID % N. The lock
+     * of the shard is held from the check of every wineID until the batch
+     * is applied, so a concurrent delete cannot make it change only some of
+     * the wines.
+     *
+     * @param wines the wines with the new values and existing wineIDs, all
+     *     in the same shard
+     * @return a future that completes when every change is durable
+     * @throws IllegalArgumentException if there is no wine with one of the
+     *     wineIDs, or the wines are in more than one shard
+     */
+    @Override
+    public CompletableFuture<Void> updateAll(List<Wine> wines) {
+        List<List<Wine>> locals = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            locals.add(new ArrayList<>());
+        }
+        int first = -1;
+        for (Wine w : wines) {
+            int i = requireShard(w.getWineID());
+            if (first >= 0 && i != first) {
+                throw new IllegalArgumentException("Wine " + w.getWineID()
+                        + " is in shard " + i + ", not in shard " + first
+                        + " with the rest of the batch");
+            }
+            first = i;
+            locals.get(i).add(copy(w, w.getWineID() / shards.length));
+        }
+        int[] involved = involved(locals);
+        List<CompletableFuture<Void>> writes = withLocks(involved, 0, () -> {
+            for (int i : involved) {
+                for (Wine local : locals.get(i)) {
+                    if (shards[i].get(local.getWineID()) == null) {
+                        throw new IllegalArgumentException("No wine with ID "
+                                + globalId(local.getWineID(), i));
+                    }
+                }
+            }
+            List<CompletableFuture<Void>> queued = new ArrayList<>();
+            for (int i : involved) {
+                queued.add(shards[i].updateAll(locals.get(i)));
+            }
+            return queued;
+        });
+        return CompletableFuture.allOf(
+                writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(int wineID) {
+        int i = requireShard(wineID);
+        synchronized (shards[i]) {
+            return shards[i].delete(wineID / shards.length);
+        }
+    }
+
+    /**
+     * Waits for the pending writes of every shard and closes them in
+     * parallel
+     *
+     * @throws IOException if a shard cannot be closed cleanly
+     */
+    @Override
+    public void close() throws IOException {
+        fanOut(i -> {
+            try {
+                shards[i].close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return null;
+        });
+        pool.shutdown();
+    }
+
+    private int requireShard(int wineID) {
+        if (wineID < 0) {
+            throw new IllegalArgumentException("No wine with ID " + wineID);
+        }
+        return wineID % shards.length;
+    }
+
+    private Wine toGlobal(Wine w, int shard) {
+        return copy(w, globalId(w.getWineID(), shard));
+    }
+
+    /*
+    * The global wineID of a shard-local one, local * N + shard
+    */
+    private int globalId(int localId, int shard) {
+        try {
+            return Math.addExact(Math.multiplyExact(localId, shards.length),
+                    shard);
+        } catch (ArithmeticException ex) {
+            throw new IllegalStateException("wineID " + localId + " of shard "
+                    + shard + " has no global wineID", ex);
+        }
+    }
+
+    /*
+    * Fails before anything is added if the next count wineIDs of a shard
+    * would not fit a global wineID. The caller holds the lock of the shard.
+    */
+    private void requireIds(int shard, int count) {
+        if (count == 0) {
+            return;
+        }
+        long last = (long) shards[shard].getPersistence().getRecords()
+            .getNextId() + count - 1;
+        if (last * shards.length + shard > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Shard " + shard
+                    + " has run out of wineIDs");
+        }
+    }
+
+    private static Wine copy(Wine w, int wineID) {
+        return Wine.trusted(wineID, w.getEstate(), w.getGrape(), w.getYear(),
+                w.getQuantity(), w.getPrice());
+    }
+
+    /*
+    * The shards with a part in a batch, in shard order
+    */
+    private static int[] involved(List<List<Wine>> parts) {
+        int[] involved = new int[parts.size()];
+        int n = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            if (!parts.get(i).isEmpty()) {
+                involved[n++] = i;
+            }
+        }
+        return Arrays.copyOf(involved, n);
+    }
+
+    /*
+    * Runs an action on the calling thread while holding the locks of the
+    * given shards from the from-th on. They are taken in shard order, so
+    * two batches can never each hold a lock the other waits for.
+    */
+    private <T> T withLocks(int[] locked, int from, Supplier<T> action) {
+        if (from == locked.length) {
+            return action.get();
+        }
+        synchronized (shards[locked[from]]) {
+            return withLocks(locked, from + 1, action);
+        }
+    }
+
+    /*
+    * Runs an action on every shard at the same time, each holding the lock
+    * of its shard, and returns the results in shard order
+    */
+    private <T> List<T> fanOut(ShardAction<T> action) {
+        List<Future<T>> running = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            running.add(pool.submit(() -> {
+                synchronized (shards[shard]) {
+                    return action.run(shard);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<>(shards.length);
+        for (Future<T> f : running) {
+            try {
+                results.add(await(f));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    private static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a shard", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static int readShardCount(File dir) throws IOException {
+        File manifest = new File(dir, MANIFEST);
+        if (!manifest.isFile()) {
+            return 0;
+        }
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(manifest)) {
+            p.load(in);
+        }
+        try {
+            return Integer.parseInt(p.getProperty("shards", "0").trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("Bad shard count in " + manifest, ex);
+        }
+    }
+
+    private static void writeShardCount(File dir, int count)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create the cellar " + dir);
+        }
+        Properties p = new Properties();
+        p.setProperty("shards", String.valueOf(count));
+        try (OutputStream out = new FileOutputStream(new File(dir, MANIFEST))) {
+            p.store(out, "Wine cellar, the shard count is part of every wineID");
+        }
+    }
+
+    /**
+     * Work done on one shard while holding its lock
+     */
+    private interface ShardAction<T> {
+        T run(int shard);
+    }
+}
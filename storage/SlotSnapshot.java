@@ -0,0 +1,135 @@
+/*
+    SlotSnapshot.java
+    Author: Scott Forsyth
+
+    Description
+    A point-in-time view of the records in wines.dat that can be copied out
+    while the writer keeps changing the file
+*/
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Copy-on-write snapshot of the data file, used by backups and compaction.
+ * The snapshot is taken on the writer thread between two batches, so it is
+ * exactly the committed records at that moment. After that the writer calls
+ * beforeWrite() for every slot it is about to overwrite: if the copy has
+ * not reached the slot yet, its old record is saved first. The copy reads
+ * the file in chunks of CHUNK_SLOTS records and puts the saved records back
+ * over the ones that changed, so it sees the file as it was when the
+ * snapshot was taken, without ever stopping the writer.
+ * <p>
+ * The snapshot also remembers every slot written since it was taken, which
+ * is what compaction needs to catch up before it swaps its copy in.
+ *
+ * @author Scott Forsyth
+ */
+class SlotSnapshot {
+
+    static final int CHUNK_SLOTS = 1024;
+
+    /**
+     * Receives the live records of the snapshot, in slot order
+     */
+    interface RecordSink {
+
+        /**
+         * Takes one live record
+         * @param slot the slot of the record
+         * @param buf the buffer that holds the encoded record
+         * @param offset the position of the record in the buffer
+         * @throws IOException if the record cannot be stored
+         */
+        void accept(int slot, ByteBuffer buf, int offset) throws IOException;
+    }
+
+    private final RecordManager records;
+    private final int slotCount;
+    private final TreeMap<Integer, byte[]> saved = new TreeMap<>();
+    private final BitSet written = new BitSet();
+    // the slots below the cursor have been copied
+    private int cursor;
+
+    /*
+    * Takes the snapshot, on the writer thread
+    */
+    SlotSnapshot(RecordManager records) throws IOException {
+        this.records = records;
+        this.slotCount = records.fileSlots();
+    }
+
+    /**
+     * Accessor for the size of the snapshot
+     * @return the number of slots in the file when the snapshot was taken
+     */
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Saves the old record of a slot the copy still has to read. Called by
+     * the writer thread before it writes the slot.
+     *
+     * @param slot the slot about to be written
+     * @throws IOException if the old record cannot be read
+     */
+    synchronized void beforeWrite(int slot) throws IOException {
+        written.set(slot);
+        if (slot >= cursor && slot < slotCount && !saved.containsKey(slot)) {
+            ByteBuffer old = ByteBuffer.allocate(WineRecordCodec.RECORD_SIZE);
+            records.readSlots(slot, old);
+            saved.put(slot, old.array());
+        }
+    }
+
+    /**
+     * Returns the slots written since the snapshot was taken
+     * @return a copy of the written slots
+     */
+    synchronized BitSet getWritten() {
+        return (BitSet) written.clone();
+    }
+
+    /**
+     * Copies out every live record of the snapshot. Each chunk is read with
+     * the snapshot locked, so the writer waits at most one chunk read for
+     * beforeWrite(); the bandwidth limit is waited for without the lock.
+     *
+     * @param limiter limits the rate the file is read at
+     * @param sink receives the live records in slot order
+     * @throws IOException if the file cannot be read or the sink fails
+     * @throws InterruptedException if the copy is interrupted
+     */
+    void copy(BandwidthLimiter limiter, RecordSink sink)
+            throws IOException, InterruptedException {
+        ByteBuffer chunk = ByteBuffer.allocate
+            (CHUNK_SLOTS * WineRecordCodec.RECORD_SIZE);
+        for (int first = 0; first < slotCount; first += CHUNK_SLOTS) {
+            int n = Math.min(CHUNK_SLOTS, slotCount - first);
+            limiter.acquire((long) n * WineRecordCodec.RECORD_SIZE);
+            synchronized (this) {
+                chunk.clear().limit(n * WineRecordCodec.RECORD_SIZE);
+                records.readSlots(first, chunk);
+                Map<Integer, byte[]> changed = saved.headMap(first + n);
+                for (Map.Entry<Integer, byte[]> e : changed.entrySet()) {
+                    chunk.position((e.getKey() - first)
+                            * WineRecordCodec.RECORD_SIZE);
+                    chunk.put(e.getValue());
+                }
+                changed.clear();
+                cursor = first + n;
+            }
+            for (int i = 0; i < n; i++) {
+                int offset = i * WineRecordCodec.RECORD_SIZE;
+                if (chunk.getInt(offset) != RecordManager.TOMBSTONE) {
+                    sink.accept(first + i, chunk, offset);
+                }
+            }
+        }
+    }
+}
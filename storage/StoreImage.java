@@ -0,0 +1,355 @@
+/*
+    StoreImage.java
+    Author: Scott Forsyth
+
+    Description
+    A binary image of the loaded wines and their indexes, written when the
+    application closes so the next start can map it back in instead of
+    decoding the whole data file
+*/
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+import metrics.WineMetrics;
+
+/**
+ * Startup image of a WineStore and its WineIndex, kept next to the data
+ * file as wines.img. The columns of the store are written as they are in
+ * memory, so reading them back is a bulk copy out of the mapped file, and
+ * the postings of the indexes are written with their keys, so the indexes
+ * do not have to be rebuilt row by row either:
+ * <pre>
+ *   header   int magic "WIMG", int version, long length and long last
+ *            modified time of the data file, int rows, int strings,
+ *            int CRC32C of everything after the header
+ *   strings  int byte length and the UTF-8 bytes of every string, in the
+ *            order of their StringTable codes
+ *   columns  the wineID, estate code, grape code, year and quantity
+ *            columns as ints and the price column as doubles
+ *   indexes  estate, grape, year and price: int key count, then per key
+ *            the key (a string code, an int or a double), int posting
+ *            size and the wineIDs of the posting
+ * </pre>
+ * An image is only used while the length and modification time of the data
+ * file still match, and it is deleted once it has been read, so a run that
+ * changes the file and then crashes can never leave an image behind that
+ * looks current. Anything wrong with an image simply means a full load.
+ *
+ * @author Scott Forsyth
+ */
+public class StoreImage {
+
+    public static final int MAGIC = 0x57494D47; // "WIMG"
+    public static final int VERSION = 1;
+    static final int HEADER_SIZE = 36;
+
+    private static final LongAdder LOADS =
+        WineMetrics.get().counter("file.imageLoads");
+
+    private StoreImage() {
+    }
+
+    /**
+     * Returns the image file used for a data file
+     *
+     * @param dataFile the wines.dat file
+     * @return the matching wines.img file
+     */
+    public static File imageFileFor(File dataFile) {
+        String name = dataFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        return new File(dataFile.getAbsoluteFile().getParentFile(),
+                base + ".img");
+    }
+
+    /**
+     * Writes the image of a store and its index. The image is written next
+     * to its final name and renamed once it is complete. The data file must
+     * not change any more, since the image records its length and time.
+     *
+     * @param dataFile the wines.dat file the store was loaded from
+     * @param store the wines of the data file
+     * @param index the index over the store
+     * @throws IOException if the image cannot be written
+     */
+    public static void write(File dataFile, WineStore store, WineIndex index)
+            throws IOException {
+        File image = imageFileFor(dataFile);
+        File part = new File(image.getPath() + ".part");
+        try (FileChannel out = FileChannel.open(part.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Sink sink = new Sink(out);
+            StringTable strings = store.getStrings();
+            int rows = store.size();
+            for (int code = 0; code < strings.size(); code++) {
+                byte[] bytes = strings.decode(code)
+                    .getBytes(StandardCharsets.UTF_8);
+                sink.putInt(bytes.length);
+                sink.put(bytes);
+            }
+            sink.putInts(store.idColumn(), rows);
+            sink.putInts(store.estateCodes(), rows);
+            sink.putInts(store.grapeCodes(), rows);
+            sink.putInts(store.yearColumn(), rows);
+            sink.putInts(store.quantityColumn(), rows);
+            sink.putDoubles(store.priceColumn(), rows);
+            synchronized (index) {
+                writeStrings(sink, index.estatePostings(), strings);
+                writeStrings(sink, index.grapePostings(), strings);
+                sink.putInt(index.yearPostings().size());
+                for (Map.Entry<Integer, WineIndex.Posting> e
+                        : index.yearPostings().entrySet()) {
+                    sink.putInt(e.getKey());
+                    sink.putPosting(e.getValue());
+                }
+                sink.putInt(index.pricePostings().size());
+                for (Map.Entry<Double, WineIndex.Posting> e
+                        : index.pricePostings().entrySet()) {
+                    sink.putDouble(e.getKey());
+                    sink.putPosting(e.getValue());
+                }
+            }
+            sink.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(dataFile.length())
+                .putLong(dataFile.lastModified()).putInt(rows)
+                .putInt(strings.size()).putInt((int) sink.crc.getValue());
+            header.flip();
+            long pos = 0;
+            while (header.hasRemaining()) {
+                pos += out.write(header, pos);
+            }
+            out.force(true);
+        } catch (IOException | RuntimeException ex) {
+            part.delete();
+            throw ex;
+        }
+        Files.move(part.toPath(), image.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the image of a data file into an empty store, if there is an
+     * image and it still matches the data file. The image is deleted once
+     * it has been read.
+     *
+     * @param dataFile the wines.dat file
+     * @param store the empty store that receives the rows
+     * @return the index over the store, or null if there is no usable
+     *     image, in which case the store is left empty
+     * @throws IOException if the image exists but cannot be read
+     */
+    public static WineIndex read(File dataFile, WineStore store)
+            throws IOException {
+        File image = imageFileFor(dataFile);
+        if (!image.isFile()) {
+            return null;
+        }
+        WineIndex index = null;
+        try (FileChannel in = FileChannel.open(image.toPath(),
+                StandardOpenOption.READ)) {
+            if (in.size() >= HEADER_SIZE && in.size() <= Integer.MAX_VALUE) {
+                MappedByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY,
+                        0, in.size());
+                index = read(buf, dataFile, store);
+            }
+        } finally {
+            // an image is good for one start only, see the class comment
+            image.delete();
+        }
+        if (index != null) {
+            LOADS.increment();
+        }
+        return index;
+    }
+
+    private static WineIndex read(ByteBuffer buf, File dataFile,
+            WineStore store) {
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+                || buf.getLong(8) != dataFile.length()
+                || buf.getLong(16) != dataFile.lastModified()) {
+            return null;
+        }
+        int rows = buf.getInt(24);
+        int stringCount = buf.getInt(28);
+        buf.position(HEADER_SIZE);
+        CRC32C crc = new CRC32C();
+        crc.update(buf.duplicate());
+        if ((int) crc.getValue() != buf.getInt(32) || rows < 0
+                || stringCount < 0) {
+            return null;
+        }
+        try {
+            List<String> values = new ArrayList<>(stringCount);
+            for (int i = 0; i < stringCount; i++) {
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                values.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            int[] ids = getInts(buf, rows);
+            int[] estates = getInts(buf, rows);
+            int[] grapes = getInts(buf, rows);
+            int[] years = getInts(buf, rows);
+            int[] quantities = getInts(buf, rows);
+            double[] prices = new double[rows];
+            buf.asDoubleBuffer().get(prices);
+            buf.position(buf.position() + rows * 8);
+
+            Map<String, WineIndex.Posting> estateIndex = readStrings(buf,
+                    values);
+            Map<String, WineIndex.Posting> grapeIndex = readStrings(buf,
+                    values);
+            NavigableMap<Integer, WineIndex.Posting> yearIndex =
+                new TreeMap<>();
+            for (int n = buf.getInt(); n > 0; n--) {
+                yearIndex.put(buf.getInt(), getPosting(buf));
+            }
+            NavigableMap<Double, WineIndex.Posting> priceIndex =
+                new TreeMap<>();
+            for (int n = buf.getInt(); n > 0; n--) {
+                priceIndex.put(buf.getDouble(), getPosting(buf));
+            }
+            store.restore(values, rows, ids, estates, grapes, years,
+                    quantities, prices);
+            return WineIndex.restore(store, estateIndex, grapeIndex,
+                    yearIndex, priceIndex);
+        } catch (RuntimeException ex) {
+            // a checksum match makes this unlikely, but it is only a cache
+            store.clear();
+            return null;
+        }
+    }
+
+    private static void writeStrings(Sink sink,
+            Map<String, WineIndex.Posting> postings, StringTable strings)
+            throws IOException {
+        sink.putInt(postings.size());
+        for (Map.Entry<String, WineIndex.Posting> e : postings.entrySet()) {
+            sink.putInt(strings.codeOf(e.getKey()));
+            sink.putPosting(e.getValue());
+        }
+    }
+
+    private static Map<String, WineIndex.Posting> readStrings(ByteBuffer buf,
+            List<String> values) {
+        int n = buf.getInt();
+        Map<String, WineIndex.Posting> postings = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            postings.put(values.get(buf.getInt()), getPosting(buf));
+        }
+        return postings;
+    }
+
+    private static WineIndex.Posting getPosting(ByteBuffer buf) {
+        WineIndex.Posting p = new WineIndex.Posting();
+        p.size = buf.getInt();
+        if (p.size > 0) {
+            p.ids = getInts(buf, p.size);
+        }
+        return p;
+    }
+
+    private static int[] getInts(ByteBuffer buf, int n) {
+        int[] values = new int[n];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + n * 4);
+        return values;
+    }
+
+    /**
+     * Buffered, checksummed output of the image body, which starts right
+     * after the header
+     */
+    private static class Sink {
+
+        private final FileChannel out;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        private final CRC32C crc = new CRC32C();
+        private long pos = HEADER_SIZE;
+
+        Sink(FileChannel out) {
+            this.out = out;
+        }
+
+        void putInt(int value) throws IOException {
+            room(4);
+            buf.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            room(8);
+            buf.putDouble(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int done = 0;
+            while (done < bytes.length) {
+                room(1);
+                int n = Math.min(buf.remaining(), bytes.length - done);
+                buf.put(bytes, done, n);
+                done += n;
+            }
+        }
+
+        void putInts(int[] values, int n) throws IOException {
+            int done = 0;
+            while (done < n) {
+                room(4);
+                int count = Math.min(buf.remaining() / 4, n - done);
+                buf.asIntBuffer().put(values, done, count);
+                buf.position(buf.position() + count * 4);
+                done += count;
+            }
+        }
+
+        void putDoubles(double[] values, int n) throws IOException {
+            int done = 0;
+            while (done < n) {
+                room(8);
+                int count = Math.min(buf.remaining() / 8, n - done);
+                buf.asDoubleBuffer().put(values, done, count);
+                buf.position(buf.position() + count * 8);
+                done += count;
+            }
+        }
+
+        void putPosting(WineIndex.Posting p) throws IOException {
+            putInt(p.size);
+            putInts(p.ids, p.size);
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            crc.update(buf.duplicate());
+            while (buf.hasRemaining()) {
+                pos += out.write(buf, pos);
+            }
+            buf.clear();
+        }
+
+        private void room(int bytes) throws IOException {
+            if (buf.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+    StringTable.java
+    Author: Scott Forsyth
+
+    Description
+    A dictionary that maps repeated String values to small int codes
+*/
+package storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary encoding for String columns. Every distinct value is stored
+ * once and rows refer to it by its int code, so a million Merlots share a
+ * single String. Codes are handed out in insertion order and never reused.
+ *
+ * @author Scott Forsyth
+ */
+public class StringTable {
+
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    /**
+     * Returns the code for the value, adding the value to the table if it
+     * has not been seen before
+     *
+     * @param value the String to encode
+     * @return the code that identifies the value
+     */
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            values.add(value);
+            codes.put(value, code);
+        }
+        return code;
+    }
+
+    /**
+     * Returns the code of a value without adding it
+     *
+     * @param value the String to look up
+     * @return the code of the value, or -1 if it is not in the table
+     */
+    public int codeOf(String value) {
+        Integer code = codes.get(value);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Returns the value for a code
+     *
+     * @param code a code returned by encode()
+     * @return the String the code stands for
+     */
+    public String decode(int code) {
+        return values.get(code);
+    }
+
+    /**
+     * Accessor for the number of distinct values in the table
+     *
+     * @return the number of distinct values
+     */
+    public int size() {
+        return values.size();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+    TransferReport.java
+    Author: Scott Forsyth
+
+    Description
+    The outcome of a bulk import or export
+*/
+package storage;
+
+import java.util.List;
+import models.WineValidator;
+
+/**
+ * Counts the records a bulk import or export wrote and rejected, keeps the
+ * line numbers of the first rejected rows and the first few error
+ * messages, and measures the throughput.
+ *
+ * @author Scott Forsyth
+ */
+public class TransferReport {
+
+    // only the first errors are kept so a bad file cannot use up memory
+    static final int MAX_ERRORS = 100;
+    static final int MAX_REJECTED_LINES = 100_000;
+
+    private final long start = System.nanoTime();
+    private long elapsed = -1;
+    private long records;
+    private final WineValidator validator =
+        new WineValidator(MAX_ERRORS, MAX_REJECTED_LINES);
+
+    void recordDone() {
+        records++;
+    }
+
+    void reject(long line, String message) {
+        validator.reject(line, message);
+    }
+
+    /*
+    * The validator whose rejected rows this report counts
+    */
+    WineValidator validator() {
+        return validator;
+    }
+
+    void finish() {
+        elapsed = System.nanoTime() - start;
+    }
+
+    /**
+     * Accessor for the number of records written
+     * @return the number of records that were transferred
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Accessor for the number of rows that failed validation
+     * @return the number of rejected rows
+     */
+    public long getRejected() {
+        return validator.getRejected();
+    }
+
+    /**
+     * Accessor for the line numbers of the first rejected rows, or the
+     * record numbers for a binary import
+     * @return at most MAX_REJECTED_LINES numbers, in the order the rows
+     *     were read
+     */
+    public long[] getRejectedLines() {
+        return validator.getRejectedRows();
+    }
+
+    /**
+     * Accessor for the messages of the first rejected rows
+     * @return at most MAX_ERRORS error messages
+     */
+    public List<String> getErrors() {
+        return validator.getErrors();
+    }
+
+    /**
+     * Accessor for the time the transfer took
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsed < 0 ? System.nanoTime() - start : elapsed;
+    }
+
+    /**
+     * Accessor for the throughput of the transfer
+     * @return the number of records written per second
+     */
+    public double getRecordsPerSecond() {
+        long nanos = Math.max(1, getElapsedNanos());
+        return records * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records, %d rejected in %.1f ms (%.0f records/sec)",
+                records, getRejected(), getElapsedNanos() / 1e6,
+                getRecordsPerSecond());
+    }
+}
@@ -0,0 +1,313 @@
+/*
+    WineAnalytics.java
+    Author: Scott Forsyth
+
+    Description
+    Inventory totals of the wines (bottles, stock value and averages),
+    overall and grouped by grape, estate and vintage year
+*/
+package storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IntSummaryStatistics;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import models.Wine;
+
+/**
+ * Analytics over the wines of a WineRepository. When attached, the totals
+ * of every group are computed once with a parallel fork/join scan of the
+ * primitive columns of the WineStore (or with one pass over the rows of a
+ * paged file). After that the analytics listen to the repository and move
+ * each added, changed or deleted wine in or out of the overall totals and
+ * its three groups, so the numbers stay current at a constant cost per
+ * edit however many wines there are.
+ * <p>
+ * groupBy() can also be used on its own for a one-off report of a store.
+ * Like the repository, attached analytics are meant to be used from one
+ * thread at a time.
+ *
+ * @author Scott Forsyth
+ */
+public class WineAnalytics implements WineRepository.Listener {
+
+    /**
+     * The ways wines can be grouped
+     */
+    public enum Dimension {
+        GRAPE, ESTATE, YEAR
+    }
+
+    // rows per fork/join leaf
+    private static final int THRESHOLD = 1 << 16;
+
+    private final WineRepository repository;
+    private final InventoryTotals totals = new InventoryTotals("All wines");
+    private final Map<Dimension, Map<String, InventoryTotals>> groups =
+        new EnumMap<>(Dimension.class);
+    private Runnable onChange;
+
+    private WineAnalytics(WineRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Computes the totals of a repository and keeps them up to date with
+     * every later change
+     *
+     * @param repository the repository to follow
+     * @return the analytics of the repository
+     */
+    public static WineAnalytics attach(WineRepository repository) {
+        WineAnalytics analytics = new WineAnalytics(repository);
+        WineStore store = repository.getStore();
+        if (store != null) {
+            for (Dimension d : Dimension.values()) {
+                analytics.groups.put(d, groupBy(store, d));
+            }
+            for (InventoryTotals t : analytics.groups.get(Dimension.GRAPE).values()) {
+                analytics.totals.addAll(t);
+            }
+        } else {
+            for (Dimension d : Dimension.values()) {
+                analytics.groups.put(d, new HashMap<>());
+            }
+            repository.scan(analytics::add);
+        }
+        repository.addListener(analytics);
+        return analytics;
+    }
+
+    /**
+     * Computes the totals of every group of a store with a parallel scan of
+     * its columns, in the common fork/join pool
+     *
+     * @param store the wines to scan
+     * @param by how to group them
+     * @return the totals of each group, keyed by group name
+     */
+    public static Map<String, InventoryTotals> groupBy(WineStore store,
+            Dimension by) {
+        int n = store.size();
+        int[] keys;
+        int base = 0;
+        int groupCount;
+        if (by == Dimension.YEAR) {
+            keys = store.yearColumn();
+            IntSummaryStatistics years = Arrays.stream(keys, 0, n)
+                .parallel().summaryStatistics();
+            base = n == 0 ? 0 : years.getMin();
+            groupCount = n == 0 ? 0 : years.getMax() - base + 1;
+        } else {
+            keys = by == Dimension.GRAPE ? store.grapeCodes()
+                : store.estateCodes();
+            groupCount = store.getStrings().size();
+        }
+        Sums sums = ForkJoinPool.commonPool().invoke(new Scan(store, keys,
+                base, groupCount, 0, n));
+        Map<String, InventoryTotals> result = new HashMap<>();
+        for (int g = 0; g < groupCount; g++) {
+            if (sums.wines[g] > 0) {
+                String name = by == Dimension.YEAR ? String.valueOf(base + g)
+                    : store.getStrings().decode(g);
+                result.put(name, new InventoryTotals(name, sums.wines[g],
+                        sums.bottles[g], sums.value[g], sums.priceSum[g]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the action to run after the totals changed because of an edit
+     *
+     * @param onChange the action, or null for none
+     */
+    public void setOnChange(Runnable onChange) {
+        this.onChange = onChange;
+    }
+
+    /**
+     * Accessor for the totals of all the wines
+     * @return the live overall totals
+     */
+    public InventoryTotals getTotals() {
+        return totals;
+    }
+
+    /**
+     * Returns the totals of every group, sorted by group name
+     *
+     * @param by how the wines are grouped
+     * @return copies of the group totals
+     */
+    public List<InventoryTotals> getGroups(Dimension by) {
+        List<InventoryTotals> list = new ArrayList<>(groups.get(by).size());
+        for (InventoryTotals t : groups.get(by).values()) {
+            list.add(t.copy());
+        }
+        list.sort(Comparator.comparing(InventoryTotals::getGroup));
+        return list;
+    }
+
+    /**
+     * Returns the totals of one group
+     *
+     * @param by how the wines are grouped
+     * @param group the group name, a grape, estate or year
+     * @return the live totals, or null if no wine is in the group
+     */
+    public InventoryTotals getGroup(Dimension by, String group) {
+        return groups.get(by).get(group);
+    }
+
+    /**
+     * Stops following the repository
+     */
+    public void detach() {
+        repository.removeListener(this);
+    }
+
+    @Override
+    public void added(int row, Wine w) {
+        add(w);
+        changed();
+    }
+
+    @Override
+    public void updated(int row, Wine old, Wine w) {
+        remove(old);
+        add(w);
+        changed();
+    }
+
+    @Override
+    public void removed(int row, Wine old) {
+        remove(old);
+        changed();
+    }
+
+    private void add(Wine w) {
+        totals.add(w.getQuantity(), w.getPrice());
+        for (Dimension d : Dimension.values()) {
+            groups.get(d).computeIfAbsent(keyOf(w, d), InventoryTotals::new)
+                .add(w.getQuantity(), w.getPrice());
+        }
+    }
+
+    private void remove(Wine w) {
+        totals.remove(w.getQuantity(), w.getPrice());
+        for (Dimension d : Dimension.values()) {
+            Map<String, InventoryTotals> map = groups.get(d);
+            String key = keyOf(w, d);
+            InventoryTotals t = map.get(key);
+            if (t != null) {
+                t.remove(w.getQuantity(), w.getPrice());
+                if (t.getWines() == 0) {
+                    map.remove(key);
+                }
+            }
+        }
+    }
+
+    private void changed() {
+        if (onChange != null) {
+            onChange.run();
+        }
+    }
+
+    private static String keyOf(Wine w, Dimension d) {
+        switch (d) {
+            case GRAPE:
+                return w.getGrape();
+            case ESTATE:
+                return w.getEstate();
+            default:
+                return String.valueOf(w.getYear());
+        }
+    }
+
+    /**
+     * Per-group sums of a range of rows, one array slot per group
+     */
+    private static class Sums {
+
+        final long[] wines;
+        final long[] bottles;
+        final double[] value;
+        final double[] priceSum;
+
+        Sums(int groups) {
+            wines = new long[groups];
+            bottles = new long[groups];
+            value = new double[groups];
+            priceSum = new double[groups];
+        }
+
+        Sums merge(Sums other) {
+            for (int g = 0; g < wines.length; g++) {
+                wines[g] += other.wines[g];
+                bottles[g] += other.bottles[g];
+                value[g] += other.value[g];
+                priceSum[g] += other.priceSum[g];
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Sums the rows from..to of the store, splitting the range in halves
+     * until it is at most THRESHOLD rows long
+     */
+    private static class Scan extends RecursiveTask<Sums> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final WineStore store;
+        private final int[] keys;
+        private final int base;
+        private final int groups;
+        private final int from;
+        private final int to;
+
+        Scan(WineStore store, int[] keys, int base, int groups, int from,
+                int to) {
+            this.store = store;
+            this.keys = keys;
+            this.base = base;
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Sums compute() {
+            if (to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                Scan left = new Scan(store, keys, base, groups, from, mid);
+                left.fork();
+                Sums right = new Scan(store, keys, base, groups, mid, to)
+                    .compute();
+                return left.join().merge(right);
+            }
+            Sums sums = new Sums(groups);
+            int[] quantities = store.quantityColumn();
+            double[] prices = store.priceColumn();
+            for (int row = from; row < to; row++) {
+                int g = keys[row] - base;
+                int quantity = quantities[row];
+                double price = prices[row];
+                sums.wines[g]++;
+                sums.bottles[g] += quantity;
+                sums.value[g] += quantity * price;
+                sums.priceSum[g] += price;
+            }
+            return sums;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+    WineCatalog.java
+    Author: Scott Forsyth
+
+    Description
+    The operations shared by a single wine file and a sharded cellar
+*/
+package storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import models.Wine;
+
+/**
+ * Reading and changing wines by wineID, whether they live in one data file
+ * (WineRepository) or are spread over several (ShardedWineRepository).
+ * Changes are applied in memory right away and the returned futures
+ * complete once they are durable.
+ *
+ * @author Scott Forsyth
+ */
+public interface WineCatalog {
+
+    /**
+     * Accessor for the number of wines
+     * @return the number of wines in the catalog
+     */
+    int size();
+
+    /**
+     * Returns a read-only List view of all the wines
+     * @return a live view of the wines
+     */
+    List<Wine> rows();
+
+    /**
+     * Reads one wine
+     *
+     * @param wineID the wineID of the wine
+     * @return the wine, or null if there is no such wine
+     */
+    Wine get(int wineID);
+
+    /**
+     * Finds the wines that match a query
+     *
+     * @param q the conditions to match
+     * @return the matching wines in wineID order
+     */
+    List<Wine> find(WineQuery q);
+
+    /**
+     * Passes every wine to a consumer as it was when the scan started. The
+     * wines are read from a snapshot of the files, so the scan can run on
+     * any thread while the wines are changed.
+     *
+     * @param action receives each wine
+     * @throws IOException if a file cannot be read
+     */
+    void scanSnapshot(Consumer<Wine> action) throws IOException;
+
+    /**
+     * Adds a new wine
+     *
+     * @param w the wine to add, its wineID is set by this method
+     * @return a future that completes when the wine is durable
+     */
+    CompletableFuture<Void> add(Wine w);
+
+    /**
+     * Adds many new wines at once, made durable together
+     *
+     * @param wines the wines to add, their wineIDs are set by this method
+     * @return a future that completes when every wine is durable
+     */
+    CompletableFuture<Void> addAll(List<Wine> wines);
+
+    /**
+     * Replaces the values of an existing wine
+     *
+     * @param w the wine with the new values and an existing wineID
+     * @return a future that completes when the change is durable
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    CompletableFuture<Void> update(Wine w);
+
+    /**
+     * Replaces the values of many existing wines at once, made durable
+     * together. If one of the wineIDs does not exist, none of the wines are
+     * changed. A sharded cellar only takes the wines of one shard in a
+     * batch.
+     *
+     * @param wines the wines with the new values and existing wineIDs
+     * @return a future that completes when every change is durable
+     * @throws IllegalArgumentException if there is no wine with one of the
+     *     wineIDs, or the batch cannot be made durable together
+     */
+    CompletableFuture<Void> updateAll(List<Wine> wines);
+
+    /**
+     * Deletes a wine
+     *
+     * @param wineID the wineID of the wine to delete
+     * @return a future that completes when the deletion is durable
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    CompletableFuture<Void> delete(int wineID);
+
+    /**
+     * Waits for pending writes and closes the files
+     *
+     * @throws IOException if a file cannot be closed cleanly
+     */
+    void close() throws IOException;
+}
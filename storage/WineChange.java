@@ -0,0 +1,125 @@
+/*
+    WineChange.java
+    Author: Scott Forsyth
+
+    Description
+    One change of the wines, as published to subscribers of a
+    WineChangePublisher
+*/
+package storage;
+
+import models.Wine;
+
+/**
+ * An added, updated or deleted wine. The wines are copies taken when the
+ * change was made, so an event never changes after it was published.
+ * Every publisher numbers its events from 1, without gaps, so a subscriber
+ * can tell whether it missed any.
+ *
+ * @author Scott Forsyth
+ */
+public class WineChange {
+
+    /**
+     * What happened to the wine
+     */
+    public enum Kind {
+        ADDED, UPDATED, DELETED
+    }
+
+    private final long sequence;
+    private final long time;
+    private final Kind kind;
+    private final Wine before;
+    private final Wine after;
+
+    WineChange(long sequence, Kind kind, Wine before, Wine after) {
+        this.sequence = sequence;
+        this.time = System.currentTimeMillis();
+        this.kind = kind;
+        this.before = copy(before);
+        this.after = copy(after);
+    }
+
+    /**
+     * Accessor for the number of the event
+     * @return the sequence number, 1 for the first event of a publisher
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Accessor for when the change was made
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Accessor for the kind of change
+     * @return ADDED, UPDATED or DELETED
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Accessor for the wineID of the changed wine
+     * @return the wineID
+     */
+    public int getWineID() {
+        return (after != null ? after : before).getWineID();
+    }
+
+    /**
+     * Accessor for the values before the change
+     * @return a copy of the old values, or null for an added wine
+     */
+    public Wine getBefore() {
+        return copy(before);
+    }
+
+    /**
+     * Accessor for the values after the change
+     * @return a copy of the new values, or null for a deleted wine
+     */
+    public Wine getAfter() {
+        return copy(after);
+    }
+
+    /**
+     * Accessor for the wine the change is about, the new values unless it
+     * was deleted. The Wine must not be changed.
+     * @return the new values, or the old values of a deleted wine
+     */
+    Wine current() {
+        return after != null ? after : before;
+    }
+
+    /**
+     * Accessor for the old values without copying them. The Wine must not
+     * be changed.
+     * @return the old values, or null for an added wine
+     */
+    Wine previous() {
+        return before;
+    }
+
+    @Override
+    public String toString() {
+        Wine w = current();
+        return "#" + sequence + " " + kind + " " + w.getWineID() + " "
+            + w.getEstate() + " " + w.getGrape() + " " + w.getYear() + " x"
+            + w.getQuantity() + " $" + w.getPrice();
+    }
+
+    private static Wine copy(Wine w) {
+        if (w == null) {
+            return null;
+        }
+        return Wine.trusted(w.getWineID(), w.getEstate(), w.getGrape(),
+                w.getYear(), w.getQuantity(), w.getPrice());
+    }
+}
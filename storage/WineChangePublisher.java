@@ -0,0 +1,396 @@
+/*
+    WineChangePublisher.java
+    Author: Scott Forsyth
+
+    Description
+    Streams the changes of a WineRepository to in-process subscribers and,
+    optionally, to an append-only change log file
+*/
+package storage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metrics.WineMetrics;
+import models.Wine;
+
+/**
+ * Publishes every add, update and delete of a WineRepository as a
+ * WineChange, so that other parts of the application, such as purchasing,
+ * can react to low stock or new prices instead of rescanning the wines.
+ * <p>
+ * Every subscriber gets its own ChangeFilter and a buffer of a fixed size
+ * between the repository and itself, and receives the changes on an
+ * executor, never on the thread that made them. It receives no more than
+ * it has requested; the changes it has not requested yet wait in its
+ * buffer. The repository is never held up by a slow subscriber: when the
+ * buffer of a subscriber is full, the subscriber gets onError() with a
+ * BufferOverflow and no further changes, and has to catch up, for example
+ * from the change log, and subscribe again. The sequence numbers of the
+ * changes tell it where to start.
+ * <p>
+ * The change log is a CSV file with one line per change, which other
+ * processes can tail:
+ * <pre>
+ *   sequence,time,change,wineID,estate,grape,year,quantity,price
+ * </pre>
+ * The values are those after the change, or of the deleted wine. A line
+ * is appended and flushed on a thread of the log once the write of its
+ * change is durable, so the log never holds a change a crash took back; a
+ * change whose write failed is not logged. Lines that cannot be written
+ * are counted in the changes.logFailures metric. The sequence numbers go
+ * on from the last line of an existing log, so they never repeat.
+ *
+ * @author Scott Forsyth
+ */
+public class WineChangePublisher implements Flow.Publisher<WineChange>,
+        WineRepository.Listener, AutoCloseable {
+
+    public static final int DEFAULT_BUFFER = 1024;
+    public static final String LOG_HEADER =
+        "sequence,time,change," + WineCsv.HEADER;
+
+    // the most read from the end of a change log to find its last line
+    private static final int MAX_TAIL = 64 * 1024;
+
+    private static final LongAdder LOG_FAILURES =
+        WineMetrics.get().counter("changes.logFailures");
+    private static final Logger LOG =
+        Logger.getLogger(WineChangePublisher.class.getName());
+
+    private final WineRepository repository;
+    private final Executor executor;
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
+    private final Writer log;
+    private final ExecutorService logWriter;
+    // completes when the line of the last change is written
+    private CompletableFuture<Void> logged =
+        CompletableFuture.completedFuture(null);
+    private long sequence;
+    private boolean closed;
+
+    private WineChangePublisher(WineRepository repository, Executor executor,
+            Writer log, long sequence) {
+        this.repository = repository;
+        this.executor = executor;
+        this.log = log;
+        this.sequence = sequence;
+        this.logWriter = log == null ? null
+            : Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "wine-change-log");
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    /**
+     * Starts publishing the changes of a repository
+     *
+     * @param repository the repository whose changes are published
+     * @return the publisher
+     */
+    public static WineChangePublisher attach(WineRepository repository) {
+        return start(new WineChangePublisher(repository,
+                ForkJoinPool.commonPool(), null, 0));
+    }
+
+    /**
+     * Starts publishing the changes of a repository and appending them to
+     * a change log
+     *
+     * @param repository the repository whose changes are published
+     * @param changeLog the file the changes are appended to, created with
+     *     a header line if it does not exist, or null for no log. A line
+     *     left half written by a crash is cut off.
+     * @return the publisher
+     * @throws IOException if the change log cannot be opened or its last
+     *     line has no sequence number
+     */
+    public static WineChangePublisher attach(WineRepository repository,
+            File changeLog) throws IOException {
+        Writer log = null;
+        long sequence = 0;
+        if (changeLog != null) {
+            if (changeLog.isFile()) {
+                sequence = lastSequence(changeLog);
+            }
+            boolean created = !changeLog.isFile() || changeLog.length() == 0;
+            log = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(changeLog, true),
+                    StandardCharsets.UTF_8));
+            if (created) {
+                log.write(LOG_HEADER);
+                log.write('\n');
+                log.flush();
+            }
+        }
+        return start(new WineChangePublisher(repository,
+                ForkJoinPool.commonPool(), log, sequence));
+    }
+
+    private static WineChangePublisher start(WineChangePublisher publisher) {
+        publisher.repository.addListener(publisher);
+        return publisher;
+    }
+
+    /**
+     * Subscribes to every change, with a buffer of DEFAULT_BUFFER changes
+     *
+     * @param subscriber receives the changes
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super WineChange> subscriber) {
+        subscribe(subscriber, new ChangeFilter(), DEFAULT_BUFFER);
+    }
+
+    /**
+     * Subscribes to the changes that pass a filter
+     *
+     * @param subscriber receives the changes
+     * @param filter the changes the subscriber wants
+     * @param buffer how many changes may wait for the subscriber to request
+     *     them before it is dropped, rounded up to a power of two
+     */
+    public synchronized void subscribe(
+            Flow.Subscriber<? super WineChange> subscriber,
+            ChangeFilter filter, int buffer) {
+        Channel channel = new Channel(filter, executor, buffer);
+        channel.subscribe(subscriber);
+        if (closed) {
+            channel.close();
+        } else {
+            channels.add(channel);
+        }
+    }
+
+    /**
+     * Accessor for the number of subscribers still receiving changes
+     * @return the number of subscribers
+     */
+    public int getSubscriberCount() {
+        int count = 0;
+        for (Channel c : channels) {
+            count += c.getNumberOfSubscribers();
+        }
+        return count;
+    }
+
+    @Override
+    public void added(int row, Wine w) {
+        publish(WineChange.Kind.ADDED, null, w);
+    }
+
+    @Override
+    public void updated(int row, Wine old, Wine w) {
+        publish(WineChange.Kind.UPDATED, old, w);
+    }
+
+    @Override
+    public void removed(int row, Wine old) {
+        publish(WineChange.Kind.DELETED, old, null);
+    }
+
+    /**
+     * Stops publishing: the subscribers get onComplete() once they have
+     * received the changes in their buffers, and the change log is closed
+     * once the changes made so far are durable and logged
+     *
+     * @throws IOException if the change log cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        repository.removeListener(this);
+        for (Channel c : channels) {
+            c.close();
+        }
+        channels.clear();
+        if (log != null) {
+            logged.join();
+            logWriter.shutdown();
+            try {
+                logWriter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            log.close();
+        }
+    }
+
+    private synchronized void publish(WineChange.Kind kind, Wine old,
+            Wine w) {
+        if (closed) {
+            return;
+        }
+        WineChange change = new WineChange(++sequence, kind, old, w);
+        if (log != null) {
+            // writes complete in order, so the lines are queued in order
+            logged = repository.getPersistence().lastWrite()
+                .handleAsync((done, failure) -> {
+                    if (failure == null) {
+                        appendToLog(change);
+                    }
+                    return null;
+                }, logWriter);
+        }
+        for (Channel c : channels) {
+            if (!c.hasSubscribers()) {
+                channels.remove(c);
+            } else if (c.filter.matches(change)) {
+                c.send(change);
+            }
+        }
+    }
+
+    /*
+    * Runs on the log thread. A failure is reported, not thrown, so the
+    * lines of later changes are still written.
+    */
+    private void appendToLog(WineChange change) {
+        try {
+            writeLine(change);
+        } catch (IOException | RuntimeException ex) {
+            LOG_FAILURES.increment();
+            LOG.log(Level.WARNING, "Change #" + change.getSequence()
+                    + " could not be written to the change log", ex);
+        }
+    }
+
+    private void writeLine(WineChange change) throws IOException {
+        Wine w = change.current();
+        StringBuilder line = new StringBuilder(96);
+        line.append(change.getSequence()).append(',')
+            .append(change.getTime()).append(',')
+            .append(change.getKind()).append(',')
+            .append(w.getWineID()).append(',');
+        WineCsv.appendField(line, w.getEstate());
+        line.append(',');
+        WineCsv.appendField(line, w.getGrape());
+        line.append(',').append(w.getYear())
+            .append(',').append(w.getQuantity())
+            .append(',').append(w.getPrice()).append('\n');
+        log.write(line.toString());
+        log.flush();
+    }
+
+    /*
+    * Returns the sequence number on the last line of a change log, or 0 if
+    * it only has its header, and cuts off a line left half written by a
+    * crash
+    */
+    private static long lastSequence(File changeLog) throws IOException {
+        try (FileChannel ch = FileChannel.open(changeLog.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            int length = (int) Math.min(size, MAX_TAIL);
+            ByteBuffer tail = ByteBuffer.allocate(length);
+            long pos = size - length;
+            while (tail.hasRemaining()) {
+                if (ch.read(tail, pos + tail.position()) < 0) {
+                    throw new IOException("Change log shrank: " + changeLog);
+                }
+            }
+            byte[] bytes = tail.array();
+            int end = length - 1;
+            while (end >= 0 && bytes[end] != '\n') {
+                end--;
+            }
+            if (end < 0 && pos > 0) {
+                throw new IOException("Change log line too long: "
+                        + changeLog);
+            }
+            // everything after the last newline was never completed
+            ch.truncate(pos + end + 1);
+            if (end < 0) {
+                return 0;
+            }
+            int start = end - 1;
+            while (start >= 0 && bytes[start] != '\n') {
+                start--;
+            }
+            if (start < 0 && pos > 0) {
+                throw new IOException("Change log line too long: "
+                        + changeLog);
+            }
+            String last = new String(bytes, start + 1,
+                    Math.max(end - start - 1, 0), StandardCharsets.UTF_8);
+            if (last.isEmpty() || last.equals(LOG_HEADER)) {
+                return 0;
+            }
+            try {
+                return Long.parseLong(last.substring(0, last.indexOf(',')));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException
+                    ex) {
+                throw new IOException("No sequence number on the last line "
+                        + "of " + changeLog, ex);
+            }
+        }
+    }
+
+    /**
+     * Reported to a subscriber whose buffer filled up
+     */
+    public static class BufferOverflow extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long missed;
+
+        BufferOverflow(long missed) {
+            super("The subscriber fell behind, the first change it missed "
+                    + "is #" + missed);
+            this.missed = missed;
+        }
+
+        /**
+         * Accessor for the first change the subscriber did not get
+         * @return the sequence number of the change that was dropped
+         */
+        public long getMissedSequence() {
+            return missed;
+        }
+    }
+
+    /**
+     * The filter and the bounded buffer of one subscriber. The buffer,
+     * demand and delivery are those of a SubmissionPublisher of its own.
+     */
+    private static class Channel extends SubmissionPublisher<WineChange> {
+
+        final ChangeFilter filter;
+
+        Channel(ChangeFilter filter, Executor executor, int buffer) {
+            super(executor, buffer);
+            this.filter = filter;
+        }
+
+        void send(WineChange change) {
+            if (offer(change, null) < 0) {
+                closeExceptionally(new BufferOverflow(change.getSequence()));
+            }
+        }
+    }
+}
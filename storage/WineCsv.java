@@ -0,0 +1,75 @@
+/*
+    WineCsv.java
+    Author: Scott Forsyth
+
+    Description
+    Splits and formats the comma separated lines used to import and export
+    wines
+*/
+package storage;
+
+import java.util.List;
+
+/**
+ * Minimal CSV support for wine files. Fields are separated by commas and
+ * may be enclosed in double quotes, inside which a comma is literal and a
+ * doubled quote stands for one quote.
+ *
+ * @author Scott Forsyth
+ */
+public class WineCsv {
+
+    public static final String HEADER = "wineID,estate,grape,year,quantity,price";
+
+    private WineCsv() {
+    }
+
+    /**
+     * Splits one line into its fields
+     *
+     * @param line the line to split
+     * @param fields the list that receives the fields, it is cleared first
+     * @return the fields list
+     */
+    public static List<String> split(String line, List<String> fields) {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * Appends a field to a line, quoting it if it contains a comma or quote
+     *
+     * @param line the line being built
+     * @param value the value of the field
+     */
+    public static void appendField(StringBuilder line, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            line.append(value);
+        } else {
+            line.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+    WineExporter.java
+    Author: Scott Forsyth
+
+    Description
+    Streams the wines of a repository or cellar out to CSV or to a compact
+    binary file
+*/
+package storage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bulk export from an open wine file or cellar. The wines are read from a
+ * snapshot through WineCatalog.scanSnapshot(), so the export holds every
+ * change made before it started, including those the writer has only
+ * logged so far, and none made after, while changes go on. They are
+ * written out with large buffers, so memory use does not depend on the
+ * size of the file. Deleted wines are left out and wineIDs are kept.
+ *
+ * @author Scott Forsyth
+ */
+public class WineExporter {
+
+    private static final int BATCH_SIZE = WineImporter.BATCH_SIZE;
+
+    /**
+     * Writes every wine as a CSV row, after a header line
+     *
+     * @param catalog the wines to export
+     * @param out where the CSV goes, it is flushed but not closed
+     * @return the number of exported rows and the throughput
+     * @throws IOException if the wines cannot be read or the output written
+     */
+    public TransferReport exportCsv(WineCatalog catalog, Writer out)
+            throws IOException {
+        TransferReport report = new TransferReport();
+        BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+        StringBuilder line = new StringBuilder(64);
+        writer.write(WineCsv.HEADER);
+        writer.newLine();
+        try {
+            catalog.scanSnapshot(w -> {
+                line.setLength(0);
+                line.append(w.getWineID()).append(',');
+                WineCsv.appendField(line, w.getEstate());
+                line.append(',');
+                WineCsv.appendField(line, w.getGrape());
+                line.append(',').append(w.getYear())
+                    .append(',').append(w.getQuantity())
+                    .append(',').append(w.getPrice());
+                try {
+                    writer.append(line);
+                    writer.newLine();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                report.recordDone();
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        writer.flush();
+        report.finish();
+        return report;
+    }
+
+    /**
+     * Writes every wine into a new file in the wines.dat format, without
+     * deleted slots
+     *
+     * @param catalog the wines to export
+     * @param target the file to create or overwrite
+     * @return the number of exported records and the throughput
+     * @throws IOException if the wines cannot be read or the target written
+     */
+    public TransferReport exportBinary(WineCatalog catalog, File target)
+            throws IOException {
+        TransferReport report = new TransferReport();
+        WineRecordCodec codec = new WineRecordCodec();
+        ByteBuffer batch =
+            ByteBuffer.allocate(BATCH_SIZE * WineRecordCodec.RECORD_SIZE);
+        try (FileOutputStream fos = new FileOutputStream(target);
+                FileChannel out = fos.getChannel()) {
+            try {
+                catalog.scanSnapshot(w -> {
+                    if (!batch.hasRemaining()) {
+                        writeBatch(out, batch);
+                    }
+                    codec.encode(w, batch, batch.position());
+                    batch.position(batch.position()
+                            + WineRecordCodec.RECORD_SIZE);
+                    report.recordDone();
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            writeBatch(out, batch);
+            out.force(true);
+        }
+        report.finish();
+        return report;
+    }
+
+    private static void writeBatch(FileChannel out, ByteBuffer batch) {
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                out.write(batch);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        batch.clear();
+    }
+}
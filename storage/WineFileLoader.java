@@ -0,0 +1,91 @@
+/*
+    WineFileLoader.java
+    Author: Scott Forsyth
+
+    Description
+    Loads all the wine records from a wines.dat file by memory mapping it
+    and decoding whole records at once
+*/
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import models.Wine;
+
+/**
+ * Bulk loader for the wine data file. Instead of reading the file one field
+ * at a time, the file is mapped into memory in large windows and every
+ * record is decoded straight from the mapped buffer. Records of deleted wines
+ * are skipped.
+ *
+ * @author Scott Forsyth
+ */
+public class WineFileLoader {
+
+    /*
+    * Size of one mapped window. It is a multiple of RECORD_SIZE so that a
+    * record never crosses two windows
+    */
+    static final long WINDOW_SIZE = WineRecordCodec.RECORD_SIZE * (1L << 20);
+
+    private final WineRecordCodec codec = new WineRecordCodec();
+
+    /**
+     * Reads every complete record in the file. A trailing partial record and
+     * deleted (tombstoned) records are ignored.
+     *
+     * @param f the data file
+     * @return the wines in the order they are stored in the file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public List<Wine> load(File f) throws IOException {
+        List<Wine> wines = new ArrayList<>();
+        forEach(f, wines::add);
+        return wines;
+    }
+
+    /**
+     * Reads every complete record in the file into a WineStore, so that no
+     * Wine object has to be kept per record
+     *
+     * @param f the data file
+     * @param store the store that receives the rows
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public void load(File f, WineStore store) throws IOException {
+        forEach(f, store::add);
+    }
+
+    /**
+     * Streams every live record of the file to a consumer without keeping
+     * them, so files of any size can be processed in bounded memory
+     *
+     * @param f the data file
+     * @param sink receives one Wine per record, in file order
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public void forEach(File f, Consumer<Wine> sink) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+                FileChannel channel = raf.getChannel()) {
+            long num = channel.size() / WineRecordCodec.RECORD_SIZE;
+            long end = num * WineRecordCodec.RECORD_SIZE;
+            for (long start = 0; start < end; start += WINDOW_SIZE) {
+                long size = Math.min(WINDOW_SIZE, end - start);
+                MappedByteBuffer buf = channel.map
+                    (FileChannel.MapMode.READ_ONLY, start, size);
+                for (int pos = 0; pos < size;
+                        pos += WineRecordCodec.RECORD_SIZE) {
+                    if (buf.getInt(pos) != RecordManager.TOMBSTONE) {
+                        sink.accept(codec.decode(buf, pos));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+    WineFormatMigrator.java
+    Author: Scott Forsyth
+
+    Description
+    Converts wine files between the wines.dat layout and the compact
+    version 2 format
+*/
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One-shot, streaming conversion between the two wine file formats. Both
+ * directions read the source once and keep at most one batch in memory.
+ * wineIDs are kept and deleted slots are left out. wines.dat itself stays
+ * in the fixed 80-byte layout, because the application updates its records
+ * in place; version 2 files are for archiving and moving wines around and
+ * are read back with WineV2Reader or WineImporter.
+ * <p>
+ * From the command line:
+ * <pre>
+ *   java storage.WineFormatMigrator wines.dat wines.wv2
+ *   java storage.WineFormatMigrator --to-v1 wines.wv2 wines.dat
+ * </pre>
+ *
+ * @author Scott Forsyth
+ */
+public class WineFormatMigrator {
+
+    public static void main(String[] args) throws IOException {
+        boolean toV1 = args.length == 3 && args[0].equals("--to-v1");
+        if (args.length != 2 && !toV1) {
+            System.err.println("usage: WineFormatMigrator [--to-v1] source target");
+            System.exit(2);
+        }
+        File source = new File(args[toV1 ? 1 : 0]);
+        File target = new File(args[toV1 ? 2 : 1]);
+        WineFormatMigrator migrator = new WineFormatMigrator();
+        TransferReport report = toV1 ? migrator.toV1(source, target)
+            : migrator.toV2(source, target);
+        System.out.println(source + " -> " + target + ": " + report + ", "
+                + source.length() + " -> " + target.length() + " bytes");
+    }
+
+    /**
+     * Writes every live wine of a wines.dat file into a version 2 file
+     *
+     * @param v1 the wines.dat file
+     * @param v2 the version 2 file to create or overwrite
+     * @return the number of wines written and the throughput
+     * @throws IOException if the source cannot be read or the target written
+     */
+    public TransferReport toV2(File v1, File v2) throws IOException {
+        TransferReport report = new TransferReport();
+        WineV2Writer writer = new WineV2Writer(v2);
+        try {
+            new WineFileLoader().forEach(v1, w -> {
+                try {
+                    writer.write(w);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                report.recordDone();
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            writer.close();
+        }
+        report.finish();
+        return report;
+    }
+
+    /**
+     * Writes every wine of a version 2 file into a new file in the
+     * wines.dat layout. Estate and grape names longer than
+     * WineRecordCodec.FIELD_SIZE characters are cut to fit the record.
+     *
+     * @param v2 the version 2 file
+     * @param v1 the wines.dat file to create or overwrite
+     * @return the number of wines written and the throughput
+     * @throws IOException if the source is damaged or cannot be read, or the
+     *     target cannot be written
+     */
+    public TransferReport toV1(File v2, File v1) throws IOException {
+        TransferReport report = new TransferReport();
+        WineRecordCodec codec = new WineRecordCodec();
+        ByteBuffer batch = ByteBuffer.allocate
+            (WineImporter.BATCH_SIZE * WineRecordCodec.RECORD_SIZE);
+        try (FileChannel out = FileChannel.open(v1.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            try {
+                new WineV2Reader().forEach(v2, w -> {
+                    if (!batch.hasRemaining()) {
+                        writeBatch(out, batch);
+                    }
+                    codec.encode(w, batch, batch.position());
+                    batch.position(batch.position()
+                            + WineRecordCodec.RECORD_SIZE);
+                    report.recordDone();
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            writeBatch(out, batch);
+            out.force(true);
+        }
+        report.finish();
+        return report;
+    }
+
+    private static void writeBatch(FileChannel out, ByteBuffer batch) {
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                out.write(batch);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        batch.clear();
+    }
+}
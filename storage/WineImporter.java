@@ -0,0 +1,306 @@
+/*
+    WineImporter.java
+    Author: Scott Forsyth
+
+    Description
+    Streams large CSV or binary wine files into a wine catalog in big
+    batches
+*/
+package storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import models.Wine;
+import models.WineValidator;
+
+/**
+ * Bulk import into the wine data file. Input is read one row at a time and
+ * every row is checked with the WineValidator of the report, which records
+ * the bad rows without throwing, so an import that rejects many rows runs as
+ * fast as one that rejects none and still reports every rejected row. Only
+ * the rows that pass are built as Wines, without checking them again.
+ * Valid rows are collected into batches of BATCH_SIZE wines, and every
+ * batch is added with WineCatalog.addAll(): the wines get new wineIDs, the
+ * batch is logged and made durable as one group with one fsync, and its
+ * records are written to the end of the file in a few large writes. The
+ * import therefore goes through the same write path as every other change
+ * and can run while the GUI or the server has the file open.
+ * <p>
+ * The input is read on the calling thread while the previous batch is
+ * being written, and at most one batch waits for the disk, so memory use
+ * does not depend on the size of the input. The batches are added to the
+ * catalog on the applier given to the constructor, for example
+ * Platform::runLater in the GUI, since a WineRepository is used from one
+ * thread at a time.
+ *
+ * @author Scott Forsyth
+ */
+public class WineImporter {
+
+    public static final int BATCH_SIZE = 8192;
+    private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+    private final WineCatalog catalog;
+    private final Executor applier;
+    private List<Wine> batch = new ArrayList<>(BATCH_SIZE);
+    // the batch that is being written while the next one is read
+    private CompletableFuture<Void> pending;
+
+    /**
+     * Creates an importer that adds its batches to a catalog on the thread
+     * that runs the import
+     *
+     * @param catalog the wines to import into
+     */
+    public WineImporter(WineCatalog catalog) {
+        this(catalog, Runnable::run);
+    }
+
+    /**
+     * Creates an importer that adds its batches to a catalog on another
+     * thread
+     *
+     * @param catalog the wines to import into
+     * @param applier runs the addAll() of every batch
+     */
+    public WineImporter(WineCatalog catalog, Executor applier) {
+        this.catalog = catalog;
+        this.applier = applier;
+    }
+
+    /**
+     * Imports CSV rows. If the first line is a header its column names
+     * (wineID, estate, grape, year, quantity, price, in any order) are used
+     * to find the fields, otherwise every row is read as
+     * estate,grape,year,quantity,price. A wineID column is ignored because
+     * imported wines always get new wineIDs.
+     *
+     * @param in the CSV input, it is read to the end but not closed
+     * @return the number of imported and rejected rows and the throughput
+     * @throws IOException if the input cannot be read or the wines cannot be
+     *     written
+     */
+    public TransferReport importCsv(Reader in) throws IOException {
+        TransferReport report = new TransferReport();
+        WineValidator validator = report.validator();
+        BufferedReader reader = new BufferedReader(in, 1 << 16);
+        List<String> fields = new ArrayList<>();
+        int[] columns = {0, 1, 2, 3, 4};
+        long lineNo = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNo++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            WineCsv.split(line, fields);
+            if (lineNo == 1 && isHeader(fields)) {
+                columns = headerColumns(fields);
+                continue;
+            }
+            int missing = missingColumn(fields, columns);
+            if (missing >= 0) {
+                report.reject(lineNo, "Missing field " + (missing + 1));
+                continue;
+            }
+            long year = parseInt(fields.get(columns[2]));
+            long quantity = parseInt(fields.get(columns[3]));
+            double price = parsePrice(fields.get(columns[4]));
+            if (year == NOT_A_NUMBER || quantity == NOT_A_NUMBER
+                    || Double.isNaN(price)) {
+                report.reject(lineNo, "Year, quantity and price must be "
+                        + "numbers");
+                continue;
+            }
+            if (validator.accept(lineNo, (int) year, (int) quantity,
+                    price)) {
+                append(Wine.trusted(0, fields.get(columns[0]),
+                        fields.get(columns[1]), (int) year, (int) quantity,
+                        price));
+                report.recordDone();
+            }
+        }
+        finish();
+        report.finish();
+        return report;
+    }
+
+    /**
+     * Imports every live record of another file in the wines.dat format or
+     * the version 2 format. The records are validated like CSV rows and get
+     * new wineIDs; a bad record is reported by its number in the file,
+     * counting live records from 1.
+     *
+     * @param source the binary file to import
+     * @return the number of imported and rejected records and the throughput
+     * @throws IOException if the source cannot be read, is a damaged version
+     *     2 file, or the wines cannot be written
+     */
+    public TransferReport importBinary(File source) throws IOException {
+        TransferReport report = new TransferReport();
+        WineValidator validator = report.validator();
+        Consumer<Wine> sink = w -> {
+            // records decode without checks, so check them before importing
+            if (!validator.accept(validator.getChecked() + 1, w.getYear(),
+                    w.getQuantity(), w.getPrice())) {
+                return;
+            }
+            try {
+                append(w);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            report.recordDone();
+        };
+        try {
+            if (WineV2Reader.isV2(source)) {
+                new WineV2Reader().forEach(source, sink);
+            } else {
+                new WineFileLoader().forEach(source, sink);
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        finish();
+        report.finish();
+        return report;
+    }
+
+    private void append(Wine w) throws IOException {
+        batch.add(w);
+        if (batch.size() == BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /*
+    * Hands the batch to the applier, then waits for the batch before it to
+    * be durable, so only one batch is ever waiting for the disk
+    */
+    private void flush() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Wine> wines = batch;
+        batch = new ArrayList<>(BATCH_SIZE);
+        CompletableFuture<Void> written = CompletableFuture
+            .supplyAsync(() -> catalog.addAll(wines), applier)
+            .thenCompose(write -> write);
+        CompletableFuture<Void> previous = pending;
+        pending = written;
+        await(previous);
+    }
+
+    private void finish() throws IOException {
+        flush();
+        CompletableFuture<Void> last = pending;
+        pending = null;
+        await(last);
+    }
+
+    private static void await(CompletableFuture<Void> write)
+            throws IOException {
+        if (write == null) {
+            return;
+        }
+        try {
+            write.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static int missingColumn(List<String> fields, int[] columns) {
+        for (int column : columns) {
+            if (column >= fields.size()) {
+                return column;
+            }
+        }
+        return -1;
+    }
+
+    /*
+    * Parses a decimal int without throwing, so a bad field costs no more
+    * than a good one. Returns NOT_A_NUMBER if the field is not an int.
+    */
+    private static long parseInt(String s) {
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        boolean negative = start < end && s.charAt(start) == '-';
+        if (negative || (start < end && s.charAt(start) == '+')) {
+            start++;
+        }
+        if (start == end || end - start > 10) {
+            return NOT_A_NUMBER;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_A_NUMBER;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return NOT_A_NUMBER;
+        }
+        return value;
+    }
+
+    private static double parsePrice(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static boolean isHeader(List<String> fields) {
+        for (String f : fields) {
+            if (f.equalsIgnoreCase("estate")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] headerColumns(List<String> header) {
+        String[] names = {"estate", "grape", "year", "quantity", "price"};
+        int[] columns = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = -1;
+            for (int c = 0; c < header.size() && columns[i] < 0; c++) {
+                if (header.get(c).toLowerCase(Locale.ROOT).equals(names[i])) {
+                    columns[i] = c;
+                }
+            }
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("Missing column " + names[i]);
+            }
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+    WineIndex.java
+    Author: Scott Forsyth
+
+    Description
+    Secondary indexes on estate, grape, year and price
+*/
+package storage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import models.Wine;
+
+/**
+ * Secondary indexes over the wines so that filters do not have to scan the
+ * whole list. Estate and grape have hash indexes, year and price have
+ * sorted indexes that answer range queries. The index is kept up to date
+ * one wine at a time through add(), update() and remove().
+ * <p>
+ * Every index maps a key to a posting: an unordered int array of wineIDs.
+ * The position of each wineID inside its postings is remembered, so a wine
+ * is removed in O(1) by moving the last entry of the posting into its
+ * place. A query counts the candidates each of its conditions would give,
+ * walks only the smallest set and checks the remaining conditions against
+ * the values the index keeps for every wineID.
+ *
+ * @author Scott Forsyth
+ */
+public class WineIndex {
+
+    private static final int ESTATE = 0;
+    private static final int GRAPE = 1;
+    private static final int YEAR = 2;
+    private static final int PRICE = 3;
+
+    private final Map<String, Posting> estates = new HashMap<>();
+    private final Map<String, Posting> grapes = new HashMap<>();
+    private final NavigableMap<Integer, Posting> years = new TreeMap<>();
+    private final NavigableMap<Double, Posting> prices = new TreeMap<>();
+
+    // values of every indexed wine and its position in each posting
+    private String[] estateOf = new String[1024];
+    private String[] grapeOf = new String[1024];
+    private int[] yearOf = new int[1024];
+    private double[] priceOf = new double[1024];
+    private int[][] positions = new int[4][1024];
+    private final BitSet present = new BitSet();
+    private int size;
+
+    /**
+     * Builds the index for every row of a store
+     *
+     * @param store the store to index
+     * @return a new index over the store
+     */
+    public static WineIndex of(WineStore store) {
+        WineIndex index = new WineIndex();
+        for (int row = 0; row < store.size(); row++) {
+            index.add(store.getWineID(row), store.getEstate(row),
+                    store.getGrape(row), store.getYear(row),
+                    store.getPrice(row));
+        }
+        return index;
+    }
+
+    /**
+     * Adds a wine to every index
+     *
+     * @param w the wine to add, it must have its wineID
+     */
+    public synchronized void add(Wine w) {
+        add(w.getWineID(), w.getEstate(), w.getGrape(), w.getYear(),
+                w.getPrice());
+    }
+
+    /**
+     * Replaces the indexed values of a wine with its new values
+     *
+     * @param w the wine with the new values
+     */
+    public synchronized void update(Wine w) {
+        remove(w.getWineID());
+        add(w);
+    }
+
+    /**
+     * Removes a wine from every index
+     *
+     * @param wineID the wineID of the wine to remove
+     */
+    public synchronized void remove(int wineID) {
+        if (!contains(wineID)) {
+            return;
+        }
+        unlink(estates, estateOf[wineID], wineID, ESTATE);
+        unlink(grapes, grapeOf[wineID], wineID, GRAPE);
+        unlink(years, yearOf[wineID], wineID, YEAR);
+        unlink(prices, priceOf[wineID], wineID, PRICE);
+        estateOf[wineID] = null;
+        grapeOf[wineID] = null;
+        present.clear(wineID);
+        size--;
+    }
+
+    /**
+     * Accessor for the number of indexed wines
+     *
+     * @return the number of wines in the index
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Finds the wines that match a query
+     *
+     * @param q the conditions to match
+     * @return the matching wineIDs in ascending order
+     */
+    public synchronized int[] find(WineQuery q) {
+        int[] result = new int[16];
+        int count = 0;
+        for (Posting posting : candidates(q)) {
+            for (int i = 0; i < posting.size; i++) {
+                int id = posting.ids[i];
+                if (q.matches(estateOf[id], grapeOf[id], yearOf[id],
+                        priceOf[id])) {
+                    if (count == result.length) {
+                        result = Arrays.copyOf(result, count * 2);
+                    }
+                    result[count++] = id;
+                }
+            }
+        }
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /*
+    * Picks the condition that gives the fewest candidates. With no
+    * condition at all every wine is a candidate, which is the whole year
+    * index.
+    */
+    private Collection<Posting> candidates(WineQuery q) {
+        Collection<Posting> best = null;
+        long bestCount = Long.MAX_VALUE;
+        if (q.estate != null) {
+            best = single(estates.get(q.estate));
+            bestCount = count(best, bestCount);
+        }
+        if (q.grape != null) {
+            Collection<Posting> c = single(grapes.get(q.grape));
+            long n = count(c, bestCount);
+            if (n < bestCount) {
+                best = c;
+                bestCount = n;
+            }
+        }
+        if (q.hasPriceRange()) {
+            Collection<Posting> c = q.minPrice < q.maxPrice
+                ? prices.subMap(q.minPrice, true, q.maxPrice, false).values()
+                : Collections.<Posting>emptyList();
+            long n = count(c, bestCount);
+            if (n < bestCount) {
+                best = c;
+                bestCount = n;
+            }
+        }
+        if (q.hasYearRange() || best == null) {
+            Collection<Posting> c = q.minYear <= q.maxYear
+                ? years.subMap(q.minYear, true, q.maxYear, true).values()
+                : Collections.<Posting>emptyList();
+            if (count(c, bestCount) < bestCount) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static Collection<Posting> single(Posting posting) {
+        return posting == null ? Collections.<Posting>emptyList()
+            : Collections.singletonList(posting);
+    }
+
+    /*
+    * Counts the candidates in the postings, stopping as soon as the count
+    * reaches the limit since the postings can then not be the best choice
+    */
+    private static long count(Collection<Posting> postings, long limit) {
+        long n = 0;
+        for (Posting p : postings) {
+            n += p.size;
+            if (n >= limit) {
+                return limit;
+            }
+        }
+        return n;
+    }
+
+    /*
+    * The postings of the four indexes, written by StoreImage. The maps are
+    * live and the caller must hold the lock of the index.
+    */
+    Map<String, Posting> estatePostings() {
+        return estates;
+    }
+
+    Map<String, Posting> grapePostings() {
+        return grapes;
+    }
+
+    NavigableMap<Integer, Posting> yearPostings() {
+        return years;
+    }
+
+    NavigableMap<Double, Posting> pricePostings() {
+        return prices;
+    }
+
+    /**
+     * Rebuilds an index from postings read by StoreImage. Only the values
+     * kept for every wineID are taken from the store, the postings are used
+     * as they are.
+     *
+     * @param store the store the postings were built from
+     * @return a new index over the store
+     */
+    static WineIndex restore(WineStore store, Map<String, Posting> estates,
+            Map<String, Posting> grapes, NavigableMap<Integer, Posting> years,
+            NavigableMap<Double, Posting> prices) {
+        WineIndex index = new WineIndex();
+        index.estates.putAll(estates);
+        index.grapes.putAll(grapes);
+        index.years.putAll(years);
+        index.prices.putAll(prices);
+        int maxId = -1;
+        for (int row = 0; row < store.size(); row++) {
+            maxId = Math.max(maxId, store.getWineID(row));
+        }
+        index.ensureCapacity(maxId + 1);
+        for (int row = 0; row < store.size(); row++) {
+            int id = store.getWineID(row);
+            index.estateOf[id] = store.getEstate(row);
+            index.grapeOf[id] = store.getGrape(row);
+            index.yearOf[id] = store.getYear(row);
+            index.priceOf[id] = store.getPrice(row);
+            index.present.set(id);
+        }
+        index.size = store.size();
+        index.locate(estates.values(), ESTATE);
+        index.locate(grapes.values(), GRAPE);
+        index.locate(years.values(), YEAR);
+        index.locate(prices.values(), PRICE);
+        return index;
+    }
+
+    private void locate(Collection<Posting> postings, int which) {
+        for (Posting p : postings) {
+            for (int i = 0; i < p.size; i++) {
+                positions[which][p.ids[i]] = i;
+            }
+        }
+    }
+
+    private boolean contains(int wineID) {
+        return wineID >= 0 && present.get(wineID);
+    }
+
+    private void add(int wineID, String estate, String grape, int year,
+            double price) {
+        remove(wineID);
+        ensureCapacity(wineID + 1);
+        estateOf[wineID] = estate;
+        grapeOf[wineID] = grape;
+        yearOf[wineID] = year;
+        priceOf[wineID] = price;
+        present.set(wineID);
+        link(estates, estate, wineID, ESTATE);
+        link(grapes, grape, wineID, GRAPE);
+        link(years, year, wineID, YEAR);
+        link(prices, price, wineID, PRICE);
+        size++;
+    }
+
+    private <K> void link(Map<K, Posting> index, K key, int wineID,
+            int which) {
+        Posting p = index.computeIfAbsent(key, k -> new Posting());
+        positions[which][wineID] = p.add(wineID);
+    }
+
+    private <K> void unlink(Map<K, Posting> index, K key, int wineID,
+            int which) {
+        Posting p = index.get(key);
+        int moved = p.removeAt(positions[which][wineID]);
+        if (moved >= 0) {
+            positions[which][moved] = positions[which][wineID];
+        }
+        if (p.size == 0) {
+            index.remove(key);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > estateOf.length) {
+            int newLength = Math.max(capacity,
+                    estateOf.length + (estateOf.length >> 1));
+            estateOf = Arrays.copyOf(estateOf, newLength);
+            grapeOf = Arrays.copyOf(grapeOf, newLength);
+            yearOf = Arrays.copyOf(yearOf, newLength);
+            priceOf = Arrays.copyOf(priceOf, newLength);
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = Arrays.copyOf(positions[i], newLength);
+            }
+        }
+    }
+
+    /**
+     * An unordered list of wineIDs that share one key, also used by
+     * WineSearchIndex
+     */
+    static class Posting {
+
+        int[] ids = new int[4];
+        int size;
+
+        /**
+         * Appends a wineID
+         * @return the position of the wineID in the posting
+         */
+        int add(int wineID) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size] = wineID;
+            return size++;
+        }
+
+        /**
+         * Removes the wineID at a position by moving the last wineID there
+         * @return the wineID that was moved, or -1 if none was moved
+         */
+        int removeAt(int pos) {
+            size--;
+            if (pos == size) {
+                return -1;
+            }
+            ids[pos] = ids[size];
+            return ids[pos];
+        }
+    }
+}
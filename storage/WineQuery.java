@@ -0,0 +1,99 @@
+/*
+    WineQuery.java
+    Author: Scott Forsyth
+
+    Description
+    Describes a filter over the wines that can be answered by a WineIndex
+*/
+package storage;
+
+/**
+ * A filter on estate, grape, year and price. Every condition is optional
+ * and the conditions that are set must all match. For example "all Merlot
+ * from 2015 to 2018 under $40" is
+ * <pre>
+ *   new WineQuery().grape("Merlot").yearBetween(2015, 2018).priceUnder(40)
+ * </pre>
+ *
+ * @author Scott Forsyth
+ */
+public class WineQuery {
+
+    String estate;
+    String grape;
+    int minYear = Integer.MIN_VALUE;
+    int maxYear = Integer.MAX_VALUE;
+    double minPrice = Double.NEGATIVE_INFINITY;
+    double maxPrice = Double.POSITIVE_INFINITY;
+
+    /**
+     * Only match wines from this estate
+     * @param estate the exact estate name
+     * @return this query
+     */
+    public WineQuery estate(String estate) {
+        this.estate = estate;
+        return this;
+    }
+
+    /**
+     * Only match wines of this grape variety
+     * @param grape the exact grape name
+     * @return this query
+     */
+    public WineQuery grape(String grape) {
+        this.grape = grape;
+        return this;
+    }
+
+    /**
+     * Only match wines produced between two years
+     * @param from the first year, inclusive
+     * @param to the last year, inclusive
+     * @return this query
+     */
+    public WineQuery yearBetween(int from, int to) {
+        this.minYear = from;
+        this.maxYear = to;
+        return this;
+    }
+
+    /**
+     * Only match wines that cost at least this much per bottle
+     * @param min the lowest price, inclusive
+     * @return this query
+     */
+    public WineQuery priceFrom(double min) {
+        this.minPrice = min;
+        return this;
+    }
+
+    /**
+     * Only match wines that cost less than this per bottle
+     * @param max the price limit, exclusive
+     * @return this query
+     */
+    public WineQuery priceUnder(double max) {
+        this.maxPrice = max;
+        return this;
+    }
+
+    boolean hasYearRange() {
+        return minYear != Integer.MIN_VALUE || maxYear != Integer.MAX_VALUE;
+    }
+
+    boolean hasPriceRange() {
+        return minPrice != Double.NEGATIVE_INFINITY
+            || maxPrice != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Checks a single wine against every condition of the query
+     */
+    boolean matches(String estate, String grape, int year, double price) {
+        return (this.estate == null || this.estate.equals(estate))
+            && (this.grape == null || this.grape.equals(grape))
+            && year >= minYear && year <= maxYear
+            && price >= minPrice && price < maxPrice;
+    }
+}
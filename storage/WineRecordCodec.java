@@ -0,0 +1,78 @@
+/*
+    WineRecordCodec.java
+    Author: Scott Forsyth
+
+    Description
+    Encodes and decodes the fixed size wine records stored in wines.dat
+*/
+package storage;
+
+import java.nio.ByteBuffer;
+import models.Wine;
+
+/**
+ * Knows the on-disk layout of one wine record and converts between records
+ * and Wine objects. Every record is RECORD_SIZE
+ * bytes long and is laid out as:
+ * <pre>
+ *   int    wineID        4 bytes
+ *   char[] estate       30 bytes (FIELD_SIZE UTF-16 chars, space padded)
+ *   char[] grape        30 bytes (FIELD_SIZE UTF-16 chars, space padded)
+ *   int    year          4 bytes
+ *   int    quantity      4 bytes
+ *   double price         8 bytes
+ * </pre>
+ *
+ * @author Scott Forsyth
+ */
+public class WineRecordCodec {
+
+    public static final int FIELD_SIZE = 15;
+    public static final int RECORD_SIZE = 80;
+
+    static final int ID_OFFSET = 0;
+    static final int ESTATE_OFFSET = 4;
+    static final int GRAPE_OFFSET = ESTATE_OFFSET + FIELD_SIZE * 2;
+    static final int YEAR_OFFSET = GRAPE_OFFSET + FIELD_SIZE * 2;
+    static final int QUANTITY_OFFSET = YEAR_OFFSET + 4;
+    static final int PRICE_OFFSET = QUANTITY_OFFSET + 4;
+
+    private final FixedWidthStringCodec strings =
+        new FixedWidthStringCodec(FIELD_SIZE);
+
+    /**
+     * Decodes the record that starts at the given position of the buffer.
+     * The position of the buffer is not changed.
+     *
+     * @param buf the buffer that holds the record
+     * @param pos the absolute position of the first byte of the record
+     * @return a Wine object built from the record
+     */
+    public Wine decode(ByteBuffer buf, int pos) {
+        int id = buf.getInt(pos + ID_OFFSET);
+        String estate = strings.decode(buf, pos + ESTATE_OFFSET);
+        String grape = strings.decode(buf, pos + GRAPE_OFFSET);
+        int year = buf.getInt(pos + YEAR_OFFSET);
+        int quantity = buf.getInt(pos + QUANTITY_OFFSET);
+        double price = buf.getDouble(pos + PRICE_OFFSET);
+        // records were validated when they were written
+        return Wine.trusted(id, estate, grape, year, quantity, price);
+    }
+
+    /**
+     * Encodes the wine into the record that starts at the given position of
+     * the buffer. The position of the buffer is not changed.
+     *
+     * @param w the wine to encode
+     * @param buf the buffer that receives the record
+     * @param pos the absolute position of the first byte of the record
+     */
+    public void encode(Wine w, ByteBuffer buf, int pos) {
+        buf.putInt(pos + ID_OFFSET, w.getWineID());
+        strings.encode(buf, pos + ESTATE_OFFSET, w.getEstate());
+        strings.encode(buf, pos + GRAPE_OFFSET, w.getGrape());
+        buf.putInt(pos + YEAR_OFFSET, w.getYear());
+        buf.putInt(pos + QUANTITY_OFFSET, w.getQuantity());
+        buf.putDouble(pos + PRICE_OFFSET, w.getPrice());
+    }
+}
@@ -0,0 +1,563 @@
+/*
+    WineRepository.java
+    Author: Scott Forsyth
+
+    Description
+    The headless wine engine: loading, reading, changing and scanning the
+    wines of one data file, without any JavaFX dependency
+*/
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import metrics.LatencyHistogram;
+import metrics.WineEvents;
+import metrics.WineMetrics;
+import models.Wine;
+
+/**
+ * Engine for one wine data file. It ties together the PersistenceService
+ * that writes the file, the rows shown to users (a WineStore, or a
+ * PagedWineList for files of more than PAGED_THRESHOLD records) and the
+ * secondary WineIndex, and keeps all three in step on every change. The
+ * GUI controllers call it, and batch jobs or benchmarks can use it the same
+ * way without starting the JavaFX toolkit.
+ * <p>
+ * Loaded rows are in wineID order, paged rows in file order. Changes are
+ * applied in memory right away and the returned futures complete once they
+ * are durable in the file. A repository is meant to be used from one
+ * thread at a time.
+ *
+ * @author Scott Forsyth
+ */
+public class WineRepository implements WineCatalog {
+
+    // files with more records than this are paged in instead of loaded
+    public static final long PAGED_THRESHOLD = 1_000_000;
+    // bytes per second read by backups and compactions
+    public static final long MAINTENANCE_BANDWIDTH = 8L << 20;
+    // deleted slots worth a compaction, as a share of all slots
+    public static final double COMPACTION_RATIO = 0.25;
+
+    private static final LatencyHistogram OPENS =
+        WineMetrics.get().histogram("file.open");
+    private static final LatencyHistogram ADDS =
+        WineMetrics.get().histogram("repository.add");
+    private static final LatencyHistogram UPDATES =
+        WineMetrics.get().histogram("repository.update");
+    private static final LatencyHistogram DELETES =
+        WineMetrics.get().histogram("repository.delete");
+    private static final LatencyHistogram BATCH_UPDATES =
+        WineMetrics.get().histogram("repository.updateAll");
+    private static final LatencyHistogram BATCH_ADDS =
+        WineMetrics.get().histogram("repository.addAll");
+
+    /**
+     * Receives every change of the rows, after it has been applied
+     */
+    public interface Listener {
+
+        /**
+         * A wine was added
+         * @param row the row of the new wine
+         * @param w the new wine
+         */
+        void added(int row, Wine w);
+
+        /**
+         * A wine got new values
+         * @param row the row of the wine
+         * @param old the old values
+         * @param w the new values
+         */
+        void updated(int row, Wine old, Wine w);
+
+        /**
+         * A wine was deleted
+         * @param row the row the wine had
+         * @param old the deleted wine
+         */
+        void removed(int row, Wine old);
+    }
+
+    private final File dataFile;
+    private final PersistenceService persistence;
+    private final WineStore store;
+    private final PagedWineList paged;
+    private final WineIndex index;
+    private final LoadTimings loadTimings;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private WineRepository(File dataFile, PersistenceService persistence,
+            WineStore store, PagedWineList paged, WineIndex index,
+            LoadTimings loadTimings) {
+        this.dataFile = dataFile;
+        this.persistence = persistence;
+        this.store = store;
+        this.paged = paged;
+        this.index = index;
+        this.loadTimings = loadTimings;
+    }
+
+    /**
+     * Opens a data file, replaying its log if the last run crashed, and
+     * loads its wines. The file is created if it does not exist.
+     *
+     * @param dataFile the wines.dat file
+     * @return a repository over the file
+     * @throws IOException if the file cannot be opened or read
+     */
+    public static WineRepository open(File dataFile) throws IOException {
+        WineEvents.FileOpen event = new WineEvents.FileOpen();
+        event.begin();
+        long start = System.nanoTime();
+        WineRepository repository = load(dataFile);
+        OPENS.recordSince(start);
+        WineMetrics.get().counter("records.loaded").add(repository.size());
+        event.path = dataFile.getPath();
+        event.records = repository.size();
+        event.paged = repository.paged != null;
+        event.commit();
+        return repository;
+    }
+
+    private static WineRepository load(File dataFile) throws IOException {
+        PersistenceService persistence = PersistenceService.open(dataFile);
+        try {
+            if (dataFile.length() / WineRecordCodec.RECORD_SIZE
+                    > PAGED_THRESHOLD) {
+                PagedWineList paged = new PagedWineList(dataFile,
+                        persistence.getRecords(),
+                        PagedWineList.DEFAULT_MAX_PAGES);
+                return new WineRepository(dataFile, persistence, null, paged,
+                        new WineIndex(), null);
+            }
+            WineStore store = new WineStore();
+            WineIndex index = StoreImage.read(dataFile, store);
+            if (index != null) {
+                return new WineRepository(dataFile, persistence, store, null,
+                        index, null);
+            }
+            LoadTimings timings = new ParallelWineLoader().load(dataFile, store);
+            return new WineRepository(dataFile, persistence, store, null,
+                    WineIndex.of(store), timings);
+        } catch (IOException | RuntimeException ex) {
+            persistence.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Accessor for the data file of the repository
+     * @return the wines.dat file
+     */
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * Accessor for how long loading the file took
+     * @return the timings of the load, or null if the file is paged in or
+     *     the wines came from its StoreImage
+     */
+    public LoadTimings getLoadTimings() {
+        return loadTimings;
+    }
+
+    /**
+     * Accessor for the columnar store of the wines
+     * @return the WineStore, or null if the file is paged in
+     */
+    public WineStore getStore() {
+        return store;
+    }
+
+    /**
+     * Accessor for the secondary indexes. When the file is paged in the
+     * index only holds the wines changed since it was opened.
+     * @return the WineIndex of the wines
+     */
+    public WineIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Accessor for the service that writes the file
+     * @return the PersistenceService of the data file
+     */
+    public PersistenceService getPersistence() {
+        return persistence;
+    }
+
+    /**
+     * Returns a read-only List view of the rows. Reading an element builds a
+     * Wine for that row.
+     *
+     * @return a live view of the rows
+     */
+    public List<Wine> rows() {
+        return Collections.unmodifiableList(paged != null ? paged
+            : store.asList());
+    }
+
+    /**
+     * Accessor for the number of wines
+     * @return the number of wines in the repository
+     */
+    public int size() {
+        return paged != null ? paged.size() : store.size();
+    }
+
+    /**
+     * Registers a listener for changes of the rows
+     * @param l the listener to add
+     */
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Unregisters a listener
+     * @param l the listener to remove
+     */
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Finds the row of a wine
+     *
+     * @param wineID the wineID to look for
+     * @return the row of the wine, or -1 if there is no such wine
+     */
+    public int rowOf(int wineID) {
+        if (paged != null) {
+            return paged.indexOfId(wineID);
+        }
+        // loaded rows are in wineID order, so a binary search finds the row
+        int low = 0;
+        int high = store.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = store.getWineID(mid);
+            if (id < wineID) {
+                low = mid + 1;
+            } else if (id > wineID) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads one wine
+     *
+     * @param wineID the wineID of the wine
+     * @return the wine, or null if there is no such wine
+     */
+    public Wine get(int wineID) {
+        int row = rowOf(wineID);
+        return row < 0 ? null : row(row);
+    }
+
+    /**
+     * Adds a new wine
+     *
+     * @param w the wine to add, its wineID is set by this method
+     * @return a future that completes when the wine is durable
+     */
+    public CompletableFuture<Void> add(Wine w) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> write = persistence.add(w);
+        int row = size();
+        if (paged != null) {
+            paged.add(w);
+            forgetWhenWritten(write, Collections.singletonList(w));
+        } else {
+            store.add(w);
+        }
+        index.add(w);
+        for (Listener l : listeners) {
+            l.added(row, w);
+        }
+        ADDS.recordSince(start);
+        return write;
+    }
+
+    /**
+     * Adds many new wines at once, for example a batch of a bulk import.
+     * The wines get consecutive wineIDs, are made durable together with one
+     * fsync and are written to the end of the file in slot order.
+     *
+     * @param wines the wines to add, their wineIDs are set by this method
+     * @return a future that completes when every wine is durable
+     */
+    @Override
+    public CompletableFuture<Void> addAll(List<Wine> wines) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> write = persistence.addAll(wines);
+        for (Wine w : wines) {
+            int row = size();
+            if (paged != null) {
+                paged.add(w);
+            } else {
+                store.add(w);
+            }
+            index.add(w);
+            for (Listener l : listeners) {
+                l.added(row, w);
+            }
+        }
+        forgetWhenWritten(write, wines);
+        BATCH_ADDS.recordSince(start);
+        return write;
+    }
+
+    /**
+     * Replaces the values of an existing wine
+     *
+     * @param w the wine with the new values and an existing wineID
+     * @return a future that completes when the change is durable
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    public CompletableFuture<Void> update(Wine w) {
+        long start = System.nanoTime();
+        int row = requireRow(w.getWineID());
+        CompletableFuture<Void> write = persistence.update(w);
+        Wine old = row(row);
+        if (paged != null) {
+            paged.set(row, w);
+            forgetWhenWritten(write, Collections.singletonList(w));
+        } else {
+            store.set(row, w);
+        }
+        index.update(w);
+        for (Listener l : listeners) {
+            l.updated(row, old, w);
+        }
+        UPDATES.recordSince(start);
+        return write;
+    }
+
+    /**
+     * Replaces the values of many existing wines at once, for example to
+     * reprice a whole list from a supplier. The changes are all applied or,
+     * if one of the wineIDs does not exist, none are. They are made durable
+     * together, so after a crash the file holds either all of the new
+     * values or none of them, and are written to the file in slot order
+     * with the records of neighbouring slots in a single write.
+     *
+     * @param wines the wines with the new values and existing wineIDs
+     * @return a future that completes when every change is durable
+     * @throws IllegalArgumentException if there is no wine with one of the
+     *     wineIDs
+     */
+    @Override
+    public CompletableFuture<Void> updateAll(List<Wine> wines) {
+        long start = System.nanoTime();
+        int[] rows = new int[wines.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = requireRow(wines.get(i).getWineID());
+        }
+        CompletableFuture<Void> write = persistence.updateAll(wines);
+        for (int i = 0; i < rows.length; i++) {
+            Wine w = wines.get(i);
+            Wine old = row(rows[i]);
+            if (paged != null) {
+                paged.set(rows[i], w);
+            } else {
+                store.set(rows[i], w);
+            }
+            index.update(w);
+            for (Listener l : listeners) {
+                l.updated(rows[i], old, w);
+            }
+        }
+        forgetWhenWritten(write, wines);
+        BATCH_UPDATES.recordSince(start);
+        return write;
+    }
+
+    /**
+     * Deletes a wine
+     *
+     * @param wineID the wineID of the wine to delete
+     * @return a future that completes when the deletion is durable
+     * @throws IllegalArgumentException if there is no wine with that wineID
+     */
+    public CompletableFuture<Void> delete(int wineID) {
+        long start = System.nanoTime();
+        int row = requireRow(wineID);
+        Wine old = row(row);
+        CompletableFuture<Void> write = persistence.delete(wineID);
+        if (paged != null) {
+            paged.remove(row);
+        } else {
+            store.remove(row);
+        }
+        index.remove(wineID);
+        for (Listener l : listeners) {
+            l.removed(row, old);
+        }
+        DELETES.recordSince(start);
+        return write;
+    }
+
+    /**
+     * Passes every wine to a consumer, in row order
+     *
+     * @param action receives each wine
+     */
+    public void scan(Consumer<Wine> action) {
+        for (int row = 0; row < size(); row++) {
+            action.accept(row(row));
+        }
+    }
+
+    /**
+     * Passes every wine to a consumer as it was when the scan started,
+     * read from a snapshot of the data file. Unlike scan() it can be called
+     * from any thread, and changes go on while it runs.
+     *
+     * @param action receives each wine, in slot order
+     * @throws IOException if the file cannot be read
+     */
+    @Override
+    public void scanSnapshot(Consumer<Wine> action) throws IOException {
+        persistence.scan(action);
+    }
+
+    /**
+     * Returns a read-only view of the wines found by a search. Each element
+     * is read from the repository when it is asked for, so the view costs
+     * nothing to create however many wines were found.
+     *
+     * @param result the wineIDs to show, in ascending order
+     * @return the view, with null for a wineID that no longer exists
+     */
+    public List<Wine> view(SearchResult result) {
+        return new AbstractList<Wine>() {
+            @Override
+            public Wine get(int index) {
+                return WineRepository.this.get(result.wineIdAt(index));
+            }
+
+            @Override
+            public int size() {
+                return result.size();
+            }
+        };
+    }
+
+    /**
+     * Finds the wines that match a query using the secondary indexes
+     *
+     * @param q the conditions to match
+     * @return the matching wines in wineID order
+     */
+    public List<Wine> find(WineQuery q) {
+        int[] ids = index.find(q);
+        List<Wine> wines = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            wines.add(get(id));
+        }
+        return wines;
+    }
+
+    /**
+     * Writes a consistent copy of the wines, as they are now, to a version
+     * 2 file in the background, reading at most MAINTENANCE_BANDWIDTH bytes
+     * per second. Changes can go on while it runs.
+     *
+     * @param target the backup file to create or overwrite
+     * @return a future with the number of wines backed up
+     * @throws IllegalStateException if a backup or compaction is running
+     */
+    public CompletableFuture<TransferReport> backup(File target) {
+        return persistence.backup(target, MAINTENANCE_BANDWIDTH);
+    }
+
+    /**
+     * Rewrites the data file without its deleted slots in the background,
+     * reading at most MAINTENANCE_BANDWIDTH bytes per second, and swaps the
+     * new file in once it is complete. Changes can go on while it runs and
+     * the rows do not change.
+     *
+     * @return a future with the number of wines in the compacted file
+     * @throws IllegalStateException if a backup or compaction is running
+     */
+    public CompletableFuture<TransferReport> compact() {
+        return persistence.compact(MAINTENANCE_BANDWIDTH, paged);
+    }
+
+    /**
+     * Checks whether enough of the file is deleted slots to compact it
+     *
+     * @return true if more than COMPACTION_RATIO of the slots are free
+     */
+    public boolean needsCompaction() {
+        RecordManager records = persistence.getRecords();
+        int free = records.getFreeSlots();
+        return free > 0 && free > (free + records.size()) * COMPACTION_RATIO;
+    }
+
+    /**
+     * Waits for pending writes and closes the file. Loaded wines are saved
+     * as a StoreImage, so the next open does not have to decode the file.
+     *
+     * @throws IOException if the file cannot be closed cleanly
+     */
+    public void close() throws IOException {
+        persistence.close();
+        if (paged != null) {
+            paged.close();
+        } else {
+            try {
+                StoreImage.write(dataFile, store, index);
+            } catch (IOException ex) {
+                // without an image the next open decodes the file instead
+            }
+        }
+    }
+
+    /*
+    * Lets the paged list drop the wines it keeps in memory once their
+    * records are durable in the file. Failed writes are kept, and so is
+    * everything once the data file has fallen behind the log.
+    */
+    private void forgetWhenWritten(CompletableFuture<Void> write,
+            List<Wine> wines) {
+        if (paged != null && !wines.isEmpty()) {
+            List<Wine> written = new ArrayList<>(wines);
+            write.thenRun(() -> {
+                if (persistence.isDataFileBehind()) {
+                    return;
+                }
+                for (Wine w : written) {
+                    paged.written(w);
+                }
+            });
+        }
+    }
+
+    private Wine row(int row) {
+        return paged != null ? paged.get(row) : store.get(row);
+    }
+
+    private int requireRow(int wineID) {
+        int row = rowOf(wineID);
+        if (row < 0) {
+            throw new IllegalArgumentException("No wine with ID " + wineID);
+        }
+        return row;
+    }
+}
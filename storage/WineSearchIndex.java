@@ -0,0 +1,314 @@
+/*
+    WineSearchIndex.java
+    Author: Scott Forsyth
+
+    Description
+    Search-as-you-type index over the estate and grape names of the wines
+*/
+package storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import models.Wine;
+
+/**
+ * Substring search over the estate and grape names of a WineRepository.
+ * There are far fewer distinct names than wines, so the index works on two
+ * levels:
+ * <ul>
+ *   <li>every distinct name gets a code, and every gram (substring) of one
+ *   to MAX_GRAM characters of its lower-case form maps to the codes of the
+ *   names that contain it</li>
+ *   <li>every name code has two postings, the wineIDs that have it as
+ *   their estate and as their grape. A posting that holds more than one
+ *   wineID in 64 also keeps a bitmap of its wineIDs.</li>
+ * </ul>
+ * A search looks up the names containing the text (directly for short
+ * text, through its rarest gram for longer text) and ORs their postings
+ * into a SearchResult bit set, a word at a time for the bitmaps, so its
+ * cost depends on the number of matching names and wines and never on a
+ * scan of all the wines. Wines are added, moved and removed one at a time
+ * by listening to the repository, in O(1) each.
+ * <p>
+ * Like the repository, the index is meant to be used from one thread at a
+ * time.
+ *
+ * @author Scott Forsyth
+ */
+public class WineSearchIndex implements WineRepository.Listener {
+
+    public static final int MAX_GRAM = 3;
+
+    private static final int NONE = -1;
+
+    private final WineRepository repository;
+    private final List<String> lowerNames = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final Map<Long, WineIndex.Posting> grams = new HashMap<>();
+    private final List<NameWines> estateIds = new ArrayList<>();
+    private final List<NameWines> grapeIds = new ArrayList<>();
+
+    // name codes of every wineID and its position in their postings
+    private int[] estateOf = new int[1024];
+    private int[] grapeOf = new int[1024];
+    private int[] estatePos = new int[1024];
+    private int[] grapePos = new int[1024];
+    private int idLimit;
+
+    private WineSearchIndex(WineRepository repository) {
+        this.repository = repository;
+        Arrays.fill(estateOf, NONE);
+    }
+
+    /**
+     * Indexes every wine of a repository and keeps the index up to date
+     * with every later change
+     *
+     * @param repository the repository to index
+     * @return the search index of the repository
+     */
+    public static WineSearchIndex attach(WineRepository repository) {
+        WineSearchIndex index = new WineSearchIndex(repository);
+        WineStore store = repository.getStore();
+        if (store != null) {
+            // map the dictionary codes of the store once instead of hashing
+            // every name of every row
+            StringTable strings = store.getStrings();
+            int[] codeOf = new int[strings.size()];
+            for (int c = 0; c < codeOf.length; c++) {
+                codeOf[c] = index.codeOf(strings.decode(c));
+            }
+            int[] estates = store.estateCodes();
+            int[] grapes = store.grapeCodes();
+            for (int row = 0; row < store.size(); row++) {
+                index.add(store.getWineID(row), codeOf[estates[row]],
+                        codeOf[grapes[row]]);
+            }
+        } else {
+            repository.scan(index::add);
+        }
+        repository.addListener(index);
+        return index;
+    }
+
+    /**
+     * Finds the wines whose estate or grape contains the text, ignoring
+     * case and surrounding spaces
+     *
+     * @param text the text typed by the user
+     * @return the matching wineIDs, or null if the text is blank and every
+     *     wine matches
+     */
+    public SearchResult search(String text) {
+        String q = text.trim().toLowerCase(Locale.ROOT);
+        if (q.isEmpty()) {
+            return null;
+        }
+        WineIndex.Posting names;
+        boolean verify = q.length() > MAX_GRAM;
+        if (!verify) {
+            names = grams.get(gram(q, 0, q.length()));
+        } else {
+            names = null;
+            for (int i = 0; i + MAX_GRAM <= q.length(); i++) {
+                WineIndex.Posting p = grams.get(gram(q, i, MAX_GRAM));
+                if (p == null) {
+                    return new SearchResult(new long[0]);
+                }
+                if (names == null || p.size < names.size) {
+                    names = p;
+                }
+            }
+        }
+        if (names == null) {
+            return new SearchResult(new long[0]);
+        }
+        long[] hits = new long[(idLimit + 63) >>> 6];
+        for (int i = 0; i < names.size; i++) {
+            int code = names.ids[i];
+            if (verify && !lowerNames.get(code).contains(q)) {
+                continue;
+            }
+            estateIds.get(code).orInto(hits);
+            grapeIds.get(code).orInto(hits);
+        }
+        return new SearchResult(hits);
+    }
+
+    /**
+     * Accessor for the number of distinct estate and grape names
+     * @return the number of names that were ever indexed
+     */
+    public int getNameCount() {
+        return lowerNames.size();
+    }
+
+    /**
+     * Stops following the repository
+     */
+    public void detach() {
+        repository.removeListener(this);
+    }
+
+    @Override
+    public void added(int row, Wine w) {
+        add(w);
+    }
+
+    @Override
+    public void updated(int row, Wine old, Wine w) {
+        remove(w.getWineID());
+        add(w);
+    }
+
+    @Override
+    public void removed(int row, Wine old) {
+        remove(old.getWineID());
+    }
+
+    private void add(Wine w) {
+        add(w.getWineID(), codeOf(w.getEstate()), codeOf(w.getGrape()));
+    }
+
+    private void add(int wineID, int estate, int grape) {
+        ensureCapacity(wineID);
+        estateOf[wineID] = estate;
+        grapeOf[wineID] = grape;
+        idLimit = Math.max(idLimit, wineID + 1);
+        estatePos[wineID] = estateIds.get(estate).add(wineID, idLimit);
+        grapePos[wineID] = grapeIds.get(grape).add(wineID, idLimit);
+    }
+
+    private void remove(int wineID) {
+        if (wineID >= idLimit || estateOf[wineID] == NONE) {
+            return;
+        }
+        int moved = estateIds.get(estateOf[wineID])
+            .removeAt(estatePos[wineID], wineID);
+        if (moved >= 0) {
+            estatePos[moved] = estatePos[wineID];
+        }
+        moved = grapeIds.get(grapeOf[wineID]).removeAt(grapePos[wineID], wineID);
+        if (moved >= 0) {
+            grapePos[moved] = grapePos[wineID];
+        }
+        estateOf[wineID] = NONE;
+    }
+
+    /*
+    * Returns the code of a name, indexing its grams the first time the name
+    * is seen. Names stay indexed when their last wine goes, which costs
+    * nothing as their postings are then empty.
+    */
+    private int codeOf(String name) {
+        Integer code = codes.get(name);
+        if (code != null) {
+            return code;
+        }
+        int c = lowerNames.size();
+        String lower = name.toLowerCase(Locale.ROOT);
+        codes.put(name, c);
+        lowerNames.add(lower);
+        estateIds.add(new NameWines());
+        grapeIds.add(new NameWines());
+        for (int length = 1; length <= MAX_GRAM; length++) {
+            for (int i = 0; i + length <= lower.length(); i++) {
+                WineIndex.Posting p = grams.computeIfAbsent
+                    (gram(lower, i, length), k -> new WineIndex.Posting());
+                // a gram found twice in one name is listed once
+                if (p.size == 0 || p.ids[p.size - 1] != c) {
+                    p.add(c);
+                }
+            }
+        }
+        return c;
+    }
+
+    private void ensureCapacity(int wineID) {
+        if (wineID >= estateOf.length) {
+            int oldLength = estateOf.length;
+            int newLength = Math.max(wineID + 1, oldLength + (oldLength >> 1));
+            estateOf = Arrays.copyOf(estateOf, newLength);
+            grapeOf = Arrays.copyOf(grapeOf, newLength);
+            estatePos = Arrays.copyOf(estatePos, newLength);
+            grapePos = Arrays.copyOf(grapePos, newLength);
+            Arrays.fill(estateOf, oldLength, newLength, NONE);
+        }
+    }
+
+    /*
+    * Packs one to three characters and their count into a map key
+    */
+    private static long gram(String s, int from, int length) {
+        long key = length;
+        for (int i = 0; i < length; i++) {
+            key = key << 16 | s.charAt(from + i);
+        }
+        return key;
+    }
+
+    /**
+     * The wineIDs that have one name as their estate, or as their grape
+     */
+    private static class NameWines {
+
+        final WineIndex.Posting ids = new WineIndex.Posting();
+        // the same wineIDs as a bitmap, once there are enough of them
+        long[] bits;
+
+        /**
+         * Adds a wineID
+         * @return the position of the wineID in the posting
+         */
+        int add(int wineID, int idLimit) {
+            int pos = ids.add(wineID);
+            if (bits != null) {
+                set(wineID);
+            } else if (ids.size > (idLimit >>> 6) + 64) {
+                bits = new long[(idLimit + 63) >>> 6];
+                for (int i = 0; i < ids.size; i++) {
+                    set(ids.ids[i]);
+                }
+            }
+            return pos;
+        }
+
+        /**
+         * Removes the wineID at a position
+         * @return the wineID moved into its place, or -1 if none was moved
+         */
+        int removeAt(int pos, int wineID) {
+            if (bits != null) {
+                bits[wineID >>> 6] &= ~(1L << wineID);
+            }
+            return ids.removeAt(pos);
+        }
+
+        void orInto(long[] hits) {
+            if (bits != null) {
+                int n = Math.min(bits.length, hits.length);
+                for (int w = 0; w < n; w++) {
+                    hits[w] |= bits[w];
+                }
+            } else {
+                for (int i = 0; i < ids.size; i++) {
+                    int id = ids.ids[i];
+                    hits[id >>> 6] |= 1L << id;
+                }
+            }
+        }
+
+        private void set(int wineID) {
+            int w = wineID >>> 6;
+            if (w >= bits.length) {
+                bits = Arrays.copyOf(bits, Math.max(w + 1,
+                        bits.length + (bits.length >> 1)));
+            }
+            bits[w] |= 1L << wineID;
+        }
+    }
+}
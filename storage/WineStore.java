@@ -0,0 +1,345 @@
+/*
+    WineStore.java
+    Author: Scott Forsyth
+
+    Description
+    Columnar in-memory storage for the wines shown in the TableView
+*/
+package storage;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import models.Wine;
+
+/**
+ * Keeps the wine data in primitive columns instead of one Wine object per
+ * row. Estates and grapes are dictionary encoded through a StringTable, so
+ * a row costs a handful of array slots instead of an object header, two
+ * Strings and their char arrays. Wine objects are only created when a row
+ * is asked for, for example by the cells of the TableView that are on
+ * screen.
+ *
+ * @author Scott Forsyth
+ */
+public class WineStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final StringTable strings = new StringTable();
+    private int size;
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private int[] estates = new int[INITIAL_CAPACITY];
+    private int[] grapes = new int[INITIAL_CAPACITY];
+    private int[] years = new int[INITIAL_CAPACITY];
+    private int[] quantities = new int[INITIAL_CAPACITY];
+    private double[] prices = new double[INITIAL_CAPACITY];
+
+    /**
+     * Accessor for the number of rows in the store
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a wine as the last row
+     *
+     * @param w the wine to add
+     */
+    public void add(Wine w) {
+        insert(size, w);
+    }
+
+    /**
+     * Adds every string of another store to the string table of this one,
+     * so that its rows can be copied with addFrom()
+     *
+     * @param source the store whose rows will be copied
+     * @return the code in this store of every string code of the source
+     */
+    public int[] codesFrom(WineStore source) {
+        int[] codes = new int[source.strings.size()];
+        for (int code = 0; code < codes.length; code++) {
+            codes[code] = strings.encode(source.strings.decode(code));
+        }
+        return codes;
+    }
+
+    /**
+     * Appends a copy of a row of another store as the last row. The values
+     * are copied column by column and the string codes are translated with
+     * one array lookup each, so no Wine object is created and no String is
+     * looked up.
+     *
+     * @param source the store to copy from
+     * @param row the row of the source to copy
+     * @param codes the table returned by codesFrom(source)
+     */
+    public void addFrom(WineStore source, int row, int[] codes) {
+        source.checkRow(row);
+        ensureCapacity(size + 1);
+        ids[size] = source.ids[row];
+        estates[size] = codes[source.estates[row]];
+        grapes[size] = codes[source.grapes[row]];
+        years[size] = source.years[row];
+        quantities[size] = source.quantities[row];
+        prices[size] = source.prices[row];
+        size++;
+    }
+
+    /**
+     * Inserts a wine at the given row, moving the following rows down
+     *
+     * @param row the row the wine will occupy
+     * @param w the wine to insert
+     */
+    public void insert(int row, Wine w) {
+        if (row < 0 || row > size) {
+            throw new IndexOutOfBoundsException("Row: " + row);
+        }
+        ensureCapacity(size + 1);
+        shift(row, row + 1, size - row);
+        size++;
+        set(row, w);
+    }
+
+    /**
+     * Replaces the values of a row with the values of the wine
+     *
+     * @param row the row to replace
+     * @param w the wine with the new values
+     */
+    public void set(int row, Wine w) {
+        checkRow(row);
+        ids[row] = w.getWineID();
+        estates[row] = strings.encode(w.getEstate());
+        grapes[row] = strings.encode(w.getGrape());
+        years[row] = w.getYear();
+        quantities[row] = w.getQuantity();
+        prices[row] = w.getPrice();
+    }
+
+    /**
+     * Removes a row, moving the following rows up
+     *
+     * @param row the row to remove
+     */
+    public void remove(int row) {
+        checkRow(row);
+        shift(row + 1, row, size - row - 1);
+        size--;
+    }
+
+    /**
+     * Removes all the rows. The string table is kept.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Builds a Wine object with the values of a row
+     *
+     * @param row the row to read
+     * @return a new Wine object for the row
+     */
+    public Wine get(int row) {
+        checkRow(row);
+        return Wine.trusted(ids[row], strings.decode(estates[row]),
+                strings.decode(grapes[row]), years[row], quantities[row],
+                prices[row]);
+    }
+
+    /**
+     * Accessor for the wineID of a row without building a Wine object
+     * @param row the row to read
+     * @return the wineID stored in the row
+     */
+    public int getWineID(int row) {
+        checkRow(row);
+        return ids[row];
+    }
+
+    /**
+     * Accessor for the estate of a row without building a Wine object
+     * @param row the row to read
+     * @return the estate stored in the row
+     */
+    public String getEstate(int row) {
+        checkRow(row);
+        return strings.decode(estates[row]);
+    }
+
+    /**
+     * Accessor for the grape of a row without building a Wine object
+     * @param row the row to read
+     * @return the grape stored in the row
+     */
+    public String getGrape(int row) {
+        checkRow(row);
+        return strings.decode(grapes[row]);
+    }
+
+    /**
+     * Accessor for the year of a row without building a Wine object
+     * @param row the row to read
+     * @return the year stored in the row
+     */
+    public int getYear(int row) {
+        checkRow(row);
+        return years[row];
+    }
+
+    /**
+     * Accessor for the quantity of a row without building a Wine object
+     * @param row the row to read
+     * @return the quantity stored in the row
+     */
+    public int getQuantity(int row) {
+        checkRow(row);
+        return quantities[row];
+    }
+
+    /**
+     * Accessor for the price of a row without building a Wine object
+     * @param row the row to read
+     * @return the price stored in the row
+     */
+    public double getPrice(int row) {
+        checkRow(row);
+        return prices[row];
+    }
+
+    /**
+     * Returns a List view of the store. Reading an element builds a Wine for
+     * that row, and changes made through the list are applied to the store.
+     * The view can be wrapped with FXCollections.observableList() and given
+     * to a TableView.
+     *
+     * @return a live List view over the rows of the store
+     */
+    public List<Wine> asList() {
+        return new AbstractList<Wine>() {
+            @Override
+            public Wine get(int index) {
+                return WineStore.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Wine set(int index, Wine w) {
+                Wine old = WineStore.this.get(index);
+                WineStore.this.set(index, w);
+                return old;
+            }
+
+            @Override
+            public void add(int index, Wine w) {
+                insert(index, w);
+                modCount++;
+            }
+
+            @Override
+            public Wine remove(int index) {
+                Wine old = WineStore.this.get(index);
+                WineStore.this.remove(index);
+                modCount++;
+                return old;
+            }
+        };
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row);
+        }
+    }
+
+    private void shift(int from, int to, int length) {
+        System.arraycopy(ids, from, ids, to, length);
+        System.arraycopy(estates, from, estates, to, length);
+        System.arraycopy(grapes, from, grapes, to, length);
+        System.arraycopy(years, from, years, to, length);
+        System.arraycopy(quantities, from, quantities, to, length);
+        System.arraycopy(prices, from, prices, to, length);
+    }
+
+    /*
+    * Raw columns for the scans of WineAnalytics. The arrays are the live
+    * columns and only the first size() entries are rows; they must not be
+    * changed.
+    */
+    int[] idColumn() {
+        return ids;
+    }
+
+    int[] estateCodes() {
+        return estates;
+    }
+
+    int[] grapeCodes() {
+        return grapes;
+    }
+
+    int[] yearColumn() {
+        return years;
+    }
+
+    int[] quantityColumn() {
+        return quantities;
+    }
+
+    double[] priceColumn() {
+        return prices;
+    }
+
+    StringTable getStrings() {
+        return strings;
+    }
+
+    /*
+    * Takes over the columns read from a StoreImage. The store must be
+    * empty, and values are the strings of the image in the order of their
+    * codes, so encoding them again gives every string its old code.
+    */
+    void restore(List<String> values, int rows, int[] ids, int[] estates,
+            int[] grapes, int[] years, int[] quantities, double[] prices) {
+        if (size != 0 || strings.size() != 0) {
+            throw new IllegalStateException("The store is not empty");
+        }
+        for (String value : values) {
+            strings.encode(value);
+        }
+        this.ids = ids;
+        this.estates = estates;
+        this.grapes = grapes;
+        this.years = years;
+        this.quantities = quantities;
+        this.prices = prices;
+        this.size = rows;
+    }
+
+    /**
+     * Grows the columns so that they can hold at least capacity rows
+     *
+     * @param capacity the number of rows that will be stored
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            int newLength = Math.max(capacity, ids.length + (ids.length >> 1));
+            ids = Arrays.copyOf(ids, newLength);
+            estates = Arrays.copyOf(estates, newLength);
+            grapes = Arrays.copyOf(grapes, newLength);
+            years = Arrays.copyOf(years, newLength);
+            quantities = Arrays.copyOf(quantities, newLength);
+            prices = Arrays.copyOf(prices, newLength);
+        }
+    }
+}
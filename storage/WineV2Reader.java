@@ -0,0 +1,184 @@
+/*
+    WineV2Reader.java
+    Author: Scott Forsyth
+
+    Description
+    Reads and checks wine files in the compact version 2 format
+*/
+package storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import models.Wine;
+
+/**
+ * Streaming reader for files written by WineV2Writer. The header and every
+ * block are checked against their CRC32C before anything in them is used,
+ * so a damaged file fails with an IOException naming the damaged block
+ * instead of producing wrong wines. Memory use is one block.
+ *
+ * @author Scott Forsyth
+ */
+public class WineV2Reader {
+
+    private final CRC32C crc = new CRC32C();
+    private final List<String> dictionary = new ArrayList<>();
+    private ByteBuffer block = ByteBuffer.allocate(WineV2Writer.MAX_BLOCK_PAYLOAD
+            + WineV2Writer.BLOCK_HEADER_SIZE + 1024);
+    private int pos;
+
+    /**
+     * Checks whether a file starts with the version 2 magic number
+     *
+     * @param f the file to look at
+     * @return true if it is a version 2 file, false for a wines.dat file
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isV2(File f) throws IOException {
+        try (FileInputStream fis = new FileInputStream(f);
+                FileChannel in = fis.getChannel()) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && in.read(magic) >= 0) {
+                // read until four bytes or the end of the file
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == WineV2Writer.MAGIC;
+        }
+    }
+
+    /**
+     * Passes every wine of the file to the sink, in file order
+     *
+     * @param f the version 2 file
+     * @param sink receives each wine
+     * @return the number of wines read
+     * @throws IOException if the file cannot be read or is damaged
+     */
+    public long forEach(File f, Consumer<Wine> sink) throws IOException {
+        try (FileInputStream fis = new FileInputStream(f);
+                FileChannel in = fis.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(WineV2Writer.HEADER_SIZE);
+            readFully(in, header, f, "the header");
+            crc.reset();
+            crc.update(header.array(), 0, WineV2Writer.HEADER_SIZE - 4);
+            if (header.getInt(0) != WineV2Writer.MAGIC) {
+                throw new IOException(f + " is not a version 2 wine file");
+            }
+            if (header.getInt(WineV2Writer.HEADER_SIZE - 4) != (int) crc.getValue()) {
+                throw corrupt(f, "the header fails its checksum");
+            }
+            if (header.getShort(4) != WineV2Writer.VERSION) {
+                throw new IOException(f + " has unknown version "
+                        + header.getShort(4));
+            }
+            long records = header.getLong(8);
+            int blocks = header.getInt(16);
+            long read = 0;
+            for (int b = 0; b < blocks; b++) {
+                read += readBlock(in, f, b, sink);
+            }
+            if (read != records || in.position() != in.size()) {
+                throw corrupt(f, "the header promises " + records
+                        + " wines in " + blocks + " blocks");
+            }
+            return read;
+        }
+    }
+
+    private int readBlock(FileChannel in, File f, int b, Consumer<Wine> sink)
+            throws IOException {
+        long offset = in.position();
+        block.clear().limit(WineV2Writer.BLOCK_HEADER_SIZE);
+        readFully(in, block, f, "block " + b);
+        int length = block.getInt(0);
+        int count = block.getInt(4);
+        int sum = block.getInt(8);
+        if (length < 0 || count <= 0 || length > in.size() - in.position()) {
+            throw corrupt(f, "block " + b + " at offset " + offset
+                    + " has a bad header");
+        }
+        if (block.capacity() < length) {
+            block = ByteBuffer.allocate(length);
+        }
+        block.clear().limit(length);
+        readFully(in, block, f, "block " + b);
+        byte[] data = block.array();
+        crc.reset();
+        crc.update(new byte[]{(byte) (count >>> 24), (byte) (count >>> 16),
+            (byte) (count >>> 8), (byte) count});
+        crc.update(data, 0, length);
+        if ((int) crc.getValue() != sum) {
+            throw corrupt(f, "block " + b + " at offset " + offset
+                    + " fails its checksum");
+        }
+        dictionary.clear();
+        pos = 0;
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += unZigZag(readVarInt(data));
+            String estate = readString(data);
+            String grape = readString(data);
+            int year = unZigZag(readVarInt(data));
+            int quantity = unZigZag(readVarInt(data));
+            long price = 0;
+            for (int k = 0; k < 8; k++) {
+                price = price << 8 | (data[pos++] & 0xFF);
+            }
+            sink.accept(Wine.trusted(id, estate, grape, year, quantity,
+                    Double.longBitsToDouble(price)));
+        }
+        if (pos != length) {
+            throw corrupt(f, "block " + b + " at offset " + offset
+                    + " does not end after its last wine");
+        }
+        return count;
+    }
+
+    private String readString(byte[] data) {
+        int tag = readVarInt(data);
+        if ((tag & 1) != 0) {
+            return dictionary.get(tag >>> 1);
+        }
+        int length = tag >>> 1;
+        String s = new String(data, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        dictionary.add(s);
+        return s;
+    }
+
+    private int readVarInt(byte[] data) {
+        int v = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = data[pos++];
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+    }
+
+    private static int unZigZag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buf, File f,
+            String what) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                throw new EOFException(f + " ends in the middle of " + what);
+            }
+        }
+    }
+
+    private static IOException corrupt(File f, String problem) {
+        return new IOException(f + " is damaged: " + problem);
+    }
+}
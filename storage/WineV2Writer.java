@@ -0,0 +1,200 @@
+/*
+    WineV2Writer.java
+    Author: Scott Forsyth
+
+    Description
+    Writes wines in the compact version 2 file format
+*/
+package storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import models.Wine;
+
+/**
+ * Streaming writer for the version 2 wine file format. Unlike the fixed
+ * 80-byte records of wines.dat, a version 2 file is made of:
+ * <pre>
+ *   header   int magic "WIN2", short version 2, short flags, long records,
+ *            int blocks, int max records per block, int reserved,
+ *            int CRC32C of the first 28 bytes
+ *   block    int payload length, int records, int CRC32C of the record
+ *            count and the payload, then the payload
+ * </pre>
+ * Every record in a payload is the zig-zag varint difference to the
+ * previous wineID of the block, the estate, the grape, the year and the
+ * quantity as zig-zag varints and the price as an 8-byte double. A string is
+ * a varint tag: (length &lt;&lt; 1) followed by that many UTF-8 bytes, or
+ * (n &lt;&lt; 1 | 1) for the n-th distinct string of the block. Names are
+ * therefore never truncated and the repeated estate and grape names cost a
+ * byte or two each.
+ * <p>
+ * Memory use is one block, however many wines are written. The header is
+ * written again with the final counts by close().
+ *
+ * @author Scott Forsyth
+ */
+public class WineV2Writer {
+
+    public static final int MAGIC = 0x57494E32; // "WIN2"
+    public static final short VERSION = 2;
+    public static final int HEADER_SIZE = 32;
+    public static final int BLOCK_HEADER_SIZE = 12;
+    public static final int MAX_BLOCK_RECORDS = 4096;
+    static final int MAX_BLOCK_PAYLOAD = 1 << 16;
+
+    private final FileOutputStream fos;
+    private final FileChannel out;
+    private final CRC32C crc = new CRC32C();
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private byte[] payload = new byte[MAX_BLOCK_PAYLOAD + 1024];
+    private int length;
+    private int blockRecords;
+    private int lastId;
+    private long records;
+    private int blocks;
+    private boolean closed;
+
+    /**
+     * Creates the file, replacing it if it exists
+     *
+     * @param target the file to write
+     * @throws IOException if the file cannot be created
+     */
+    public WineV2Writer(File target) throws IOException {
+        this.fos = new FileOutputStream(target);
+        this.out = fos.getChannel();
+        out.position(HEADER_SIZE);
+    }
+
+    /**
+     * Appends a wine to the file
+     *
+     * @param w the wine to write, with its wineID
+     * @throws IOException if a full block cannot be written
+     */
+    public void write(Wine w) throws IOException {
+        writeVarInt(zigZag(w.getWineID() - lastId));
+        lastId = w.getWineID();
+        writeString(w.getEstate());
+        writeString(w.getGrape());
+        writeVarInt(zigZag(w.getYear()));
+        writeVarInt(zigZag(w.getQuantity()));
+        ensure(8);
+        long price = Double.doubleToRawLongBits(w.getPrice());
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            payload[length++] = (byte) (price >>> shift);
+        }
+        blockRecords++;
+        records++;
+        if (blockRecords == MAX_BLOCK_RECORDS || length >= MAX_BLOCK_PAYLOAD) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Accessor for the number of wines written so far
+     * @return the number of wines
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Writes the last block and the final header, syncs and closes the
+     * file. Calling it more than once has no effect.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushBlock();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) 0)
+                .putLong(records).putInt(blocks).putInt(MAX_BLOCK_RECORDS)
+                .putInt(0);
+            crc.reset();
+            crc.update(header.array(), 0, HEADER_SIZE - 4);
+            header.putInt((int) crc.getValue());
+            header.flip();
+            long pos = 0;
+            while (header.hasRemaining()) {
+                pos += out.write(header, pos);
+            }
+            out.force(true);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockRecords == 0) {
+            return;
+        }
+        blockHeader.clear();
+        blockHeader.putInt(4, blockRecords);
+        crc.reset();
+        crc.update(blockHeader.array(), 4, 4);
+        crc.update(payload, 0, length);
+        blockHeader.putInt(0, length).putInt(8, (int) crc.getValue());
+        ByteBuffer body = ByteBuffer.wrap(payload, 0, length);
+        while (blockHeader.hasRemaining()) {
+            out.write(blockHeader);
+        }
+        while (body.hasRemaining()) {
+            out.write(body);
+        }
+        blocks++;
+        blockRecords = 0;
+        length = 0;
+        lastId = 0;
+        dictionary.clear();
+    }
+
+    private void writeString(String s) {
+        Integer code = dictionary.get(s);
+        if (code != null) {
+            writeVarInt(code << 1 | 1);
+            return;
+        }
+        dictionary.put(s, dictionary.size());
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(utf8.length << 1);
+        ensure(utf8.length);
+        System.arraycopy(utf8, 0, payload, length, utf8.length);
+        length += utf8.length;
+    }
+
+    private void writeVarInt(int v) {
+        ensure(5);
+        while ((v & ~0x7F) != 0) {
+            payload[length++] = (byte) (v & 0x7F | 0x80);
+            v >>>= 7;
+        }
+        payload[length++] = (byte) v;
+    }
+
+    private void ensure(int bytes) {
+        if (length + bytes > payload.length) {
+            payload = Arrays.copyOf(payload,
+                    Math.max(length + bytes, payload.length * 2));
+        }
+    }
+
+    static int zigZag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+    WriteAheadLog.java
+    Author: Scott Forsyth
+
+    Description
+    A journal of record writes kept next to wines.dat, so that a crash in
+    the middle of a write never leaves a half written record behind
+*/
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import models.Wine;
+
+/**
+ * Write-ahead log for the wine data file. Before a record or tombstone is
+ * written to wines.dat it is appended to wines.wal, and a whole batch of
+ * entries is made durable with a single fsync (group commit). After a
+ * crash, replay() writes every complete entry of the log into the data
+ * file again, which repairs any record that was only partly written.
+ * <p>
+ * Every entry has a fixed size:
+ * <pre>
+ *   byte   type         1 byte  (PUT, DELETE or GROUP)
+ *   int    slot         4 bytes (the number of entries for GROUP)
+ *   byte[] record      80 bytes (the full record, zeros for DELETE)
+ *   int    crc          4 bytes (CRC32 of the 85 bytes before it)
+ * </pre>
+ * An entry with a wrong checksum marks the torn end of the log and it and
+ * everything after it is ignored. A GROUP entry starts entries that must
+ * be replayed together: if any of them is torn, the whole group is
+ * ignored.
+ *
+ * @author Scott Forsyth
+ */
+public class WriteAheadLog {
+
+    static final int ENTRY_SIZE = 1 + 4 + WineRecordCodec.RECORD_SIZE + 4;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte GROUP = 3;
+    private static final int CRC_OFFSET = ENTRY_SIZE - 4;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final WineRecordCodec codec = new WineRecordCodec();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(ENTRY_SIZE * 64);
+    // set when a failed batch could not be cut off the end of the log
+    private IOException broken;
+
+    private WriteAheadLog(File logFile) throws IOException {
+        this.raf = new RandomAccessFile(logFile, "rw");
+        this.channel = raf.getChannel();
+        channel.position(channel.size());
+    }
+
+    /**
+     * Replays any log left behind by a crash and opens the log for writing
+     *
+     * @param dataFile the wines.dat file the log belongs to
+     * @return an empty log ready for new entries
+     * @throws IOException if the log cannot be replayed or opened
+     */
+    public static WriteAheadLog open(File dataFile) throws IOException {
+        replay(dataFile);
+        return new WriteAheadLog(logFileFor(dataFile));
+    }
+
+    /**
+     * Returns the log file used for a data file
+     *
+     * @param dataFile the wines.dat file
+     * @return the matching wines.wal file
+     */
+    public static File logFileFor(File dataFile) {
+        String name = dataFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        return new File(dataFile.getAbsoluteFile().getParentFile(),
+                base + ".wal");
+    }
+
+    /**
+     * Writes every complete entry of the log into the data file, makes the
+     * data file durable and empties the log. Does nothing if there is no
+     * log.
+     *
+     * @param dataFile the wines.dat file the log belongs to
+     * @return the number of entries that were replayed
+     * @throws IOException if the log cannot be read or the data written
+     */
+    public static int replay(File dataFile) throws IOException {
+        File logFile = logFileFor(dataFile);
+        if (!logFile.isFile() || logFile.length() == 0) {
+            return 0;
+        }
+        CRC32 check = new CRC32();
+        int count = 0;
+        try (RandomAccessFile log = new RandomAccessFile(logFile, "rw");
+                RandomAccessFile data = new RandomAccessFile(dataFile, "rw")) {
+            FileChannel logChannel = log.getChannel();
+            FileChannel dataChannel = data.getChannel();
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            long pos = 0;
+            while (readFully(logChannel, entry, pos)) {
+                if (!isSealed(entry, check)) {
+                    break;
+                }
+                if (entry.get(0) == GROUP) {
+                    if (!isComplete(logChannel, pos + ENTRY_SIZE,
+                            entry.getInt(1), check)) {
+                        break;
+                    }
+                    pos += ENTRY_SIZE;
+                    continue;
+                }
+                long offset = (long) entry.getInt(1)
+                    * WineRecordCodec.RECORD_SIZE;
+                if (entry.get(0) == PUT) {
+                    entry.limit(5 + WineRecordCodec.RECORD_SIZE).position(5);
+                } else {
+                    entry.putInt(5, RecordManager.TOMBSTONE);
+                    entry.limit(9).position(5);
+                }
+                while (entry.hasRemaining()) {
+                    offset += dataChannel.write(entry, offset);
+                }
+                pos += ENTRY_SIZE;
+                count++;
+            }
+            dataChannel.force(true);
+            logChannel.truncate(0);
+            logChannel.force(true);
+        }
+        return count;
+    }
+
+    /**
+     * Adds the write of a record to the current batch
+     *
+     * @param slot the slot the record goes to
+     * @param w the wine stored in the record
+     */
+    public void appendPut(int slot, Wine w) {
+        int pos = reserve(PUT, slot);
+        codec.encode(w, pending, pos + 5);
+        seal(pos);
+    }
+
+    /**
+     * Adds the tombstone of a deleted slot to the current batch
+     *
+     * @param slot the slot that is deleted
+     */
+    public void appendDelete(int slot) {
+        int pos = reserve(DELETE, slot);
+        for (int i = 0; i < WineRecordCodec.RECORD_SIZE; i++) {
+            pending.put(pos + 5 + i, (byte) 0);
+        }
+        seal(pos);
+    }
+
+    /**
+     * Starts a group of entries that a replay after a crash applies all
+     * together or not at all. The entries must follow right after it.
+     *
+     * @param count the number of entries in the group
+     */
+    public void appendGroup(int count) {
+        int pos = reserve(GROUP, count);
+        for (int i = 0; i < WineRecordCodec.RECORD_SIZE; i++) {
+            pending.put(pos + 5 + i, (byte) 0);
+        }
+        seal(pos);
+    }
+
+    /**
+     * Writes the current batch to the log and makes it durable with one
+     * fsync. If that fails the batch is dropped and cut off the end of the
+     * log again, because replay stops at the first torn entry and would
+     * otherwise ignore every batch committed after it.
+     *
+     * @throws IOException if the batch cannot be written, or an earlier
+     *     failed batch could not be cut off
+     */
+    public void commit() throws IOException {
+        if (broken != null) {
+            pending.clear();
+            throw new IOException("The log is damaged by an earlier failed "
+                    + "write", broken);
+        }
+        long start = channel.position();
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+            channel.force(false);
+        } catch (IOException | RuntimeException ex) {
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException undo) {
+                ex.addSuppressed(undo);
+                broken = undo;
+            }
+            throw ex;
+        } finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Accessor for the number of bytes currently in the log
+     *
+     * @return the size of the log file
+     * @throws IOException if the size cannot be read
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Empties the log. Only call this once every logged write has been made
+     * durable in the data file.
+     *
+     * @throws IOException if the log cannot be truncated
+     */
+    public void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        broken = null;
+    }
+
+    /**
+     * Closes the log file
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int reserve(byte type, int slot) {
+        if (pending.remaining() < ENTRY_SIZE) {
+            ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        int pos = pending.position();
+        pending.put(pos, type);
+        pending.putInt(pos + 1, slot);
+        return pos;
+    }
+
+    private void seal(int pos) {
+        crc.reset();
+        crc.update(pending.array(), pos, CRC_OFFSET);
+        pending.putInt(pos + CRC_OFFSET, (int) crc.getValue());
+        pending.position(pos + ENTRY_SIZE);
+    }
+
+    private static boolean isSealed(ByteBuffer entry, CRC32 check) {
+        check.reset();
+        check.update(entry.array(), 0, CRC_OFFSET);
+        return (int) check.getValue() == entry.getInt(CRC_OFFSET);
+    }
+
+    /*
+    * Checks that all the entries of a group made it into the log
+    */
+    private static boolean isComplete(FileChannel channel, long pos,
+            int count, CRC32 check) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        for (int i = 0; i < count; i++) {
+            if (!readFully(channel, entry, pos + (long) i * ENTRY_SIZE)
+                    || !isSealed(entry, check)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buf,
+            long pos) throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos + buf.position());
+            if (n < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}